@@ -0,0 +1,60 @@
+package com.guitard0g.dataflow_analysis;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import soot.SootMethod;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Work done on the call graph after the instrumentation: finding the reachable sources and sinks, and the call paths
+ * we print for every finding (with the path index built from scratch and with an index that is already built).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CallGraphBenchmark {
+    @Param({"1000", "10000"})
+    public int classes;
+
+    private SyntheticScene scene;
+
+    @Setup
+    public void setup() {
+        scene = SyntheticScene.build(classes, 0, 0);
+    }
+
+    @Benchmark
+    public void sourceSinkDiscovery(Blackhole bh) {
+        bh.consume(scene.dummies.getReachable(DummyKind.STATIC_SET));
+        bh.consume(scene.dummies.getReachable(DummyKind.STATIC_NULL_SET));
+    }
+
+    @Benchmark
+    public void getMethodPathCold(Blackhole bh) {
+        CallPathIndex.reset();
+        for (SootMethod m: scene.stepMethods) {
+            bh.consume(App.getMethodPath(m));
+        }
+    }
+
+    @Benchmark
+    public void getMethodPathWarm(Blackhole bh) {
+        for (SootMethod m: scene.stepMethods) {
+            bh.consume(App.getMethodPath(m));
+        }
+    }
+}
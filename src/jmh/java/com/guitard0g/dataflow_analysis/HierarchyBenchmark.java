@@ -0,0 +1,60 @@
+package com.guitard0g.dataflow_analysis;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import soot.SootClass;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Context container detection: the fixed point over constructors and fields, and the per class hierarchy checks
+ * that use its result (uncached walk vs. memoized query).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HierarchyBenchmark {
+    @Param({"200", "2000"})
+    public int classes;
+
+    private SyntheticScene scene;
+
+    @Setup
+    public void setup() {
+        scene = SyntheticScene.build(classes, 1, 1);
+        Instrument.gatherContextContainers();
+        Instrument.buildHierarchyQueries();
+    }
+
+    @Benchmark
+    public void gatherContextContainers() {
+        Instrument.gatherContextContainers();
+    }
+
+    @Benchmark
+    public void isInterestingClassWalk(Blackhole bh) {
+        for (SootClass c: scene.appClasses) {
+            bh.consume(ClassHierarchyIndex.walk(c, Instrument.contextContainers::contains));
+        }
+    }
+
+    @Benchmark
+    public void isInterestingClassQuery(Blackhole bh) {
+        for (SootClass c: scene.appClasses) {
+            bh.consume(Instrument.contextContainerQuery.test(c));
+        }
+    }
+}
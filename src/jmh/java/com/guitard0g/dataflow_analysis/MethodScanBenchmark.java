@@ -0,0 +1,66 @@
+package com.guitard0g.dataflow_analysis;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import soot.SootMethod;
+import soot.jimple.InvokeExpr;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per method work of the instrumentation: building the method metadata (which finds the instructions that can be
+ * skipped) and classifying every invocation as a resource opener or closer.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MethodScanBenchmark {
+    @Param({"100", "1000"})
+    public int classes;
+
+    @Param({"4", "32"})
+    public int cursorsPerMethod;
+
+    private SyntheticScene scene;
+
+    @Setup
+    public void setup() {
+        scene = SyntheticScene.build(classes, 4, cursorsPerMethod);
+        Instrument.gatherContextContainers();
+        Instrument.buildHierarchyQueries();
+    }
+
+    @Benchmark
+    public void fillSkippableInstrs(Blackhole bh) {
+        for (SootMethod m: scene.workMethods) {
+            bh.consume(new CurrentOpenerMethodData(m));
+        }
+    }
+
+    @Benchmark
+    public void isOpener(Blackhole bh) {
+        for (InvokeExpr iexpr: scene.invokes) {
+            bh.consume(Instrument.isOpener(iexpr));
+        }
+    }
+
+    @Benchmark
+    public void isResCloser(Blackhole bh) {
+        for (InvokeExpr iexpr: scene.invokes) {
+            bh.consume(Instrument.isResCloser(iexpr));
+        }
+    }
+}
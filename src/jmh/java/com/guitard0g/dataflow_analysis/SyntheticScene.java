@@ -0,0 +1,232 @@
+package com.guitard0g.dataflow_analysis;
+
+import soot.Body;
+import soot.G;
+import soot.Local;
+import soot.Modifier;
+import soot.Scene;
+import soot.SootClass;
+import soot.SootField;
+import soot.SootMethod;
+import soot.Type;
+import soot.Unit;
+import soot.VoidType;
+import soot.jimple.InvokeExpr;
+import soot.jimple.Jimple;
+import soot.jimple.NullConstant;
+import soot.jimple.Stmt;
+import soot.jimple.toolkits.callgraph.CallGraph;
+import soot.jimple.toolkits.callgraph.Edge;
+import soot.jimple.toolkits.callgraph.Kind;
+import soot.options.Options;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A Soot Scene of configurable size built in memory, so that the hot paths can be measured without an APK.
+ *
+ * The Scene has stubs of the android classes we look at and a number of app classes:
+ *  - every fourth app class is an Activity, every other one has a constructor that takes the previous app class, and
+ *    every odd one implements Runnable and has a field of the previous app class, so context containers propagate
+ *    through long chains of classes
+ *  - every app class has work methods that open and close cursors and return a copy of one of them
+ *  - every app class has a static step method that calls the step methods of two other classes (a binary tree below
+ *    the entry point) and a static variable source and sink dummy, and the call graph holds all of these calls
+ */
+class SyntheticScene {
+    final ArrayList<SootClass> appClasses = new ArrayList<>();
+    // methods with the cursor open/close bodies
+    final ArrayList<SootMethod> workMethods = new ArrayList<>();
+    // every invocation in the work methods
+    final ArrayList<InvokeExpr> invokes = new ArrayList<>();
+    // step methods in call graph order
+    final ArrayList<SootMethod> stepMethods = new ArrayList<>();
+    final DummyRegistry dummies = new DummyRegistry();
+
+    private SootClass object;
+    private SootClass resolver;
+    private SootClass cursor;
+    private SootMethod query;
+    private SootMethod close;
+    private int nextDummyId = 0;
+
+    /**
+     * Build a new Scene, replacing the current one
+     *
+     * @param classCount number of app classes
+     * @param methodsPerClass number of work methods per app class
+     * @param cursorsPerMethod number of cursors every work method opens and closes
+     * @return the Scene that was built
+     */
+    static SyntheticScene build(int classCount, int methodsPerClass, int cursorsPerMethod) {
+        G.reset();
+        Instrument.reset();
+        CallPathIndex.reset();
+        Options.v().set_allow_phantom_refs(true);
+        Options.v().set_whole_program(true);
+
+        SyntheticScene scene = new SyntheticScene();
+        scene.createLibraryClasses();
+        scene.createAppClasses(classCount, methodsPerClass, cursorsPerMethod);
+        Instrument.hierarchy = new ClassHierarchyIndex();
+        scene.createCallGraph();
+        return scene;
+    }
+
+    private void createLibraryClasses() {
+        object = addClass("java.lang.Object", null, 0, false);
+        SootClass context = addClass("android.content.Context", object, Modifier.ABSTRACT, false);
+        addClass("android.app.Activity", context, 0, false);
+        addClass("java.lang.Runnable", object, Modifier.INTERFACE | Modifier.ABSTRACT, false);
+
+        cursor = addClass("android.database.Cursor", object, Modifier.INTERFACE | Modifier.ABSTRACT, false);
+        close = new SootMethod("close", Collections.emptyList(), VoidType.v(), Modifier.PUBLIC | Modifier.ABSTRACT);
+        cursor.addMethod(close);
+
+        resolver = addClass("android.content.ContentResolver", object, 0, false);
+        query = new SootMethod("query", Collections.emptyList(), cursor.getType(), Modifier.PUBLIC);
+        resolver.addMethod(query);
+    }
+
+    private SootClass addClass(String name, SootClass superclass, int modifiers, boolean app) {
+        SootClass c = new SootClass(name, Modifier.PUBLIC | modifiers);
+        if (superclass != null)
+            c.setSuperclass(superclass);
+        Scene.v().addClass(c);
+        if (app)
+            c.setApplicationClass();
+        else
+            c.setLibraryClass();
+        return c;
+    }
+
+    private void createAppClasses(int classCount, int methodsPerClass, int cursorsPerMethod) {
+        SootClass activity = Scene.v().getSootClass("android.app.Activity");
+        SootClass runnable = Scene.v().getSootClass("java.lang.Runnable");
+        SootClass context = Scene.v().getSootClass("android.content.Context");
+
+        for (int i = 0; i < classCount; i++) {
+            SootClass c = addClass("app.C" + i, i % 4 == 0 ? activity : object, 0, true);
+            SootClass previous = i == 0 ? null : appClasses.get(i - 1);
+            if (previous != null && i % 2 == 0) {
+                c.addMethod(new SootMethod("<init>", Collections.singletonList(previous.getType()), VoidType.v(),
+                        Modifier.PUBLIC));
+            }
+            if (previous != null && i % 2 == 1) {
+                c.addInterface(runnable);
+                c.addField(new SootField("holder", previous.getType(), Modifier.PRIVATE));
+            }
+            c.addField(new SootField("sContext", context.getType(), Modifier.PUBLIC | Modifier.STATIC));
+            appClasses.add(c);
+
+            for (int j = 0; j < methodsPerClass; j++) {
+                workMethods.add(createWorkMethod(c, j, cursorsPerMethod));
+            }
+        }
+    }
+
+    // r0 := @this; r1 := @parameter0; then per cursor: $cK = r1.query(); $cK.close(); $oK = $cK; and return $oK
+    private SootMethod createWorkMethod(SootClass c, int index, int cursorsPerMethod) {
+        SootMethod m = new SootMethod("work" + index, Collections.singletonList(resolver.getType()),
+                object.getType(), Modifier.PUBLIC);
+        c.addMethod(m);
+
+        Body b = Jimple.v().newBody(m);
+        Local self = Jimple.v().newLocal("r0", c.getType());
+        Local param = Jimple.v().newLocal("r1", resolver.getType());
+        b.getLocals().add(self);
+        b.getLocals().add(param);
+        b.getUnits().addLast(Jimple.v().newIdentityStmt(self, Jimple.v().newThisRef(c.getType())));
+        b.getUnits().addLast(Jimple.v().newIdentityStmt(param, Jimple.v().newParameterRef(resolver.getType(), 0)));
+
+        Local copy = null;
+        for (int k = 0; k < cursorsPerMethod; k++) {
+            Local cur = Jimple.v().newLocal("$c" + k, cursor.getType());
+            copy = Jimple.v().newLocal("$o" + k, object.getType());
+            b.getLocals().add(cur);
+            b.getLocals().add(copy);
+
+            InvokeExpr open = Jimple.v().newVirtualInvokeExpr(param, query.makeRef());
+            InvokeExpr closeCall = Jimple.v().newInterfaceInvokeExpr(cur, close.makeRef());
+            invokes.add(open);
+            invokes.add(closeCall);
+            b.getUnits().addLast(Jimple.v().newAssignStmt(cur, open));
+            b.getUnits().addLast(Jimple.v().newInvokeStmt(closeCall));
+            b.getUnits().addLast(Jimple.v().newAssignStmt(copy, cur));
+        }
+        b.getUnits().addLast(copy == null ? Jimple.v().newReturnStmt(NullConstant.v()) : Jimple.v().newReturnStmt(copy));
+        m.setActiveBody(b);
+        return m;
+    }
+
+    // Step methods that form a binary tree below the entry point, each calling a source and a sink dummy
+    private void createCallGraph() {
+        CallGraph cg = new CallGraph();
+        Scene.v().setCallGraph(cg);
+
+        SootClass mainClass = addClass("app.Main", object, 0, true);
+        SootMethod main = new SootMethod("main", Collections.emptyList(), VoidType.v(), Modifier.PUBLIC | Modifier.STATIC);
+        mainClass.addMethod(main);
+
+        for (SootClass c: appClasses) {
+            SootMethod step = new SootMethod("step", Collections.emptyList(), VoidType.v(), Modifier.PUBLIC | Modifier.STATIC);
+            c.addMethod(step);
+            stepMethods.add(step);
+        }
+
+        ArrayList<Stmt> mainStmts = new ArrayList<>();
+        if (!stepMethods.isEmpty())
+            mainStmts.add(call(stepMethods.get(0)));
+        setBody(main, mainStmts);
+        for (Stmt s: mainStmts) {
+            cg.addEdge(new Edge(main, s, s.getInvokeExpr().getMethod(), Kind.STATIC));
+        }
+
+        for (int i = 0; i < stepMethods.size(); i++) {
+            SootMethod step = stepMethods.get(i);
+            SootField f = appClasses.get(i).getFieldByName("sContext");
+            ArrayList<Stmt> stmts = new ArrayList<>();
+            for (int child = 2 * i + 1; child <= 2 * i + 2 && child < stepMethods.size(); child++) {
+                stmts.add(call(stepMethods.get(child)));
+            }
+            stmts.add(call(createDummy(f, step, DummyKind.STATIC_SET)));
+            stmts.add(call(createDummy(f, step, DummyKind.STATIC_NULL_SET)));
+            setBody(step, stmts);
+            for (Stmt s: stmts) {
+                cg.addEdge(new Edge(step, s, s.getInvokeExpr().getMethod(), Kind.STATIC));
+            }
+        }
+
+        Scene.v().setEntryPoints(Collections.singletonList(main));
+    }
+
+    private SootMethod createDummy(SootField f, SootMethod m, DummyKind kind) {
+        int id = nextDummyId++;
+        String marker = kind == DummyKind.STATIC_SET ? Instrument.SET_STATIC_VAR : Instrument.NULLIFY_STATIC_VAR;
+        Type returnType = kind == DummyKind.STATIC_SET ? f.getType() : VoidType.v();
+        SootMethod dummy = new SootMethod(f.getName() + marker + id, Collections.singletonList(f.getType()),
+                returnType, Modifier.PUBLIC | Modifier.STATIC);
+        f.getDeclaringClass().addMethod(dummy);
+        dummies.register(new DummyCallInfo(id, kind, dummy.getSignature(), f, m));
+        return dummy;
+    }
+
+    private static Stmt call(SootMethod target) {
+        ArrayList<soot.Value> args = new ArrayList<>();
+        for (Type t: target.getParameterTypes()) {
+            args.add(NullConstant.v());
+        }
+        return Jimple.v().newInvokeStmt(Jimple.v().newStaticInvokeExpr(target.makeRef(), args));
+    }
+
+    private static void setBody(SootMethod m, List<Stmt> stmts) {
+        Body b = Jimple.v().newBody(m);
+        for (Unit u: stmts) {
+            b.getUnits().addLast(u);
+        }
+        b.getUnits().addLast(Jimple.v().newReturnVoidStmt());
+        m.setActiveBody(b);
+    }
+}
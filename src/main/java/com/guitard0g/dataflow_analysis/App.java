@@ -9,16 +9,20 @@ import org.xmlpull.v1.XmlPullParserException;
 import soot.Scene;
 import soot.SootMethod;
 import soot.jimple.infoflow.InfoflowConfiguration;
+import soot.jimple.infoflow.android.InfoflowAndroidConfiguration;
 import soot.jimple.infoflow.android.SetupApplication;
 import soot.jimple.infoflow.android.manifest.ProcessManifest;
 import soot.jimple.infoflow.results.AbstractResultSourceSinkInfo;
 import soot.jimple.infoflow.results.DataFlowResult;
+import soot.jimple.infoflow.results.InfoflowPerformanceData;
 import soot.jimple.infoflow.results.InfoflowResults;
-import soot.jimple.toolkits.callgraph.CallGraph;
-import soot.jimple.toolkits.callgraph.Edge;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
 
@@ -26,96 +30,497 @@ public class App
 {
     public static String appPackage = "";
     private static int DEFAULT_TIMEOUT = 3600;
+    private static final String DEFAULT_BATCH_OUTPUT = "./batchOutput";
+    private static final long DEFAULT_CACHE_SIZE_MB = 2048;
+    // get every finding of the APK that is being analyzed as soon as it is known
+    private static final ArrayList<FindingListener> findingListeners = new ArrayList<>();
 
     public static void main(String[] args) {
         // get command line arguments
         CliOptions options = parseCliArgs(args);
-        // set some Soot global options that we need
-        configureSoot();
 
         // disable logging because it's too verbose
         BasicConfigurator.configure();
         Logger.getRootLogger().setLevel(Level.OFF);
 
-        // run the instrumentation
-        HashMap<Integer, DummyCallInfo> dummyDecoder = Instrument.instrument(options.platformPath, options.apkPath, options.resourceMode);
+        if (options.benchmarkPath != null) {
+            // analyze the experiment corpora and score the results
+            CorpusBenchmark.run(options);
+        } else if (options.batchPath != null) {
+            // analyze many APKs in this JVM
+            BatchRunner.run(options);
+        } else {
+            analyzeApk(options);
+        }
+    }
+
+    /**
+     * Instrument a single APK, run the dataflow analysis on it and print the results
+     *
+     * @param options options of the APK to analyze
+     * @return timings, counts and findings of the analysis
+     */
+    public static RunStats analyzeApk(CliOptions options) {
+        RunStats stats = new RunStats();
+        List<FindingWriter> writers = FindingWriter.open(options);
+        synchronized (findingListeners) {
+            findingListeners.add(stats);
+            findingListeners.addAll(writers);
+        }
+        try {
+            analyzeApk(options, stats);
+        } finally {
+            synchronized (findingListeners) {
+                findingListeners.clear();
+            }
+            for (FindingWriter writer: writers) {
+                writer.close();
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Pass a finding of the current APK on to everyone that listens for them, this may be called from any thread
+     *
+     * @param finding the finding
+     */
+    static void report(Finding finding) {
+        synchronized (findingListeners) {
+            for (FindingListener listener: findingListeners) {
+                listener.onFinding(finding);
+            }
+        }
+    }
+
+    // Instrument a single APK and run the dataflow analysis on it, filling in the stats
+    private static void analyzeApk(CliOptions options, RunStats stats) {
+        Metrics.begin("instrumentation");
+        // set some Soot global options that we need
+        configureSoot(options.validate);
+
+        // run the instrumentation, or reuse the instrumented APK from an earlier run of the same APK
+        InstrumentationCache cache = openCache(options);
+        InstrumentationCache.Entry cached = null;
+        String cacheKey = null;
+        DummyRegistry dummies = null;
+        if (cache != null) {
+            try {
+                cacheKey = cache.key(options);
+                cached = cache.lookup(cacheKey);
+                if (cached != null) {
+                    cached.restoreApk(options.instrumentedApkPath);
+                    System.out.print(cached.log());
+                }
+            } catch (IOException e) {
+                System.out.println("Could not read instrumentation cache: " + e);
+                cached = null;
+            }
+        }
+        // In memory mode the dataflow analysis runs on the Scene we just instrumented instead of reloading the APK.
+        // A cache hit is still loaded from disk since that is cheaper than instrumenting again.
+        boolean useInstrumentedScene = options.inMemory && cached == null;
+        if (cached == null) {
+            // the cache needs the APK file, so we still write it when caching
+            boolean writeApk = !options.inMemory || options.writeApk || cache != null;
+            dummies = instrumentAndCache(options, cache, cacheKey, writeApk);
+        }
+        Metrics.end("instrumentation");
+        // In low memory mode the Scene we instrumented is dropped before FlowDroid loads the instrumented APK
+        boolean detached = options.lowMemory && !useInstrumentedScene && dummies != null;
+        if (detached)
+            releaseInstrumentedScene(dummies);
+        // the instrumentation does not change the manifest or resources, so FlowDroid can read those from the
+        // original APK when it does not load any code
+        String analyzedApkPath = useInstrumentedScene ? options.apkPath : options.instrumentedApkPath;
 
         // initialize Soot and construct call graph
-        SetupApplication analyzer = new SetupApplication(options.platformPath, options.instrumentedApkPath);
+        Metrics.begin("callgraph");
+        SetupApplication analyzer = new SetupApplication(options.platformPath, analyzedApkPath);
+        if (useInstrumentedScene)
+            analyzer.getConfig().setSootIntegrationMode(InfoflowAndroidConfiguration.SootIntegrationMode.UseExistingInstance);
         // set analyzer options
-        configureAnalyzer(analyzer, options.timeout_seconds);
+        configureAnalyzer(analyzer, options.timeout_seconds, options.callgraph);
+        if (detached) {
+            int dropped = dummies.attach();
+            if (dropped > 0)
+                System.out.println("Dropped " + dropped + " instrumented functions missing from the instrumented APK");
+        }
+
+        if (cached != null) {
+            // the cached decoder only has signatures, so look them up in the Scene we just loaded
+            List<Finding> threadFindings;
+            try {
+                dummies = cached.resolveDummies();
+                threadFindings = cached.resolveThreadFindings();
+            } catch (IOException | IllegalArgumentException e) {
+                dummies = null;
+                threadFindings = null;
+            }
+            if (dummies == null || threadFindings == null) {
+                // the entry does not match the APK it was stored for, so drop it and start over without it
+                System.out.println("Instrumentation cache entry is unusable, instrumenting again");
+                cache.invalidate(cached);
+                soot.G.reset();
+                Instrument.reset();
+                CallPathIndex.reset();
+                Metrics.end("callgraph");
+                analyzeApk(options, stats);
+                return;
+            }
+            // the instrumentation did not run, so its thread findings come from the cache
+            Instrument.threadBugCount.addAndGet(threadFindings.size());
+            for (Finding finding: threadFindings) {
+                report(finding);
+            }
+        }
+        // in adaptive mode we only keep the cheaper call graph if it reaches every dummy that CHA reaches
+        if (options.callgraph == CallGraphTier.ADAPTIVE)
+            CallGraphTiers.fallBackIfMissed(analyzer, dummies);
+        Metrics.end("callgraph");
 
         // we need the manifest to see what our main app package is.
         // we use the main app package inside of our source/sink provider to prune out non-user functions
         // (non-user functions: anything that is LIKELY not written by the app developer)
         try {
-            ProcessManifest processMan = new ProcessManifest(options.instrumentedApkPath);
+            ProcessManifest processMan = new ProcessManifest(analyzedApkPath);
             App.appPackage = processMan.getPackageName();
         } catch (IOException | XmlPullParserException ignored) {}
 
-        if (!options.resourceMode) {
-            // MEMORY LEAK STATIC VARIABLE ANALYSIS
+        // all sources of the leaks we are looking for, whichever way they get decided
+        List<DummyCallInfo> sources = getSources(options.mode, dummies);
+        stats.sources = sources.size();
+        Metrics.set("sources", sources.size());
+        Set<DummyCallInfo> closedPaths = Collections.newSetFromMap(new IdentityHashMap<>());
+        // sources of partitions that did not finish, we can not tell if they leak
+        Set<DummyCallInfo> unknownSources = Collections.newSetFromMap(new IdentityHashMap<>());
+        // sinks that every source reached, for the incremental state
+        Map<DummyCallInfo, List<DummyCallInfo>> sinksBySource = new IdentityHashMap<>();
+
+        // With the local pre-pass, resources that never leave their method are decided without the dataflow analysis
+        Set<DummyCallInfo> decided = Collections.newSetFromMap(new IdentityHashMap<>());
+        if (options.localResources && options.mode.analyzesResources()) {
+            Metrics.begin("local_resources");
+            LocalResourceAnalysis local = new LocalResourceAnalysis(dummies);
+            local.run();
+            Metrics.end("local_resources");
+            local.printStats();
+            decided.addAll(local.getDecided());
+            closedPaths.addAll(local.getClosed());
+        }
+        // In incremental mode, sources whose code did not change since the last revision keep their old verdict
+        IncrementalAnalysis incremental = openIncremental(options);
+        if (incremental != null) {
+            incremental.prepare(dummies, sources);
+            incremental.printStats(sources.size());
+            for (DummyCallInfo source: incremental.getReused()) {
+                if (decided.contains(source))
+                    continue;
+                decided.add(source);
+                if (incremental.getVerdict(source) == IncrementalAnalysis.Verdict.CLOSED)
+                    closedPaths.add(source);
+                else if (incremental.getVerdict(source) == IncrementalAnalysis.Verdict.UNKNOWN)
+                    unknownSources.add(source);
+                for (DummyCallInfo sink: incremental.getSinks(source)) {
+                    displaySourceSinkPair(source, sink);
+                    sinksBySource.computeIfAbsent(source, k -> new ArrayList<>()).add(sink);
+                }
+            }
+        }
 
-            // this source since provider will find all instrumented dummy functions that are related to static vars
-            CustomSourceSinkProvider ssp = genSourceSinkProvider();
+        // This source sink provider will find all instrumented dummy functions for the leaks we are looking for.
+        // In combined mode the static variable and resource dummies go into the same dataflow run.
+        CustomSourceSinkProvider ssp = genSourceSinkProvider(options.mode, dummies, decided);
+        stats.sinks = ssp.getSinks().size();
+        Metrics.set("sinks", stats.sinks);
+        Metrics.begin("dataflow");
+        Collection<DataFlowResult> flows;
+        if (ssp.getSourceMethods().isEmpty()) {
+            // everything was decided already
+            flows = Collections.emptyList();
+        } else if (options.partitioned) {
+            // run a separate dataflow analysis for every static variable and resource class
+            flows = runPartitionedInfoflow(options, analyzer, dummies, decided, unknownSources, stats);
+        } else {
+            // in reachability mode we stop propagating a source once it reached a matching sink
+            ReachabilityHandler reachability = options.reachabilityOnly ? ReachabilityHandler.install(analyzer, dummies) : null;
+            // with slicing, calls that can not lead to a source or sink are passed over
+            CallGraphSlice slice = options.slice
+                    ? CallGraphSlice.install(analyzer, CallGraphSlice.sitesOf(options.mode, dummies)) : null;
             // run dataflow analysis with our source sink provider
             InfoflowResults results = analyzer.runInfoflow(ssp);
             // check for timeout (termination state 0 means it terminated normally)
             System.out.println("Termination state (0 is normal): " + results.getTerminationState());
-
-            // Traverse all dataflow paths found.
-            // If a path is found for a source, then we know that source is properly cleared and thus not a leak
-            HashSet<String> closedPaths = new HashSet<>();
-            if (!results.isEmpty()) {
-                for(DataFlowResult res: results.getResultSet()) {
-                    // Display the dataflow found (not a leak, but potentially useful information for debugging)
-                    displaySourceSinkResult(res, dummyDecoder);
-
-                    // it is MAYBE closed because it could be a precision issue that matches up a source and sink for
-                    // different variables. It is only truly closed if the source and sink are for the same variable.
-                    SootMethod maybeClosed = getClosedMethod(res, dummyDecoder);
-                    if (maybeClosed != null) {
-                        closedPaths.add(maybeClosed.getSignature());
-                    }
-                }
+            stats.terminationState = results.getTerminationState();
+            recordPerformanceData(results);
+            if (reachability != null)
+                reachability.printStats();
+            if (slice != null)
+                slice.printStats();
+            flows = results.isEmpty() ? Collections.emptyList() : results.getResultSet();
+        }
+        // Call the instrumented code that no entry point reaches from synthetic entry points, analyzed in batches. The
+        // harness only changes the call graph now, so the normal analysis above ran without it.
+        if (options.harnessBatchSize > 0) {
+            Metrics.begin("entry_points");
+            EntryPointHarness harness = new EntryPointHarness(options.mode, dummies, options.harnessBatchSize);
+            harness.build();
+            Metrics.end("entry_points");
+            // the sources only the harness reaches are reported like all others
+            sources.addAll(harness.getSources());
+            stats.sources = sources.size();
+            Metrics.set("sources", sources.size());
+            ArrayList<DataFlowResult> allFlows = new ArrayList<>(flows);
+            allFlows.addAll(harness.run(options, analyzedApkPath, decided, unknownSources));
+            flows = allFlows;
+        }
+        Metrics.end("dataflow");
+
+        // a leak verdict is only certain if the dataflow analysis finished, or was not needed because every source was
+        // decided without it
+        boolean finished = stats.terminationState == 0 || stats.terminationState == RunStats.NOT_RUN;
+        Finding.State state = finished ? Finding.State.COMPLETE : Finding.State.INCOMPLETE;
+
+        // Traverse all dataflow paths found.
+        // If a path is found for a source, then we know that source is properly cleared and thus not a leak
+        for(DataFlowResult res: flows) {
+            // it is MAYBE closed because it could be a precision issue that matches up a source and sink for
+            // different variables. It is only truly closed if the source and sink are for the same variable.
+            // This also keeps static variable sources from matching resource sinks and vice versa.
+            DummyCallInfo maybeClosed = getClosedSource(res, dummies);
+            if (maybeClosed != null) {
+                // Display the dataflow found (not a leak, but potentially useful information for debugging)
+                DummyCallInfo sink = getDummyInfo(res.getSink(), dummies);
+                displaySourceSinkPair(maybeClosed, sink);
+                closedPaths.add(maybeClosed);
+                sinksBySource.computeIfAbsent(maybeClosed, k -> new ArrayList<>()).add(sink);
             }
+        }
 
+        if (options.mode.analyzesMemory()) {
+            // MEMORY LEAK STATIC VARIABLE ANALYSIS
             System.out.println("==========================(Potential Leaks)==============================");
             // Display all variables that were not properly cleared.
             // To do this, we look at all static variables that we instrumented and then display all of the ones
             //     that did not have a dataflow path.
-            for (SootMethod m: ssp.getSourceMethods()) {
-                if (!closedPaths.contains(m.getSignature())) {
-                    displayLeakedField(m, dummyDecoder);
-                }
-            }
-        } else {
-            // Get the source sink provider for resource allocations/deallocations
-            CustomSourceSinkProvider resourceSsp = genResourceSourceSinkProvider();
-            // run the dataflow analysis
-            InfoflowResults resourceResults = analyzer.runInfoflow(resourceSsp);
-
-            // Similarly to static variables, we collect all resource allocations that are properly cleared
-            HashSet<String> closedResourcePaths = new HashSet<>();
-            if (!resourceResults.isEmpty()) {
-                for(DataFlowResult res: resourceResults.getResultSet()) {
-                    displaySourceSinkResult(res, dummyDecoder);
-
-                    SootMethod maybeClosed = getClosedMethod(res, dummyDecoder);
-                    if (maybeClosed != null) {
-                        closedResourcePaths.add(maybeClosed.getSignature());
-                    }
+            for (DummyCallInfo source: sources) {
+                if (source.kind == DummyKind.STATIC_SET && !closedPaths.contains(source) && !unknownSources.contains(source)
+                        && isReportedField(source)) {
+                    displayLeakedField(source);
+                    report(Finding.leak(Finding.Kind.STATIC_VARIABLE_LEAK, source, state));
                 }
             }
+        }
 
+        if (options.mode.analyzesResources()) {
             System.out.println("==========================(Resources)==============================");
             // Similarly to static variables, display non-cleared resources for which no dataflow was found
-            for (SootMethod m: resourceSsp.getSourceMethods()) {
-                if (!closedResourcePaths.contains(m.getSignature())) {
-                    displayLeakedResource(m, dummyDecoder);
+            for (DummyCallInfo source: sources) {
+                if (source.kind == DummyKind.RESOURCE_OPEN && !closedPaths.contains(source) && !unknownSources.contains(source)) {
+                    displayLeakedResource(source);
+                    report(Finding.leak(Finding.Kind.RESOURCE_LEAK, source, state));
+                }
+            }
+        }
+
+        if (!unknownSources.isEmpty()) {
+            System.out.println("==========================(Unknown)==============================");
+            // The analysis of these sources did not finish, so we can neither report them as leaks nor as closed
+            for (DummyCallInfo source: sources) {
+                if (unknownSources.contains(source) && !closedPaths.contains(source)) {
+                    displayUnknownSource(source);
+                    report(Finding.leak(Finding.Kind.UNKNOWN, source, Finding.State.UNKNOWN));
+                }
+            }
+        }
+
+        if (incremental != null) {
+            try {
+                incremental.save(sources, closedPaths, unknownSources, sinksBySource);
+            } catch (IOException e) {
+                System.out.println("Could not write incremental state: " + e);
+            }
+        }
+
+        Metrics.set("findings", stats.findings.size());
+        Metrics.set("thread_bugs", Instrument.threadBugCount.get());
+        stats.phaseMillis.putAll(Metrics.getPhaseMillis());
+        if (options.lowMemory)
+            Metrics.printPeakHeap();
+        if (options.metricsPath != null) {
+            try {
+                Metrics.write(options.metricsPath);
+            } catch (IOException e) {
+                System.out.println("Could not write metrics: " + e);
+            }
+        }
+    }
+
+    /**
+     * Drop everything that still refers to the Scene we instrumented, so that it can be collected before FlowDroid
+     * loads the instrumented APK into a new one
+     *
+     * @param dummies metadata of all instrumented functions, only their signatures are kept until attach()
+     */
+    private static void releaseInstrumentedScene(DummyRegistry dummies) {
+        dummies.detach();
+        // thread findings built the path index on the instrumented call graph
+        CallPathIndex.reset();
+        soot.G.reset();
+    }
+
+    // Keep FlowDroid's own split of the dataflow analysis (negative values are ones FlowDroid did not measure)
+    private static void recordPerformanceData(InfoflowResults results) {
+        InfoflowPerformanceData performance = results.getPerformanceData();
+        if (performance == null)
+            return;
+        Metrics.set("flowdroid.callgraph_seconds", performance.getCallgraphConstructionSeconds());
+        Metrics.set("flowdroid.taint_propagation_seconds", performance.getTaintPropagationSeconds());
+        Metrics.set("flowdroid.path_reconstruction_seconds", performance.getPathReconstructionSeconds());
+        Metrics.set("flowdroid.max_memory_mb", performance.getMaxMemoryConsumption());
+    }
+
+    /**
+     * Run one dataflow analysis per static variable or resource class on the call graph we already built
+     *
+     * @param options options of the APK to analyze
+     * @param analyzer analyzer that built the call graph, every partition reuses it
+     * @param dummies metadata of all instrumented functions
+     * @param decided sources that were already decided without the dataflow analysis
+     * @param unknownSources gets the sources of all partitions that timed out or failed
+     * @param stats gets the number of partitions that did not finish
+     * @return dataflow results of all partitions
+     */
+    private static Collection<DataFlowResult> runPartitionedInfoflow(CliOptions options,
+                                                                     SetupApplication analyzer,
+                                                                     DummyRegistry dummies,
+                                                                     Set<DummyCallInfo> decided,
+                                                                     Set<DummyCallInfo> unknownSources,
+                                                                     RunStats stats) {
+        List<Partition> partitions = PartitionedInfoflow.partition(options.mode, dummies, decided);
+        PartitionedInfoflow infoflow = new PartitionedInfoflow(analyzer, options.partitionTimeoutSeconds, options.threads);
+        if (options.reachabilityOnly)
+            infoflow.setReachabilityOnly(dummies);
+        if (options.slice)
+            infoflow.setSliced(dummies);
+        infoflow.run(partitions);
+
+        ArrayList<DataFlowResult> flows = new ArrayList<>();
+        int unknown = 0;
+        for (Partition partition: partitions) {
+            flows.addAll(partition.results);
+            if (partition.unknown) {
+                unknown++;
+                System.out.println("Partition did not finish: " + partition.name + " after " + partition.millis + " ms"
+                        + (partition.error == null ? "" : " (" + partition.error + ")"));
+                for (SootMethod source: partition.sources) {
+                    unknownSources.add(dummies.get(source));
                 }
             }
         }
+        System.out.println("Partitions: " + partitions.size() + " (" + unknown + " did not finish)");
+        stats.unfinishedPartitions = unknown;
+        // the sources of unfinished partitions are reported as unknown on their own, the verdicts of all other
+        // partitions are complete
+        stats.terminationState = 0;
+        return flows;
+    }
+
+    /**
+     * Display a source whose partition did not finish
+     *
+     * @param source Metadata of the source dummy
+     */
+    private static void displayUnknownSource(DummyCallInfo source) {
+        System.out.println("UNKNOWN (ANALYSIS DID NOT FINISH): ");
+        System.out.println("SOURCE: ");
+        System.out.println("\t" + (source.kind.isStaticVariable() ? source.f : source.resOpen));
+        System.out.println("SOURCE METHOD: ");
+        System.out.println("\t" + source.m);
+    }
+
+    // Get the instrumentation cache of these options (null if caching is off or the cache can not be used)
+    private static InstrumentationCache openCache(CliOptions options) {
+        if (options.cacheDir == null)
+            return null;
+        try {
+            return new InstrumentationCache(options.cacheDir, options.cacheSizeMb);
+        } catch (IOException e) {
+            System.out.println("Could not open instrumentation cache: " + e);
+            return null;
+        }
+    }
+
+    // Get the incremental state of these options (null if incremental mode is off or the state can not be used)
+    private static IncrementalAnalysis openIncremental(CliOptions options) {
+        if (options.incrementalDir == null)
+            return null;
+        String dir = options.incrementalDir;
+        // in a batch all revisions of an app share the state of its package, so each one finds the one before
+        if (options.incrementalPerApp)
+            dir = Paths.get(dir, incrementalName(options.apkPath)).toString();
+        try {
+            return new IncrementalAnalysis(dir, options.mode);
+        } catch (IOException e) {
+            System.out.println("Could not open incremental state: " + e);
+            return null;
+        }
+    }
+
+    // Name of the incremental state of an app in a batch: its package, or the name of its results without a manifest
+    private static String incrementalName(String apk) {
+        try {
+            return new ProcessManifest(apk).getPackageName();
+        } catch (IOException | XmlPullParserException e) {
+            System.out.println("Could not read the package of " + apk + ", keeping its state on its own: " + e);
+            return CliOptions.resultName(apk);
+        }
+    }
+
+    /**
+     * Run the instrumentation and store its result in the cache
+     *
+     * @param options options of the APK to analyze
+     * @param cache instrumentation cache, or null if caching is off
+     * @param cacheKey key of the APK in the cache
+     * @param writeApk whether or not to write the instrumented APK
+     * @return metadata of all instrumented functions
+     */
+    private static DummyRegistry instrumentAndCache(CliOptions options, InstrumentationCache cache,
+                                                                  String cacheKey, boolean writeApk) {
+        if (cache == null || cacheKey == null)
+            return Instrument.instrument(options.platformPath, options.apkPath, options.mode, options.threads, writeApk,
+                    options.lowMemory);
+
+        // keep a copy of everything the instrumentation prints and reports so that a cache hit can do the same
+        PrintStream console = System.out;
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        ArrayList<Finding> threadFindings = new ArrayList<>();
+        FindingListener collector = finding -> {
+            if (finding.kind == Finding.Kind.THREAD_LEAK)
+                threadFindings.add(finding);
+        };
+        synchronized (findingListeners) {
+            findingListeners.add(collector);
+        }
+        DummyRegistry dummies;
+        try {
+            System.setOut(new PrintStream(new TeeOutputStream(console, log), true));
+            dummies = Instrument.instrument(options.platformPath, options.apkPath, options.mode, options.threads, writeApk,
+                    options.lowMemory);
+        } finally {
+            System.setOut(console);
+            synchronized (findingListeners) {
+                findingListeners.remove(collector);
+            }
+        }
+
+        try {
+            cache.store(cacheKey, options.instrumentedApkPath, dummies, threadFindings, log.toString());
+        } catch (IOException e) {
+            System.out.println("Could not write instrumentation cache: " + e);
+        }
+        return dummies;
     }
 
     /**
@@ -132,9 +537,37 @@ public class App
         options.addOption(androidPlatformsOpt);
 
         Option apkOpt = new Option("a", "apk", true, "path to APK file to analyze");
-        apkOpt.setRequired(true);
+        apkOpt.setRequired(false);
         options.addOption(apkOpt);
 
+        Option batchOpt = new Option("b", "batch", true, "directory of APKs or file listing one APK path per line to analyze in one run");
+        batchOpt.setRequired(false);
+        options.addOption(batchOpt);
+
+        Option benchmarkOpt = new Option(null, "benchmark", true, "corpus directory (with an apks directory and optionally droidleaks.xlsx) or directory of corpora to analyze and score against the known leaks");
+        benchmarkOpt.setRequired(false);
+        options.addOption(benchmarkOpt);
+
+        Option baselineOpt = new Option(null, "baseline", true, "output directory of an earlier --benchmark run, fail if a known leak it found is missed now");
+        baselineOpt.setRequired(false);
+        options.addOption(baselineOpt);
+
+        Option jsonlOpt = new Option(null, "jsonl", true, "file to stream the findings to as JSON lines (a directory with one file per APK in batch and benchmark runs)");
+        jsonlOpt.setRequired(false);
+        options.addOption(jsonlOpt);
+
+        Option sarifOpt = new Option(null, "sarif", true, "file to stream the findings to as SARIF (a directory with one file per APK in batch and benchmark runs)");
+        sarifOpt.setRequired(false);
+        options.addOption(sarifOpt);
+
+        Option metricsOpt = new Option(null, "metrics", true, "file to write phase timings and counters to as JSON (a directory with one file per APK in batch and benchmark runs)");
+        metricsOpt.setRequired(false);
+        options.addOption(metricsOpt);
+
+        Option outputOpt = new Option("o", "output", true, "directory for the per-APK results and summary of a batch or benchmark run (default ./batchOutput)");
+        outputOpt.setRequired(false);
+        options.addOption(outputOpt);
+
         Option timeoutOpt = new Option("t", "timeout", true, "Timeout in minutes for the dataflow analysis");
         timeoutOpt.setRequired(false);
         options.addOption(timeoutOpt);
@@ -142,6 +575,61 @@ public class App
         Option resourceOpt = new Option("r", "resource", false, "flag to switch to system resource analysis");
         options.addOption(resourceOpt);
 
+        Option combinedOpt = new Option("c", "combined", false, "flag to run memory leak and resource leak analysis together");
+        options.addOption(combinedOpt);
+
+        Option threadsOpt = new Option("j", "threads", true, "number of threads for the instrumentation checks (bodies are still built on one thread) and the dataflow solver of partitioned analysis (default 1)");
+        threadsOpt.setRequired(false);
+        options.addOption(threadsOpt);
+
+        Option callgraphOpt = new Option("g", "callgraph", true, "call graph algorithm: CHA (default), RTA, VTA, SPARK or ADAPTIVE (RTA, falling back to CHA if it misses instrumented code)");
+        callgraphOpt.setRequired(false);
+        options.addOption(callgraphOpt);
+
+        Option inMemoryOpt = new Option("m", "in-memory", false, "flag to run the dataflow analysis on the instrumented code directly instead of writing and reloading the APK");
+        options.addOption(inMemoryOpt);
+
+        Option writeApkOpt = new Option(null, "write-apk", false, "flag to still write the instrumented APK in in-memory mode");
+        options.addOption(writeApkOpt);
+
+        Option validateOpt = new Option(null, "validate", false, "flag to have Soot validate every body and class it touches (debug mode, slow)");
+        options.addOption(validateOpt);
+
+        Option lowMemoryOpt = new Option(null, "low-memory", false, "flag to release method bodies and the instrumented Scene as early as possible and print the peak heap of every phase");
+        options.addOption(lowMemoryOpt);
+
+        Option partitionedOpt = new Option("P", "partitioned", false, "flag to run a separate dataflow analysis for every static variable and resource class");
+        options.addOption(partitionedOpt);
+
+        Option partitionTimeoutOpt = new Option(null, "partition-timeout", true, "Timeout in minutes for the dataflow analysis of a single partition (default: --timeout)");
+        partitionTimeoutOpt.setRequired(false);
+        options.addOption(partitionTimeoutOpt);
+
+        Option localOpt = new Option("l", "local", false, "flag to decide resources that never leave the method they are opened in without the dataflow analysis");
+        options.addOption(localOpt);
+
+        Option reachabilityOpt = new Option(null, "reachability", false, "flag to only check if every source reaches a sink, without paths (faster)");
+        options.addOption(reachabilityOpt);
+
+        Option entryPointsOpt = new Option("e", "entry-points", true, "add synthetic entry points for unreachable methods with instrumented code, analyzed in batches of at most this many methods");
+        entryPointsOpt.setRequired(false);
+        options.addOption(entryPointsOpt);
+
+        Option sliceOpt = new Option("s", "slice", false, "flag to skip calls that can not lead to an instrumented source or sink in the dataflow analysis");
+        options.addOption(sliceOpt);
+
+        Option cacheOpt = new Option("k", "cache", true, "directory to cache instrumented APKs in across runs");
+        cacheOpt.setRequired(false);
+        options.addOption(cacheOpt);
+
+        Option incrementalOpt = new Option("i", "incremental", true, "directory to keep the results in for the next revision of the app, only changed code is analyzed again");
+        incrementalOpt.setRequired(false);
+        options.addOption(incrementalOpt);
+
+        Option cacheSizeOpt = new Option(null, "cache-size", true, "maximum size of the instrumentation cache in MB (default 2048)");
+        cacheSizeOpt.setRequired(false);
+        options.addOption(cacheSizeOpt);
+
         CommandLineParser parser = new DefaultParser();
         HelpFormatter formatter = new HelpFormatter();
         CommandLine cmd;
@@ -151,12 +639,49 @@ public class App
 
             String platformsPath = cmd.getOptionValue("platforms");
             String apkPath = cmd.getOptionValue("apk");
-            boolean resourceMode = cmd.hasOption("resource");
+            String batchPath = cmd.getOptionValue("batch");
+            String benchmarkPath = cmd.getOptionValue("benchmark");
+            if ((apkPath != null ? 1 : 0) + (batchPath != null ? 1 : 0) + (benchmarkPath != null ? 1 : 0) != 1)
+                throw new ParseException("Exactly one of --apk, --batch and --benchmark is required!");
+            AnalysisMode mode = AnalysisMode.MEMORY;
+            if (cmd.hasOption("combined"))
+                mode = AnalysisMode.COMBINED;
+            else if (cmd.hasOption("resource"))
+                mode = AnalysisMode.RESOURCE;
             int timeout = DEFAULT_TIMEOUT;
-            if (cmd.hasOption("timout"))
+            if (cmd.hasOption("timeout"))
                 timeout = Integer.parseInt(cmd.getOptionValue("timeout"));
-
-            return new CliOptions(apkPath, platformsPath, resourceMode, timeout);
+            int threads = 1;
+            if (cmd.hasOption("threads"))
+                threads = Integer.parseInt(cmd.getOptionValue("threads"));
+
+            CliOptions cliOptions = new CliOptions(apkPath, platformsPath, mode, timeout, threads);
+            if (batchPath != null)
+                cliOptions.setBatch(batchPath, cmd.getOptionValue("output", DEFAULT_BATCH_OUTPUT));
+            if (benchmarkPath != null)
+                cliOptions.setBenchmark(benchmarkPath, cmd.getOptionValue("output", DEFAULT_BATCH_OUTPUT),
+                        cmd.getOptionValue("baseline"));
+            if (cmd.hasOption("partitioned"))
+                cliOptions.setPartitioned(Integer.parseInt(cmd.getOptionValue("partition-timeout", Integer.toString(timeout))));
+            if (cmd.hasOption("callgraph"))
+                cliOptions.setCallgraph(cmd.getOptionValue("callgraph"));
+            cliOptions.reachabilityOnly = cmd.hasOption("reachability");
+            cliOptions.localResources = cmd.hasOption("local");
+            cliOptions.slice = cmd.hasOption("slice");
+            if (cmd.hasOption("entry-points"))
+                cliOptions.setHarnessBatchSize(Integer.parseInt(cmd.getOptionValue("entry-points")));
+            cliOptions.inMemory = cmd.hasOption("in-memory");
+            cliOptions.writeApk = cmd.hasOption("write-apk");
+            cliOptions.lowMemory = cmd.hasOption("low-memory");
+            cliOptions.validate = cmd.hasOption("validate");
+            cliOptions.incrementalDir = cmd.getOptionValue("incremental");
+            cliOptions.metricsPath = cmd.getOptionValue("metrics");
+            cliOptions.jsonlPath = cmd.getOptionValue("jsonl");
+            cliOptions.sarifPath = cmd.getOptionValue("sarif");
+            if (cmd.hasOption("cache"))
+                cliOptions.setCache(cmd.getOptionValue("cache"),
+                        Long.parseLong(cmd.getOptionValue("cache-size", Long.toString(DEFAULT_CACHE_SIZE_MB))));
+            return cliOptions;
         } catch (ParseException e) {
             System.out.println(e.getMessage());
             formatter.printHelp("APK analyzer", options);
@@ -168,8 +693,10 @@ public class App
 
     /**
      *  Set some necessary soot options
+     *
+     * @param validate whether or not Soot should validate every body it touches (debug mode)
      */
-    private static void configureSoot() {
+    private static void configureSoot(boolean validate) {
         // Basic options for configuring output of instrumentation
         soot.options.Options.v().set_src_prec(soot.options.Options.src_prec_apk);
         soot.options.Options.v().set_output_format(soot.options.Options.output_format_dex);
@@ -184,16 +711,15 @@ public class App
         soot.options.Options.v().set_process_multiple_dex(true);
         soot.options.Options.v().set_whole_program(true);
 
-        // Make soot validate our instrumented APK so that we are instrumenting in a valid way
-        soot.options.Options.v().set_validate(true);
+        // The bodies we instrument are always validated once after their rewrites. Having Soot validate every body
+        // in every phase as well is only worth its cost when debugging the instrumentation.
+        soot.options.Options.v().set_validate(validate);
     }
 
     /**
      *  Set some necessary analyzer options
      */
-    private static void configureAnalyzer(SetupApplication analyzer, int timeout) {
-        // we use this imprecise callgraph algorithm to make sure edges are not pruned out
-        analyzer.getConfig().setCallgraphAlgorithm(InfoflowConfiguration.CallgraphAlgorithm.CHA);
+    private static void configureAnalyzer(SetupApplication analyzer, int timeout, CallGraphTier callgraph) {
         // we need to disable code elimination or else our instrumented functions could disappear
         analyzer.getConfig().setCodeEliminationMode(InfoflowConfiguration.CodeEliminationMode.NoCodeElimination);
         // these two options are mostly unnecessary so disabling them is ok to improve runtime
@@ -201,40 +727,36 @@ public class App
         analyzer.getConfig().setEnableArrayTracking(false);
         // 1 hour timeout
         analyzer.getConfig().setDataFlowTimeout(timeout);
-        // do an initial callgraph construction so that we have access to the functions for our dataflow analyzer setup
-        analyzer.constructCallgraph();
+        // do an initial callgraph construction so that we have access to the functions for our dataflow analyzer setup.
+        // CHA (the default) makes sure edges are not pruned out, the other algorithms are cheaper on large apps
+        CallGraphTiers.construct(analyzer, callgraph.algorithm);
     }
 
     /**
-     * Get the SootMethod object that contains a closed memory or resource
+     * Get the source dummy of a closed memory or resource
      *
      * @param res Dataflow result with source and sink info
-     * @param decoder Metadata for all instrumented methods
-     * @return SootMethod of the closed result that this DataFlowResult represents
+     * @param dummies Metadata for all instrumented methods
+     * @return metadata of the source that this DataFlowResult closes, or null if it does not close one
      */
-    private static SootMethod getClosedMethod(DataFlowResult res, HashMap<Integer, DummyCallInfo> decoder) {
-        int sourceSuffix = getIntSuffix(res.getSource());
-        int sinkSuffix = getIntSuffix(res.getSink());
-        DummyCallInfo source = decoder.get(sourceSuffix);
-        DummyCallInfo sink = decoder.get(sinkSuffix);
+    private static DummyCallInfo getClosedSource(DataFlowResult res, DummyRegistry dummies) {
+        DummyCallInfo source = getDummyInfo(res.getSource(), dummies);
+        DummyCallInfo sink = getDummyInfo(res.getSink(), dummies);
 
-        if (source.f != sink.f) {
+        if (source == null || sink == null || source.f != sink.f) {
             // invalid result, different variables
             return null;
         } else {
-            return res.getSource().getStmt().getInvokeExpr().getMethod();
+            return source;
         }
     }
 
     /**
      * Display resource leak and the first found path to the leak from a program entrypoint
      *
-     * @param m SootMethod where the leak occurs
-     * @param decoder Metadata for all instrumented functions
+     * @param source Metadata of the source dummy of the leak
      */
-    private static void displayLeakedResource(SootMethod m, HashMap<Integer, DummyCallInfo> decoder) {
-        int sourceSuffix = getIntSuffix(m);
-        DummyCallInfo source = decoder.get(sourceSuffix);
+    private static void displayLeakedResource(DummyCallInfo source) {
         System.out.println("PATH NOT CLOSED (POTENTIAL LEAK): ");
         System.out.println("SOURCE: ");
         System.out.println("\t" + source.resOpen);
@@ -253,18 +775,17 @@ public class App
         }
     }
 
+    // Only leaked variables that can hold a View or an Activity are reported
+    private static boolean isReportedField(DummyCallInfo source) {
+        return source.f.getSignature().contains("View") || source.f.getSignature().contains("Activity");
+    }
+
     /**
      * Display memory leak and the first found path to the leak from a program entrypoint
      *
-     * @param m SootMethod where the leak occurs
-     * @param decoder Metadata for all instrumented functions
+     * @param source Metadata of the source dummy of the leak
      */
-    private static void displayLeakedField(SootMethod m, HashMap<Integer, DummyCallInfo> decoder) {
-        int sourceSuffix = getIntSuffix(m);
-        DummyCallInfo source = decoder.get(sourceSuffix);
-        if (!source.f.getSignature().contains("View") && !source.f.getSignature().contains("Activity")) {
-            return;
-        }
+    private static void displayLeakedField(DummyCallInfo source) {
         System.out.println("PATH NOT CLOSED (POTENTIAL LEAK): ");
         System.out.println("Variable: ");
         System.out.println("\t" + source.f);
@@ -287,54 +808,23 @@ public class App
     }
 
     /**
-     * Simple BFS to try to find a path to a given method
+     * Find the shortest call path to a given method
      *
      * @param m SootMethod target of the search
      * @return call path from an entrypoint to the method
      */
     public static ArrayList<SootMethod> getMethodPath(SootMethod m) {
-        CallGraph cg = Scene.v().getCallGraph();
-        // BFS to find SootMethod m
-        Set<SootMethod> seen = new HashSet<>();
-        Queue<PathBuilder> q = new LinkedList<>();
-        for(SootMethod entryPoint: Scene.v().getEntryPoints()) {
-            q.add(new PathBuilder(entryPoint, new ArrayList<SootMethod>()));
-        }
-
-        while (!q.isEmpty()) {
-            PathBuilder next = q.remove();
-            seen.add(next.m);
-            if (next.m.getSignature().equals(m.getSignature())) {
-                return next.path;
-            }
-            for (Iterator<Edge> it = cg.edgesOutOf(next.m); it.hasNext(); ) {
-                Edge e = it.next();
-
-                if (!seen.contains(e.tgt()))
-                    q.add(new PathBuilder(e.tgt(), next.path));
-            }
-        }
-
-        return null;
+        // the path index is built once per call graph, so this is just a walk up the BFS tree
+        return CallPathIndex.forCurrentScene().getPath(m);
     }
 
     /**
-     * Print out info about a dataflow result
+     * Print out info about a dataflow path from a source to a sink of the same variable or resource
      *
-     * @param res Dataflow result
-     * @param decoder Metadata of all instrumented functions
+     * @param source Metadata of the source dummy
+     * @param sink Metadata of the sink dummy
      */
-    private static void displaySourceSinkResult(DataFlowResult res, HashMap<Integer, DummyCallInfo> decoder) {
-        int sourceSuffix = getIntSuffix(res.getSource());
-        int sinkSuffix = getIntSuffix(res.getSink());
-        DummyCallInfo source = decoder.get(sourceSuffix);
-        DummyCallInfo sink = decoder.get(sinkSuffix);
-
-        if (source.f != sink.f) {
-            // invalid result, different variables
-            return;
-        }
-
+    private static void displaySourceSinkPair(DummyCallInfo source, DummyCallInfo sink) {
         System.out.println("DATAFLOW PATH FOUND: ");
         System.out.println("Variable: " + source.f);
         System.out.println("SOURCE: ");
@@ -343,131 +833,71 @@ public class App
         System.out.println("\t" + sink.resOpen);
     }
 
-    // get the int suffix of an instrumentation function for use with the decoder to retrieve metadata
-    private static int getIntSuffix(AbstractResultSourceSinkInfo res) {
-        return getIntSuffix(res.getStmt().getInvokeExpr().getMethod());
-    }
-
-    // get the int suffix of an instrumentation function for use with the decoder to retrieve metadata
-    private static int getIntSuffix(SootMethod m) {
-        String methodName = m.getName();
-        ArrayList<String> pieces = new ArrayList(Arrays.asList(methodName.split("__")));
-        String numString = pieces.get(pieces.size() - 1);
-
-        try {
-            return Integer.parseInt(numString);
-        } catch (NumberFormatException e) {
-            System.out.println("Could not parse method suffix: " + e);
-            System.exit(1);
-            return -1;
-        }
+    // get the metadata of the instrumentation function called by a source or sink statement
+    private static DummyCallInfo getDummyInfo(AbstractResultSourceSinkInfo res, DummyRegistry dummies) {
+        return dummies.get(res.getStmt().getInvokeExpr().getMethod());
     }
 
-
     /**
-     * Find all memory leak instrumented functions and gather them into sources and sinks
+     * Get the sources of the leaks we are looking for that the dataflow analysis could be given
      *
-     * @return our memory leak source sink provider
+     * @param mode which kinds of leaks we are looking for
+     * @param dummies all dummy methods the instrumentation created
+     * @return metadata of all reachable sources in application code, in the order they were instrumented
      */
-    private static CustomSourceSinkProvider genSourceSinkProvider() {
-        CustomSourceSinkProvider ssProvider = new CustomSourceSinkProvider();
-
-        // get all instrumented functions where a variable is set to null and add them as sinks
-        ArrayList<SootMethod> nullSets = getNullSetSinkMethods();
-        for (SootMethod nullSet: nullSets) {
-            ssProvider.addSinkMethod(nullSet);
-        }
-
-        // get all instrumented functions where a variable is set to non-null and add them as sources
-        for (SootMethod m: getSetSinkMethods()) {
-            ssProvider.addSourceMethod(m);
+    private static List<DummyCallInfo> getSources(AnalysisMode mode, DummyRegistry dummies) {
+        ArrayList<DummyCallInfo> sources = new ArrayList<>();
+        ArrayList<SootMethod> methods = new ArrayList<>();
+        if (mode.analyzesMemory())
+            methods.addAll(dummies.getReachable(DummyKind.STATIC_SET));
+        if (mode.analyzesResources())
+            methods.addAll(dummies.getReachable(DummyKind.RESOURCE_OPEN));
+        for (SootMethod m: methods) {
+            // the source sink provider skips the same methods
+            if (CustomSourceSinkProvider.isAppMethod(m))
+                sources.add(dummies.get(m));
         }
-
-        return ssProvider;
+        return sources;
     }
 
     /**
-     * Find all resource leak instrumented functions and gather them into sources and sinks
+     * Find all instrumented functions of the leaks we are looking for and gather them into sources and sinks
      *
-     * @return our resource leak source sink provider
+     * @param mode which kinds of leaks we are looking for
+     * @param dummies all dummy methods the instrumentation created
+     * @param decided sources that were already decided without the dataflow analysis
+     * @return our source sink provider
      */
-    private static CustomSourceSinkProvider genResourceSourceSinkProvider() {
+    private static CustomSourceSinkProvider genSourceSinkProvider(AnalysisMode mode, DummyRegistry dummies,
+                                                                  Set<DummyCallInfo> decided) {
         CustomSourceSinkProvider ssProvider = new CustomSourceSinkProvider();
 
-        ArrayList<SootMethod> sources = getResourceSourceMethods();
-        for (SootMethod source: sources) {
-            ssProvider.addSourceMethod(source);
-        }
-
-        ArrayList<SootMethod> sinks = getResourceSinkMethods();
-        for (SootMethod sink: sinks) {
-            ssProvider.addSinkMethod(sink);
-        }
-
-        return ssProvider;
-    }
-
-    // MEMORY LEAKS: Traverse callgraph for instrumented null set functions
-    private static ArrayList<SootMethod> getNullSetSinkMethods() {
-        CallGraph cg = Scene.v().getCallGraph();
-        ArrayList<SootMethod> nullSetMethods = new ArrayList<>();
-
-        for (Edge e : cg) {
-            if (e.tgt().getName().contains(Instrument.NULLIFY_STATIC_VAR)) {
-                nullSetMethods.add(e.tgt());
+        if (mode.analyzesMemory()) {
+            // all reachable instrumented functions where a variable is set to null are sinks
+            for (SootMethod nullSet: dummies.getReachable(DummyKind.STATIC_NULL_SET)) {
+                ssProvider.addSinkMethod(nullSet);
             }
-        }
-        return nullSetMethods;
-    }
-
-    // MEMORY LEAKS: Traverse callgraph for instrumented set functions
-    private static ArrayList<SootMethod> getSetSinkMethods() {
-        CallGraph cg = Scene.v().getCallGraph();
-        ArrayList<SootMethod> setMethods = new ArrayList<>();
 
-        for (Edge e : cg) {
-            if (e.tgt().getName().contains(Instrument.SET_STATIC_VAR)) {
-                setMethods.add(e.tgt());
+            // all reachable instrumented functions where a variable is set to non-null are sources
+            for (SootMethod m: dummies.getReachable(DummyKind.STATIC_SET)) {
+                if (!decided.contains(dummies.get(m)))
+                    ssProvider.addSourceMethod(m);
             }
         }
-        return setMethods;
-    }
-
-    // RESOURCE LEAKS: Traverse callgraph for instrumented resource allocation functions
-    private static ArrayList<SootMethod> getResourceSourceMethods() {
-        CallGraph cg = Scene.v().getCallGraph();
-        ArrayList<SootMethod> setMethods = new ArrayList<>();
 
-        for (Edge e : cg) {
-            if (e.tgt().getName().contains(Instrument.OPEN_RESOURCE)) {
-                setMethods.add(e.tgt());
+        if (mode.analyzesResources()) {
+            // resource allocations are sources and deallocations are sinks
+            for (SootMethod source: dummies.getReachable(DummyKind.RESOURCE_OPEN)) {
+                if (!decided.contains(dummies.get(source)))
+                    ssProvider.addSourceMethod(source);
             }
-        }
-        return setMethods;
-    }
-
-    // RESOURCE LEAKS: Traverse callgraph for instrumented resource deallocation functions
-    private static ArrayList<SootMethod> getResourceSinkMethods() {
-        CallGraph cg = Scene.v().getCallGraph();
-        ArrayList<SootMethod> setMethods = new ArrayList<>();
 
-        for (Edge e : cg) {
-            if (e.tgt().getName().contains(Instrument.CLOSE_RESOURCE)) {
-                setMethods.add(e.tgt());
+            for (SootMethod sink: dummies.getReachable(DummyKind.RESOURCE_CLOSE)) {
+                ssProvider.addSinkMethod(sink);
             }
         }
-        return setMethods;
-    }
-}
 
-class PathBuilder {
-    public ArrayList<SootMethod> path;
-    public SootMethod m;
-
-    public PathBuilder(SootMethod m, ArrayList<SootMethod> leadingPath) {
-        this.path = new ArrayList<>(leadingPath);
-        this.path.add(m);
-        this.m = m;
+        return ssProvider;
     }
 }
 
@@ -475,22 +905,159 @@ class CliOptions {
     public String apkPath;
     public String instrumentedApkPath;
     public String platformPath;
-    public boolean resourceMode;
+    public AnalysisMode mode;
     public int timeout_seconds;
     public int timeout_minutes;
-
-    public CliOptions(String a, String p, boolean r, int timeout_m) throws ParseException {
-        if(!Files.isReadable(Paths.get(a)))
+    public int threads;
+    // batch mode: directory or list file of the APKs and directory for their results (both null otherwise)
+    public String batchPath;
+    public String batchOutputDir;
+    // benchmark mode: corpus directory (batchOutputDir is the report directory) and the report directory of an
+    // earlier run to compare with (both null otherwise, the baseline is optional)
+    public String benchmarkPath;
+    public String baselineDir;
+    // hand the instrumented Scene to the dataflow analysis instead of reloading the APK, and whether or not we
+    // still write the instrumented APK in that case
+    public boolean inMemory;
+    public boolean writeApk;
+    // release Jimple bodies and the instrumented Scene as soon as they are not needed anymore
+    public boolean lowMemory;
+    // let Soot validate every body and class it touches, to debug the instrumentation
+    public boolean validate;
+    // run one dataflow analysis per static variable or resource class, each with its own timeout
+    public boolean partitioned;
+    public int partitionTimeoutSeconds;
+    // stop propagating a source once it reaches a matching sink and do not build paths
+    public boolean reachabilityOnly;
+    // decide resources that never leave their method before the dataflow analysis
+    public boolean localResources;
+    // only let the dataflow analysis enter calls that can lead to a source or sink
+    public boolean slice;
+    // maximum number of unreachable methods per synthetic entry point (0 if entry point synthesis is off)
+    public int harnessBatchSize;
+    // directory and size limit of the instrumentation cache (cacheDir is null if caching is off)
+    public String cacheDir;
+    public long cacheSizeMb;
+    // algorithm the call graph is built with
+    public CallGraphTier callgraph = CallGraphTier.CHA;
+    // directory of the incremental state across app revisions (null if incremental mode is off)
+    public String incrementalDir;
+    // whether the state of every app is kept in a subdirectory of incrementalDir named after its package (in a batch)
+    public boolean incrementalPerApp;
+    // file the metrics of the run are written to (null if they are not written)
+    public String metricsPath;
+    // files the findings are streamed to as JSON lines and as SARIF (null if they are not written)
+    public String jsonlPath;
+    public String sarifPath;
+
+    // a is null in batch mode, every APK of the batch gets its own options through forApk()
+    public CliOptions(String a, String p, AnalysisMode mode, int timeout_m, int threads) throws ParseException {
+        if(a != null && !Files.isReadable(Paths.get(a)))
             throw new ParseException("APK file does not exist!");
         if(!Files.isDirectory(Paths.get(p)))
             throw new ParseException("Android platforms path does not exist!");
 
         apkPath = a;
-        instrumentedApkPath = buildOutputPath(a);
+        instrumentedApkPath = a == null ? null : buildOutputPath(a);
         platformPath = p;
-        resourceMode = r;
+        this.mode = mode;
         timeout_minutes = timeout_m;
         timeout_seconds = timeout_m * 60;
+        if (threads < 1)
+            throw new ParseException("Number of threads must be at least 1!");
+        this.threads = threads;
+    }
+
+    public void setBatch(String batchPath, String outputDir) throws ParseException {
+        if (!Files.isReadable(Paths.get(batchPath)))
+            throw new ParseException("Batch directory or APK list does not exist!");
+
+        this.batchPath = batchPath;
+        this.batchOutputDir = outputDir;
+    }
+
+    public void setBenchmark(String benchmarkPath, String outputDir, String baselineDir) throws ParseException {
+        if (!Files.isDirectory(Paths.get(benchmarkPath)))
+            throw new ParseException("Benchmark corpus directory does not exist!");
+        if (baselineDir != null && !Files.isDirectory(Paths.get(baselineDir)))
+            throw new ParseException("Benchmark baseline directory does not exist!");
+
+        this.benchmarkPath = benchmarkPath;
+        this.batchOutputDir = outputDir;
+        this.baselineDir = baselineDir;
+    }
+
+    public void setPartitioned(int timeout_m) throws ParseException {
+        if (timeout_m < 1)
+            throw new ParseException("Partition timeout must be at least 1 minute!");
+
+        partitioned = true;
+        partitionTimeoutSeconds = timeout_m * 60;
+    }
+
+    public void setCallgraph(String algorithm) throws ParseException {
+        try {
+            callgraph = CallGraphTier.valueOf(algorithm.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new ParseException("Unknown call graph algorithm: " + algorithm);
+        }
+    }
+
+    public void setHarnessBatchSize(int harnessBatchSize) throws ParseException {
+        if (harnessBatchSize < 1)
+            throw new ParseException("Entry point batch size must be at least 1!");
+
+        this.harnessBatchSize = harnessBatchSize;
+    }
+
+    public void setCache(String cacheDir, long cacheSizeMb) throws ParseException {
+        if (cacheSizeMb < 1)
+            throw new ParseException("Cache size must be at least 1 MB!");
+
+        this.cacheDir = cacheDir;
+        this.cacheSizeMb = cacheSizeMb;
+    }
+
+    // Options for analyzing a single APK of a batch with the same settings
+    public CliOptions forApk(String apk) throws ParseException {
+        CliOptions apkOptions = new CliOptions(apk, platformPath, mode, timeout_minutes, threads);
+        apkOptions.partitioned = partitioned;
+        apkOptions.partitionTimeoutSeconds = partitionTimeoutSeconds;
+        apkOptions.reachabilityOnly = reachabilityOnly;
+        apkOptions.localResources = localResources;
+        apkOptions.slice = slice;
+        apkOptions.harnessBatchSize = harnessBatchSize;
+        apkOptions.inMemory = inMemory;
+        apkOptions.writeApk = writeApk;
+        apkOptions.lowMemory = lowMemory;
+        apkOptions.validate = validate;
+        apkOptions.cacheDir = cacheDir;
+        apkOptions.cacheSizeMb = cacheSizeMb;
+        apkOptions.callgraph = callgraph;
+        // every app of a batch keeps its own state, which is only known once its manifest is read
+        apkOptions.incrementalDir = incrementalDir;
+        apkOptions.incrementalPerApp = incrementalDir != null;
+        // in a batch the metrics path is a directory with one file per APK
+        String name = resultName(apk);
+        if (metricsPath != null)
+            apkOptions.metricsPath = Paths.get(metricsPath, name + ".metrics.json").toString();
+        if (jsonlPath != null)
+            apkOptions.jsonlPath = Paths.get(jsonlPath, name + ".jsonl").toString();
+        if (sarifPath != null)
+            apkOptions.sarifPath = Paths.get(sarifPath, name + ".sarif").toString();
+        return apkOptions;
+    }
+
+    /**
+     * Name of the outputs of one APK of a batch. APKs in different directories can have the same file name, so the
+     * name ends with a hash of the full path.
+     *
+     * @param apk path of the APK
+     * @return file name of the APK and the hash of its path, e.g. "app.apk-1a2b3c4d"
+     */
+    static String resultName(String apk) {
+        Path path = Paths.get(apk).toAbsolutePath().normalize();
+        return path.getFileName() + "-" + String.format("%08x", path.toString().hashCode());
     }
 
     private static String buildOutputPath(String path) {
@@ -501,3 +1068,68 @@ class CliOptions {
     }
 }
 
+// Writes everything to two streams at once
+class TeeOutputStream extends OutputStream {
+    private final OutputStream first;
+    private final OutputStream second;
+
+    public TeeOutputStream(OutputStream first, OutputStream second) {
+        this.first = first;
+        this.second = second;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        first.write(b);
+        second.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        first.write(b, off, len);
+        second.write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        first.flush();
+        second.flush();
+    }
+}
+
+enum AnalysisMode {
+    // static variable and thread memory leaks
+    MEMORY,
+    // system resource leaks
+    RESOURCE,
+    // both of the above in a single run
+    COMBINED;
+
+    public boolean analyzesMemory() {
+        return this != RESOURCE;
+    }
+
+    public boolean analyzesResources() {
+        return this != MEMORY;
+    }
+}
+
+enum CallGraphTier {
+    // every override of a called method is a target, never misses an edge
+    CHA(InfoflowConfiguration.CallgraphAlgorithm.CHA),
+    // only overrides in classes that are instantiated somewhere
+    RTA(InfoflowConfiguration.CallgraphAlgorithm.RTA),
+    // targets from the types that can flow into the receiver
+    VTA(InfoflowConfiguration.CallgraphAlgorithm.VTA),
+    // targets from a points-to analysis of the receiver
+    SPARK(InfoflowConfiguration.CallgraphAlgorithm.SPARK),
+    // RTA, and CHA if RTA misses call sites of our dummies
+    ADAPTIVE(InfoflowConfiguration.CallgraphAlgorithm.RTA);
+
+    // algorithm the call graph is built with first
+    public final InfoflowConfiguration.CallgraphAlgorithm algorithm;
+
+    CallGraphTier(InfoflowConfiguration.CallgraphAlgorithm algorithm) {
+        this.algorithm = algorithm;
+    }
+}
@@ -0,0 +1,139 @@
+package com.guitard0g.dataflow_analysis;
+
+import org.apache.commons.cli.ParseException;
+import soot.G;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Analyzes many APKs in a single JVM.
+ *
+ * Soot's global state is reset between APKs, but we only pay for Maven and JVM startup once and the JIT stays warm
+ * for the whole corpus. Everything an APK prints goes to its own result file in the output directory, and a line
+ * is added to summary.tsv as soon as the APK is done so that partial runs are still useful.
+ */
+class BatchRunner {
+    static void run(CliOptions options) {
+        Path outDir = Paths.get(options.batchOutputDir);
+        List<String> apks;
+        try {
+            apks = listApks(options.batchPath);
+            Files.createDirectories(outDir);
+        } catch (IOException e) {
+            System.out.println("Could not set up batch run: " + e);
+            System.exit(1);
+            return;
+        }
+
+        PrintStream console = System.out;
+        try (PrintWriter summary = new PrintWriter(Files.newBufferedWriter(outDir.resolve("summary.tsv")))) {
+            summary.println("apk\tstatus\tseconds\tthread_bugs\tresult_file");
+            summary.flush();
+
+            int count = 0;
+            for (String apk: apks) {
+                count++;
+                console.println("[" + count + "/" + apks.size() + "] " + apk);
+
+                Path resultFile = outDir.resolve(CliOptions.resultName(apk) + ".txt");
+                long start = System.currentTimeMillis();
+                RunStats stats = analyze(options, apk, resultFile);
+                long seconds = (System.currentTimeMillis() - start) / 1000;
+
+                summary.println(apk + "\t" + stats.status + "\t" + seconds + "\t" + Instrument.threadBugCount.get()
+                        + "\t" + resultFile);
+                summary.flush();
+            }
+        } catch (IOException e) {
+            System.out.println("Could not write batch summary: " + e);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Analyze a single APK of a batch with a clean Soot, sending everything it prints to its result file
+     *
+     * @param options options of the batch
+     * @param apk path of the APK
+     * @param resultFile file for the output of the APK
+     * @return stats of the analysis, with the status for the summary
+     */
+    static RunStats analyze(CliOptions options, String apk, Path resultFile) {
+        PrintStream console = System.out;
+        try (PrintStream out = new PrintStream(new FileOutputStream(resultFile.toFile()), true)) {
+            System.setOut(out);
+            return analyze(options, apk);
+        } catch (IOException e) {
+            RunStats stats = new RunStats();
+            stats.status = "FAILED: could not write " + resultFile;
+            return stats;
+        } finally {
+            System.setOut(console);
+        }
+    }
+
+    // Analyze a single APK of the batch, the status of the stats is set for the summary
+    private static RunStats analyze(CliOptions options, String apk) {
+        resetState();
+        RunStats stats;
+        try {
+            stats = App.analyzeApk(options.forApk(apk));
+        } catch (ParseException e) {
+            System.out.println(e.getMessage());
+            stats = new RunStats();
+            stats.status = "INVALID";
+        } catch (Exception | StackOverflowError | OutOfMemoryError e) {
+            // one broken APK should not stop the whole batch
+            e.printStackTrace(System.out);
+            stats = new RunStats();
+            stats.status = "FAILED: " + e.getClass().getSimpleName();
+        }
+        return stats;
+    }
+
+    // Start from a clean Soot and clean instrumentation state, keeping only the warm JVM
+    private static void resetState() {
+        G.reset();
+        Instrument.reset();
+        CallPathIndex.reset();
+        Metrics.reset();
+        App.appPackage = "";
+    }
+
+    /**
+     * Get the APKs of a batch
+     *
+     * @param batchPath either a directory (all .apk files in it are used) or a file with one APK path per line
+     * @return paths of all APKs to analyze
+     */
+    static List<String> listApks(String batchPath) throws IOException {
+        Path path = Paths.get(batchPath);
+        if (Files.isDirectory(path)) {
+            try (Stream<Path> files = Files.list(path)) {
+                return files.filter(f -> f.toString().endsWith(".apk"))
+                        .map(Path::toString)
+                        .sorted()
+                        .collect(Collectors.toList());
+            }
+        }
+
+        // list file: blank lines and lines starting with # are ignored
+        ArrayList<String> apks = new ArrayList<>();
+        for (String line: Files.readAllLines(path)) {
+            line = line.trim();
+            if (!line.isEmpty() && !line.startsWith("#"))
+                apks.add(line);
+        }
+        return apks;
+    }
+}
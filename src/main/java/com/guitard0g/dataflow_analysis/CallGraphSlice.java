@@ -0,0 +1,185 @@
+package com.guitard0g.dataflow_analysis;
+
+import soot.Scene;
+import soot.SootMethod;
+import soot.jimple.DefinitionStmt;
+import soot.jimple.Stmt;
+import soot.jimple.infoflow.InfoflowManager;
+import soot.jimple.infoflow.android.SetupApplication;
+import soot.jimple.infoflow.data.Abstraction;
+import soot.jimple.infoflow.taintWrappers.ITaintPropagationWrapper;
+import soot.jimple.toolkits.callgraph.CallGraph;
+import soot.jimple.toolkits.callgraph.Edge;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Restricts the dataflow analysis to the part of the call graph that can lead to one of our sources or sinks.
+ *
+ * The slice holds every method that can reach (through calls) a method with a source or sink dummy call in it. The
+ * IFDS solver always returns from a method to its callers, so the slice only decides which callees it enters: a call
+ * whose targets are all outside of the slice can never lead to a source or sink, and its taints are passed over the
+ * call unchanged instead of being propagated through the callee (and everything it calls). This cuts off large
+ * library and SDK call trees. The price is that a taint which such a callee would have copied into a field is lost,
+ * so in the worst case a closed source is reported as a leak, never the other way around.
+ *
+ * Calls of our dummies are never summarized, and the slice is computed when FlowDroid initializes the solver, so it
+ * always matches the call graph of the dataflow analysis, even if FlowDroid loaded the APK again.
+ */
+class CallGraphSlice implements ITaintPropagationWrapper {
+    // source and sink dummies of this dataflow analysis
+    private final List<DummyCallInfo> sites;
+    private final Set<SootMethod> slice = new HashSet<>();
+    // whether the call at a statement is summarized, computed once per call site
+    private final ConcurrentHashMap<Stmt, Boolean> summarized = new ConcurrentHashMap<>();
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+    private InfoflowManager manager;
+
+    /**
+     * @param sites source and sink dummies of the dataflow analysis
+     */
+    CallGraphSlice(List<DummyCallInfo> sites) {
+        this.sites = sites;
+    }
+
+    /**
+     * Slice every dataflow analysis of an analyzer to its sources and sinks
+     *
+     * @param analyzer analyzer to configure
+     * @param sites source and sink dummies of the dataflow analysis
+     * @return the slice that was installed
+     */
+    static CallGraphSlice install(SetupApplication analyzer, List<DummyCallInfo> sites) {
+        CallGraphSlice slice = new CallGraphSlice(sites);
+        analyzer.setTaintWrapper(slice);
+        return slice;
+    }
+
+    @Override
+    public void initialize(InfoflowManager manager) {
+        this.manager = manager;
+        slice.clear();
+        summarized.clear();
+
+        // every method that calls one of our dummies, and everything that calls those methods
+        CallGraph cg = Scene.v().getCallGraph();
+        ArrayDeque<SootMethod> q = new ArrayDeque<>();
+        for (DummyCallInfo site: sites) {
+            SootMethod dummy = Scene.v().grabMethod(site.dummySignature);
+            if (dummy == null)
+                continue;
+            for (Iterator<Edge> it = cg.edgesInto(dummy); it.hasNext(); ) {
+                SootMethod caller = it.next().src();
+                if (slice.add(caller))
+                    q.add(caller);
+            }
+        }
+        while (!q.isEmpty()) {
+            for (Iterator<Edge> it = cg.edgesInto(q.remove()); it.hasNext(); ) {
+                SootMethod caller = it.next().src();
+                if (slice.add(caller))
+                    q.add(caller);
+            }
+        }
+    }
+
+    // Check if the call at a statement can be passed over because none of its targets lead to a source or sink
+    private boolean isSummarized(Stmt stmt) {
+        if (!stmt.containsInvokeExpr())
+            return false;
+        return summarized.computeIfAbsent(stmt, s -> {
+            Collection<SootMethod> callees = manager.getICFG().getCalleesOfCallAt(s);
+            // calls without a body are left to FlowDroid's own handling of library calls
+            if (callees.isEmpty())
+                return false;
+            for (SootMethod callee: callees) {
+                if (slice.contains(callee) || DummyRegistry.isDummyName(callee.getName()))
+                    return false;
+            }
+            return true;
+        });
+    }
+
+    @Override
+    public Set<Abstraction> getTaintsForMethod(Stmt stmt, Abstraction d1, Abstraction taintedPath) {
+        if (!isSummarized(stmt)) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        // the result of the call overwrites the tainted variable, and the callee can not taint the result
+        if (stmt instanceof DefinitionStmt
+                && ((DefinitionStmt) stmt).getLeftOp() == taintedPath.getAccessPath().getPlainValue())
+            return Collections.emptySet();
+        // the callee can not reach a source or sink, so the taint just passes over the call
+        return Collections.singleton(taintedPath);
+    }
+
+    @Override
+    public boolean isExclusive(Stmt stmt, Abstraction taintedPath) {
+        return isSummarized(stmt);
+    }
+
+    @Override
+    public Set<Abstraction> getAliasesForMethod(Stmt stmt, Abstraction d1, Abstraction taintedPath) {
+        return isSummarized(stmt) ? Collections.singleton(taintedPath) : null;
+    }
+
+    @Override
+    public boolean supportsCallee(SootMethod method) {
+        return !slice.contains(method) && !DummyRegistry.isDummyName(method.getName());
+    }
+
+    @Override
+    public boolean supportsCallee(Stmt callSite) {
+        return isSummarized(callSite);
+    }
+
+    @Override
+    public int getWrapperHits() {
+        return hits.get();
+    }
+
+    @Override
+    public int getWrapperMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Get the source and sink dummies of all leaks we are looking for
+     *
+     * @param mode which kinds of leaks we are looking for
+     * @param dummies metadata of all instrumented functions
+     * @return metadata of the source and sink dummies
+     */
+    static List<DummyCallInfo> sitesOf(AnalysisMode mode, DummyRegistry dummies) {
+        ArrayList<DummyCallInfo> sites = new ArrayList<>();
+        if (mode.analyzesMemory()) {
+            sites.addAll(dummies.getAll(DummyKind.STATIC_SET));
+            sites.addAll(dummies.getAll(DummyKind.STATIC_NULL_SET));
+        }
+        if (mode.analyzesResources()) {
+            sites.addAll(dummies.getAll(DummyKind.RESOURCE_OPEN));
+            sites.addAll(dummies.getAll(DummyKind.RESOURCE_CLOSE));
+        }
+        return sites;
+    }
+
+    // Print the size of the slice and how many call sites were passed over
+    void printStats() {
+        long summarizedSites = summarized.values().stream().filter(b -> b).count();
+        System.out.println("Call graph slice: " + slice.size() + " of " + Scene.v().getReachableMethods().size()
+                + " reachable methods, " + summarizedSites + " of " + summarized.size() + " call sites summarized, "
+                + hits.get() + " taints passed over");
+    }
+}
@@ -0,0 +1,158 @@
+package com.guitard0g.dataflow_analysis;
+
+import soot.FastHierarchy;
+import soot.MethodOrMethodContext;
+import soot.Scene;
+import soot.SootClass;
+import soot.SootMethod;
+import soot.Unit;
+import soot.jimple.InstanceInvokeExpr;
+import soot.jimple.InvokeExpr;
+import soot.jimple.SpecialInvokeExpr;
+import soot.jimple.Stmt;
+import soot.jimple.infoflow.InfoflowConfiguration;
+import soot.jimple.infoflow.android.SetupApplication;
+import soot.jimple.toolkits.callgraph.ReachableMethods;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * Builds the call graph with one of the algorithms of {@link CallGraphTier}.
+ *
+ * Our dummies are static methods called with a static invoke, so every algorithm has an edge into a dummy as soon as
+ * the method that calls it is reachable. The more precise algorithms can only lose a dummy by deciding that the method
+ * it was added to is never called. In adaptive mode we build the call graph with RTA first, and if one of the
+ * virtual call sites of a reachable method could dispatch to a method with an unreachable dummy under CHA, we build
+ * the call graph again with CHA so that we do not lose any leaks. The check only looks at the bodies RTA already built,
+ * otherwise it would cost as much as building the CHA call graph.
+ */
+class CallGraphTiers {
+    /**
+     * Build the call graph again with CHA if the current one misses dummies that CHA would reach
+     *
+     * @param analyzer analyzer whose call graph was built by a cheaper algorithm
+     * @param dummies metadata of all instrumented functions
+     */
+    static void fallBackIfMissed(SetupApplication analyzer, DummyRegistry dummies) {
+        long start = System.currentTimeMillis();
+        Metrics.begin("callgraph.check");
+        int missed = countMissedDummies(dummies);
+        Metrics.end("callgraph.check");
+        System.out.println("Call graph check: " + missed + " dummies only CHA reaches, "
+                + (System.currentTimeMillis() - start) + " ms");
+        if (missed == 0)
+            return;
+        System.out.println("Call graph misses " + missed + " dummies that CHA would reach, falling back to CHA");
+        construct(analyzer, InfoflowConfiguration.CallgraphAlgorithm.CHA);
+    }
+
+    /**
+     * Build the call graph and report its size and how long it took
+     *
+     * @param analyzer analyzer to build the call graph for
+     * @param algorithm call graph algorithm to use
+     */
+    static void construct(SetupApplication analyzer, InfoflowConfiguration.CallgraphAlgorithm algorithm) {
+        analyzer.getConfig().setCallgraphAlgorithm(algorithm);
+        long start = System.currentTimeMillis();
+        // this also loads the APK and finds the callbacks of its components
+        Metrics.begin("callgraph.construct");
+        analyzer.constructCallgraph();
+        Metrics.end("callgraph.construct");
+        long millis = System.currentTimeMillis() - start;
+        System.out.println("Call graph (" + algorithm + "): " + Scene.v().getCallGraph().size() + " edges, "
+                + Scene.v().getReachableMethods().size() + " reachable methods, " + millis + " ms");
+        Metrics.set("callgraph.edges", Scene.v().getCallGraph().size());
+        Metrics.set("callgraph.reachable_methods", Scene.v().getReachableMethods().size());
+    }
+
+    /**
+     * Count the dummies in methods that the current call graph does not reach but CHA would.
+     *
+     * We search backwards from every unreachable method with dummies for a virtual call site in a reachable method
+     * that can dispatch to it under CHA. Static calls, constructors and private methods are bound to a single target,
+     * so every algorithm already has those edges. Only the bodies the call graph builder made for the reachable
+     * methods are read, so a method that CHA only reaches through another method the current call graph misses is not
+     * counted. Following those chains means building the bodies of the whole CHA closure, which costs as much as
+     * building the CHA call graph in the first place.
+     */
+    private static int countMissedDummies(DummyRegistry dummies) {
+        ReachableMethods reachable = Scene.v().getReachableMethods();
+        FastHierarchy hierarchy = Scene.v().getOrMakeFastHierarchy();
+
+        // unreachable methods with dummies that a virtual call can dispatch to, by sub-signature
+        HashMap<String, Set<SootMethod>> bySubSignature = new HashMap<>();
+        HashMap<SootMethod, Integer> dummyCounts = new HashMap<>();
+        for (DummyKind kind: DummyKind.values()) {
+            for (DummyCallInfo info: dummies.getAll(kind)) {
+                SootMethod m = Scene.v().grabMethod(info.m.getSignature());
+                if (m == null || reachable.contains(m) || m.isStatic() || m.isPrivate() || m.isConstructor())
+                    continue;
+                dummyCounts.merge(m, 1, Integer::sum);
+                bySubSignature.computeIfAbsent(m.getSubSignature(), k -> new HashSet<>()).add(m);
+            }
+        }
+        if (dummyCounts.isEmpty())
+            return 0;
+
+        HashSet<SootMethod> found = new HashSet<>();
+        for (Iterator<MethodOrMethodContext> it = reachable.listener(); it.hasNext(); ) {
+            SootMethod m = it.next().method();
+            // every reachable method with code got its body when the call graph was built
+            if (!m.hasActiveBody())
+                continue;
+            for (Unit u: m.getActiveBody().getUnits()) {
+                Stmt stmt = (Stmt) u;
+                if (!stmt.containsInvokeExpr())
+                    continue;
+                InvokeExpr invoke = stmt.getInvokeExpr();
+                if (!(invoke instanceof InstanceInvokeExpr) || invoke instanceof SpecialInvokeExpr)
+                    continue;
+                SootMethod callee;
+                try {
+                    callee = invoke.getMethod();
+                } catch (RuntimeException e) {
+                    continue;
+                }
+                // only call sites with the sub-signature of one of the methods can dispatch to it
+                Set<SootMethod> candidates = bySubSignature.get(callee.getSubSignature());
+                if (candidates == null || found.containsAll(candidates))
+                    continue;
+                for (SootMethod target: chaTargets(hierarchy, invoke)) {
+                    if (candidates.contains(target))
+                        found.add(target);
+                }
+            }
+        }
+
+        int missed = 0;
+        for (SootMethod m: found) {
+            missed += dummyCounts.get(m);
+        }
+        return missed;
+    }
+
+    // Every method a call can dispatch to under CHA (empty if the called method can not be resolved)
+    private static Collection<SootMethod> chaTargets(FastHierarchy hierarchy, InvokeExpr invoke) {
+        SootMethod callee;
+        try {
+            callee = invoke.getMethod();
+        } catch (RuntimeException e) {
+            return Collections.emptyList();
+        }
+        if (!(invoke instanceof InstanceInvokeExpr) || invoke instanceof SpecialInvokeExpr)
+            return Collections.singletonList(callee);
+        // every concrete implementation in a subtype of the receiver type, including the ones it inherits
+        SootClass receiver = invoke.getMethodRef().getDeclaringClass();
+        try {
+            return hierarchy.resolveAbstractDispatch(receiver, callee);
+        } catch (RuntimeException e) {
+            return Collections.singletonList(callee);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.guitard0g.dataflow_analysis;
+
+import soot.Scene;
+import soot.SootClass;
+import soot.SootMethod;
+import soot.jimple.toolkits.callgraph.CallGraph;
+import soot.jimple.toolkits.callgraph.Edge;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+
+/**
+ * Shortest call paths from the program entry points to every reachable method.
+ *
+ * We run a single multi-source BFS over the call graph and remember the parent of every method we reach. A path
+ * lookup is then a walk up the tree. Application methods that the BFS never reached are kept in a set so that we
+ * can answer "no path" without searching.
+ */
+class CallPathIndex {
+    // index for the call graph we most recently built one for
+    private static CallPathIndex current;
+
+    private final CallGraph cg;
+    // BFS tree parent of every reachable method (entry points are their own parent)
+    private final HashMap<SootMethod, SootMethod> parents = new HashMap<>();
+    // all methods of application classes that can not be reached from an entry point
+    private final HashSet<SootMethod> unreachable = new HashSet<>();
+
+    private CallPathIndex(CallGraph cg, Collection<SootMethod> entryPoints) {
+        this.cg = cg;
+
+        // BFS from all entry points at once. Methods are marked as seen when they are queued so that every method
+        // is queued at most once.
+        ArrayDeque<SootMethod> q = new ArrayDeque<>();
+        for (SootMethod entryPoint: entryPoints) {
+            if (parents.putIfAbsent(entryPoint, entryPoint) == null)
+                q.add(entryPoint);
+        }
+
+        while (!q.isEmpty()) {
+            SootMethod next = q.remove();
+            for (Iterator<Edge> it = cg.edgesOutOf(next); it.hasNext(); ) {
+                SootMethod tgt = it.next().tgt();
+                if (parents.putIfAbsent(tgt, next) == null)
+                    q.add(tgt);
+            }
+        }
+
+        for (SootClass c: Scene.v().getApplicationClasses()) {
+            for (SootMethod m: c.getMethods()) {
+                if (!parents.containsKey(m))
+                    unreachable.add(m);
+            }
+        }
+    }
+
+    /**
+     * Get the index for the call graph of the current Scene, building it if the call graph changed
+     *
+     * @return path index of the current call graph
+     */
+    static synchronized CallPathIndex forCurrentScene() {
+        CallGraph cg = Scene.v().getCallGraph();
+        if (current == null || current.cg != cg) {
+            current = new CallPathIndex(cg, Scene.v().getEntryPoints());
+        }
+        return current;
+    }
+
+    // drop the index so that it does not keep an old Scene alive
+    static synchronized void reset() {
+        current = null;
+    }
+
+    /**
+     * Get the shortest path from an entry point to a method
+     *
+     * @param m SootMethod target of the search
+     * @return call path from an entrypoint to the method, or null if there is none
+     */
+    ArrayList<SootMethod> getPath(SootMethod m) {
+        if (!parents.containsKey(m)) {
+            if (unreachable.contains(m))
+                return null;
+
+            // m may belong to an earlier Scene (e.g. the one we instrumented), so look up its counterpart once
+            m = Scene.v().grabMethod(m.getSignature());
+            if (m == null || !parents.containsKey(m))
+                return null;
+        }
+
+        ArrayList<SootMethod> path = new ArrayList<>();
+        SootMethod step = m;
+        while (true) {
+            path.add(step);
+            SootMethod parent = parents.get(step);
+            if (parent == step)
+                break;
+            step = parent;
+        }
+        Collections.reverse(path);
+        return path;
+    }
+}
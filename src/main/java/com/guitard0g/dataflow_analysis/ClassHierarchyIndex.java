@@ -0,0 +1,154 @@
+package com.guitard0g.dataflow_analysis;
+
+import soot.SootClass;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.function.Predicate;
+
+/**
+ * Memoized view of the class hierarchy of the current Soot Scene.
+ *
+ * For every class we store its supertype closure as a bitset keyed by the Soot class number. The closure contains the
+ * class itself, its superclasses and the interfaces directly implemented by any of them (this is the same set of
+ * classes that the instrumentation has always looked at when deciding if a class is "interesting").
+ * Fixed predicates are wrapped in a {@link Query} which caches the answer per class, so that repeated checks are a
+ * single bit lookup.
+ */
+public class ClassHierarchyIndex {
+    // supertype closures indexed by class number (null if not computed yet)
+    private final ArrayList<BitSet> closures = new ArrayList<>();
+    // once frozen we never write to the caches again, so the index can be shared between threads
+    private volatile boolean frozen = false;
+
+    /**
+     * Get the supertype closure of a class as a bitset of class numbers
+     *
+     * @param cls class to look up
+     * @return bitset containing the numbers of cls and all of its supertypes
+     */
+    public BitSet getClosure(SootClass cls) {
+        int number = cls.getNumber();
+        BitSet closure = getCached(closures, number);
+        if (closure != null) {
+            return closure;
+        }
+
+        closure = new BitSet();
+        closure.set(number);
+        for (SootClass itf: cls.getInterfaces()) {
+            closure.set(itf.getNumber());
+        }
+        // the superclass closure already contains the rest of the inheritance chain
+        if (cls.hasSuperclass()) {
+            closure.or(getClosure(cls.getSuperclass()));
+        }
+
+        if (!frozen) {
+            setCached(closures, number, closure);
+        }
+        return closure;
+    }
+
+    /**
+     * Create a cached query for a predicate that never changes during the instrumentation
+     *
+     * @param predicate test applied to every class of the inheritance hierarchy
+     * @return query object that memoizes its answer for every class
+     */
+    public Query newQuery(Predicate<SootClass> predicate) {
+        return new Query(predicate);
+    }
+
+    /**
+     * Stop memoizing new answers. Everything cached so far can then be read from multiple threads at once, answers
+     * for classes we have not seen yet are computed by walking the hierarchy.
+     */
+    public void freeze() {
+        frozen = true;
+    }
+
+    private static <T> T getCached(ArrayList<T> list, int number) {
+        return number < list.size() ? list.get(number) : null;
+    }
+
+    private static <T> void setCached(ArrayList<T> list, int number, T value) {
+        while (list.size() <= number) {
+            list.add(null);
+        }
+        list.set(number, value);
+    }
+
+    // Walk this class and its inheritance hierarchy and see if any class matches the given test function
+    static boolean walk(SootClass cls, Predicate<SootClass> isInterestingFunc) {
+        // check base class
+        if (isInterestingFunc.test(cls))
+            return true;
+        for(SootClass itf: cls.getInterfaces()) {
+            if (isInterestingFunc.test(itf))
+                return true;
+        }
+
+        // check inheritance hierarchy
+        while (cls.hasSuperclass()) {
+            cls = cls.getSuperclass();
+
+            if (isInterestingFunc.test(cls))
+                return true;
+            for(SootClass itf: cls.getInterfaces()) {
+                if (isInterestingFunc.test(itf))
+                    return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Memoized answer of "does this class or any of its supertypes satisfy the predicate"
+     */
+    public class Query {
+        private final Predicate<SootClass> predicate;
+        // classes for which we already know the answer
+        private final BitSet known = new BitSet();
+        // classes for which the answer is true
+        private final BitSet answers = new BitSet();
+
+        private Query(Predicate<SootClass> predicate) {
+            this.predicate = predicate;
+        }
+
+        public boolean test(SootClass cls) {
+            int number = cls.getNumber();
+            if (number <= 0) {
+                return walk(cls, predicate);
+            }
+            if (known.get(number)) {
+                return answers.get(number);
+            }
+            if (frozen) {
+                return walk(cls, predicate);
+            }
+
+            // the answer for a class is its own answer or the (cached) answer of its superclass
+            boolean answer = predicate.test(cls);
+            if (!answer) {
+                for (SootClass itf: cls.getInterfaces()) {
+                    if (predicate.test(itf)) {
+                        answer = true;
+                        break;
+                    }
+                }
+            }
+            if (!answer && cls.hasSuperclass()) {
+                answer = test(cls.getSuperclass());
+            }
+
+            known.set(number);
+            if (answer) {
+                answers.set(number);
+            }
+            return answer;
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package com.guitard0g.dataflow_analysis;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Runs the analysis over the experiment corpora and scores it against the DroidLeaks ground truth.
+ *
+ * A corpus is a directory with an apks/ directory and optionally a droidleaks.xlsx next to it (like
+ * experiment/resource_leaks). Every APK is analyzed in this JVM like in a batch run, and we record the wall time of
+ * every phase, the peak heap, the FlowDroid termination state, the number of sources and sinks, and the findings.
+ * Resource leak findings are matched against the known leaks of the APK (same resource class, method and source
+ * file) to get the recall and precision. DroidLeaks only lists leaks that were fixed upstream, so the precision is a
+ * lower bound.
+ *
+ * The output directory gets:
+ *  - benchmark.json: everything above per APK and in total
+ *  - ground_truth.tsv: every known leak and whether we found it, sorted
+ *  - findings.tsv: every finding, sorted
+ * With a baseline (the output directory of an earlier run) we compare the two tsv files and fail if a known leak
+ * that the baseline found is missed now, so that a speed-up never silently costs accuracy.
+ */
+class CorpusBenchmark {
+    private static final String GROUND_TRUTH_FILE = "droidleaks.xlsx";
+    private static final String REPORT_FILE = "benchmark.json";
+    private static final String GROUND_TRUTH_REPORT = "ground_truth.tsv";
+    private static final String FINDINGS_REPORT = "findings.tsv";
+
+    // results of every APK in the order they were analyzed
+    private final ArrayList<ApkResult> results = new ArrayList<>();
+    // every known leak of the analyzed APKs -> whether we found it
+    private final TreeMap<String, Boolean> knownLeaks = new TreeMap<>();
+    // known leaks whose APK is not in the corpus
+    private int missingApkLeaks = 0;
+    private final TreeSet<String> findings = new TreeSet<>();
+
+    static void run(CliOptions options) {
+        Path outDir = Paths.get(options.batchOutputDir);
+        CorpusBenchmark benchmark = new CorpusBenchmark();
+        try {
+            Files.createDirectories(outDir);
+            for (Path corpus: findCorpora(Paths.get(options.benchmarkPath))) {
+                benchmark.runCorpus(options, corpus, outDir);
+            }
+            benchmark.writeReports(options, outDir);
+        } catch (IOException e) {
+            System.out.println("Could not run benchmark: " + e);
+            System.exit(1);
+            return;
+        }
+
+        benchmark.printSummary();
+        if (options.baselineDir != null && benchmark.compareToBaseline(Paths.get(options.baselineDir)) > 0)
+            System.exit(1);
+    }
+
+    /**
+     * Get the corpora of a benchmark
+     *
+     * @param path a corpus (a directory with an apks directory) or a directory of corpora (like experiment/)
+     * @return all corpus directories, sorted
+     */
+    private static List<Path> findCorpora(Path path) throws IOException {
+        if (Files.isDirectory(path.resolve("apks")))
+            return Collections.singletonList(path);
+        try (Stream<Path> dirs = Files.list(path)) {
+            return dirs.filter(d -> Files.isDirectory(d.resolve("apks")))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    // Analyze every APK of a corpus and match its findings against the ground truth of the corpus
+    private void runCorpus(CliOptions options, Path corpus, Path outDir) throws IOException {
+        String corpusName = corpus.getFileName().toString();
+        Path xlsx = corpus.resolve(GROUND_TRUTH_FILE);
+        GroundTruth truth = Files.isRegularFile(xlsx) ? new GroundTruth(xlsx.toString()) : null;
+        List<String> apks = BatchRunner.listApks(corpus.resolve("apks").toString());
+        Path corpusOut = outDir.resolve(corpusName);
+        Files.createDirectories(corpusOut);
+
+        if (truth != null) {
+            HashSet<String> present = new HashSet<>();
+            for (String apk: apks) {
+                present.add(Paths.get(apk).getFileName().toString());
+            }
+            for (String apkName: truth.getApkNames()) {
+                if (!present.contains(apkName))
+                    missingApkLeaks += truth.getLeaks(apkName).size();
+            }
+        }
+
+        int count = 0;
+        for (String apk: apks) {
+            count++;
+            String apkName = Paths.get(apk).getFileName().toString();
+            System.out.println("[" + corpusName + " " + count + "/" + apks.size() + "] " + apkName);
+
+            resetPeakHeap();
+            long start = System.currentTimeMillis();
+            RunStats stats = BatchRunner.analyze(options, apk, corpusOut.resolve(CliOptions.resultName(apk) + ".txt"));
+            ApkResult result = new ApkResult(corpusName, apkName, stats, System.currentTimeMillis() - start);
+            result.peakHeapMb = Metrics.heapPeakBytes() / (1024 * 1024);
+            result.threadBugs = Instrument.threadBugCount.get();
+            // the findings point into the Scene of this APK, so we match them before the next APK resets it
+            match(result, stats, truth == null ? new ArrayList<>() : truth.getLeaks(apkName));
+            results.add(result);
+        }
+    }
+
+    // Match the findings of an APK against its known leaks
+    private void match(ApkResult result, RunStats stats, List<GroundTruth.Leak> leaks) {
+        result.knownLeaks = leaks.size();
+        boolean[] found = new boolean[leaks.size()];
+        for (Finding finding: stats.findings) {
+            findings.add(GroundTruth.key(result.apk, finding));
+            if (finding.kind == Finding.Kind.RESOURCE_LEAK)
+                result.resourceFindings++;
+            boolean matched = false;
+            for (int i = 0; i < leaks.size(); i++) {
+                if (leaks.get(i).matches(finding)) {
+                    found[i] = true;
+                    matched = true;
+                }
+            }
+            if (matched)
+                result.matchedFindings++;
+        }
+        for (int i = 0; i < leaks.size(); i++) {
+            if (found[i])
+                result.foundLeaks++;
+            knownLeaks.merge(leaks.get(i).key(), found[i], Boolean::logicalOr);
+        }
+    }
+
+    private void writeReports(CliOptions options, Path outDir) throws IOException {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(outDir.resolve(GROUND_TRUTH_REPORT)))) {
+            for (Map.Entry<String, Boolean> leak: knownLeaks.entrySet()) {
+                out.println(leak.getKey() + "\t" + (leak.getValue() ? "found" : "missed"));
+            }
+        }
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(outDir.resolve(FINDINGS_REPORT)))) {
+            for (String finding: findings) {
+                out.println(finding);
+            }
+        }
+
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(outDir.resolve(REPORT_FILE)))) {
+            out.println("{");
+            out.println("  \"mode\": " + Json.quote(options.mode.toString()) + ",");
+            out.println("  \"callgraph\": " + Json.quote(options.callgraph.toString()) + ",");
+            out.println("  \"threads\": " + options.threads + ",");
+            out.println("  \"timeout_minutes\": " + options.timeout_minutes + ",");
+            out.println("  \"total\": {");
+            out.println("    \"apks\": " + results.size() + ",");
+            out.println("    \"failed\": " + results.stream().filter(r -> !r.status.equals("OK")).count() + ",");
+            out.println("    \"millis\": " + results.stream().mapToLong(r -> r.millis).sum() + ",");
+            out.println("    \"max_peak_heap_mb\": " + results.stream().mapToLong(r -> r.peakHeapMb).max().orElse(0) + ",");
+            out.println("    \"known_leaks\": " + knownLeaks.size() + ",");
+            out.println("    \"known_leaks_without_apk\": " + missingApkLeaks + ",");
+            out.println("    \"found_leaks\": " + foundLeaks() + ",");
+            out.println("    \"recall\": " + ratio(foundLeaks(), knownLeaks.size()) + ",");
+            out.println("    \"precision\": " + ratio(matchedFindings(), scoredFindings()));
+            out.println("  },");
+            out.println("  \"apks\": [");
+            for (int i = 0; i < results.size(); i++) {
+                out.println(results.get(i).toJson("    ") + (i + 1 < results.size() ? "," : ""));
+            }
+            out.println("  ]");
+            out.println("}");
+        }
+    }
+
+    private void printSummary() {
+        System.out.println("Benchmark: " + results.size() + " APKs in "
+                + results.stream().mapToLong(r -> r.millis).sum() / 1000 + " s, "
+                + foundLeaks() + " of " + knownLeaks.size() + " known leaks found (recall "
+                + ratio(foundLeaks(), knownLeaks.size()) + ", precision " + ratio(matchedFindings(), scoredFindings())
+                + ")" + (missingApkLeaks > 0 ? ", " + missingApkLeaks + " known leaks have no APK" : ""));
+    }
+
+    /**
+     * Compare the results with an earlier run
+     *
+     * @param baselineDir output directory of the earlier run
+     * @return number of known leaks the baseline found that we missed
+     */
+    private int compareToBaseline(Path baselineDir) {
+        List<String> baselineLeaks;
+        List<String> baselineFindings;
+        try {
+            baselineLeaks = Files.readAllLines(baselineDir.resolve(GROUND_TRUTH_REPORT));
+            baselineFindings = Files.readAllLines(baselineDir.resolve(FINDINGS_REPORT));
+        } catch (IOException e) {
+            System.out.println("Could not read baseline: " + e);
+            return 0;
+        }
+
+        int regressions = 0;
+        for (String line: baselineLeaks) {
+            String[] parts = line.split("\t");
+            if (parts.length == 2 && parts[1].equals("found") && !knownLeaks.getOrDefault(parts[0], false)) {
+                System.out.println("REGRESSION: known leak no longer found: " + parts[0]);
+                regressions++;
+            }
+        }
+        TreeSet<String> lost = new TreeSet<>(baselineFindings);
+        lost.removeAll(findings);
+        TreeSet<String> gained = new TreeSet<>(findings);
+        gained.removeAll(baselineFindings);
+        System.out.println("Compared to baseline: " + regressions + " known leaks lost, " + lost.size()
+                + " findings lost, " + gained.size() + " findings gained");
+        return regressions;
+    }
+
+    private long foundLeaks() {
+        return knownLeaks.values().stream().filter(b -> b).count();
+    }
+
+    // findings that match a known leak
+    private long matchedFindings() {
+        return results.stream().mapToLong(r -> r.matchedFindings).sum();
+    }
+
+    // resource leak findings in APKs with known leaks, only those can be scored
+    private long scoredFindings() {
+        return results.stream().filter(r -> r.knownLeaks > 0).mapToLong(r -> r.resourceFindings).sum();
+    }
+
+    private static String ratio(long part, long whole) {
+        return whole == 0 ? "null" : String.format("%.4f", (double) part / whole);
+    }
+
+    // the peaks of the heap pools are only reset here, so that they cover exactly one APK
+    private static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool: ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP)
+                pool.resetPeakUsage();
+        }
+    }
+
+    /**
+     * Results of one APK of the benchmark
+     */
+    private static class ApkResult {
+        final String corpus;
+        final String apk;
+        final String status;
+        // wall time of the whole APK and of every phase
+        final long millis;
+        final Map<String, Long> phaseMillis;
+        final int terminationState;
+        final int unfinishedPartitions;
+        final int sources;
+        final int sinks;
+        final int findings;
+        long peakHeapMb;
+        int threadBugs;
+        int knownLeaks;
+        int foundLeaks;
+        int resourceFindings;
+        int matchedFindings;
+
+        ApkResult(String corpus, String apk, RunStats stats, long millis) {
+            this.corpus = corpus;
+            this.apk = apk;
+            this.status = stats.status;
+            this.millis = millis;
+            this.phaseMillis = stats.phaseMillis;
+            this.terminationState = stats.terminationState;
+            this.unfinishedPartitions = stats.unfinishedPartitions;
+            this.sources = stats.sources;
+            this.sinks = stats.sinks;
+            this.findings = stats.findings.size();
+        }
+
+        String toJson(String indent) {
+            StringBuilder phases = new StringBuilder();
+            for (Map.Entry<String, Long> phase: phaseMillis.entrySet()) {
+                if (phases.length() > 0)
+                    phases.append(", ");
+                phases.append(Json.quote(phase.getKey())).append(": ").append(phase.getValue());
+            }
+            return indent + "{\"corpus\": " + Json.quote(corpus)
+                    + ", \"apk\": " + Json.quote(apk)
+                    + ", \"status\": " + Json.quote(status)
+                    + ", \"millis\": " + millis
+                    + ", \"phase_millis\": {" + phases + "}"
+                    + ", \"peak_heap_mb\": " + peakHeapMb
+                    + ", \"termination_state\": " + terminationState
+                    + ", \"unfinished_partitions\": " + unfinishedPartitions
+                    + ", \"sources\": " + sources
+                    + ", \"sinks\": " + sinks
+                    + ", \"thread_bugs\": " + threadBugs
+                    + ", \"findings\": " + findings
+                    + ", \"known_leaks\": " + knownLeaks
+                    + ", \"found_leaks\": " + foundLeaks
+                    + ", \"matched_findings\": " + matchedFindings + "}";
+        }
+    }
+}
@@ -106,7 +106,7 @@ public class CustomSourceSinkProvider implements ISourceSinkDefinitionProvider {
     }
 
     // check if this method is in the main app package
-    private boolean isAppMethod(SootMethod m) {
+    static boolean isAppMethod(SootMethod m) {
         String clsName = m.getDeclaringClass().getName();
 
         return clsName.startsWith(App.appPackage);
@@ -0,0 +1,228 @@
+package com.guitard0g.dataflow_analysis;
+
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.dexbacked.DexBackedClassDef;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.dexbacked.DexBackedMethod;
+import org.jf.dexlib2.iface.MethodImplementation;
+import org.jf.dexlib2.iface.instruction.Instruction;
+import org.jf.dexlib2.iface.instruction.ReferenceInstruction;
+import org.jf.dexlib2.iface.reference.MethodReference;
+import soot.Scene;
+import soot.SootClass;
+import soot.SootMethod;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Finds the methods that no detector can do anything with by looking at their raw dex instructions, so that the
+ * instrumentation does not have to build their Jimple bodies.
+ *
+ * Building a body is the most expensive thing Soot does, but whether a detector can fire in a method only depends on
+ * the fields and methods its instructions refer to. A method needs its body if it:
+ *  - writes a static field of reference type (sput-object), which can be a static variable set or clear
+ *  - calls a method of a resource class, a method returning a resource or one of the special closers (resource mode)
+ *  - calls the constructor of an AsyncTask, Thread or TimerTask (memory mode)
+ * Every other method is skippable. Methods we can not match to a dex method (e.g. because Soot quotes their name) are
+ * never skipped, so the filter can only save work and never hide a leak.
+ */
+class DexPrefilter {
+    // signatures of all methods whose body we do not need
+    private final HashSet<String> skippable = new HashSet<>();
+    private int methodCount = 0;
+
+    private final boolean resources;
+    private final boolean threads;
+
+    private DexPrefilter(boolean resources, boolean threads) {
+        this.resources = resources;
+        this.threads = threads;
+    }
+
+    /**
+     * Scan all dex files of an APK. The hierarchy queries of the instrumentation must be built already.
+     *
+     * @param apkPath APK (or single dex file) that Soot loaded
+     * @param resources whether we look for resource leaks
+     * @param threads whether we look for thread-like objects in context containers
+     * @return the filter, or null if the dex files can not be read
+     */
+    static DexPrefilter build(String apkPath, boolean resources, boolean threads) {
+        DexPrefilter filter = new DexPrefilter(resources, threads);
+        try {
+            for (DexBackedDexFile dex: readDexFiles(apkPath)) {
+                filter.scan(dex);
+            }
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Could not pre-filter the dex code, building every body: " + e);
+            return null;
+        }
+        return filter;
+    }
+
+    /**
+     * @param m application method
+     * @return whether or not no detector can fire in this method, so its body does not need to be built
+     */
+    boolean canSkip(SootMethod m) {
+        return skippable.contains(m.getSignature());
+    }
+
+    // number of methods with code in the dex files
+    int getMethodCount() {
+        return methodCount;
+    }
+
+    private void scan(DexBackedDexFile dex) {
+        for (DexBackedClassDef cls: dex.getClasses()) {
+            for (DexBackedMethod method: cls.getMethods()) {
+                MethodImplementation code = method.getImplementation();
+                if (code == null)
+                    continue;
+                methodCount++;
+                if (!needsBody(code))
+                    skippable.add(signature(cls.getType(), method.getName(), method.getReturnType(),
+                            method.getParameterTypes()));
+            }
+        }
+    }
+
+    // Check if any instruction refers to something a detector looks at
+    private boolean needsBody(MethodImplementation code) {
+        for (Instruction instr: code.getInstructions()) {
+            Opcode opcode = instr.getOpcode();
+            if (opcode == Opcode.SPUT_OBJECT)
+                return true;
+            // the targets of call sites are only known after linking, so we can not rule them out
+            if (opcode.name.startsWith("invoke-custom"))
+                return true;
+            if (instr instanceof ReferenceInstruction
+                    && ((ReferenceInstruction) instr).getReference() instanceof MethodReference
+                    && isInterestingCall((MethodReference) ((ReferenceInstruction) instr).getReference()))
+                return true;
+        }
+        return false;
+    }
+
+    private boolean isInterestingCall(MethodReference ref) {
+        String name = ref.getName();
+        SootClass cls = getClass(ref.getDefiningClass());
+        if (resources) {
+            // resource openers are recognized by their return type
+            if (Instrument.resClasses.contains(typeName(ref.getReturnType())))
+                return true;
+            if (name.contains("startManagingCursor"))
+                return true;
+            // Soot resolves the call to the class that declares the method, which may be any supertype of this one
+            if (cls == null || anySupertype(cls, Instrument.resourceClassQuery)
+                    || anySupertype(cls, Instrument.contentQueryMapQuery))
+                return true;
+        }
+        if (threads && name.equals("<init>")) {
+            if (cls == null || anySupertype(cls, Instrument.asyncTaskQuery)
+                    || anySupertype(cls, Instrument.threadOrTimerTaskQuery))
+                return true;
+        }
+        return false;
+    }
+
+    // The hierarchy index only follows the interfaces of the class and its superclasses, so we walk the interfaces of
+    // the interfaces ourselves
+    private static boolean anySupertype(SootClass cls, ClassHierarchyIndex.Query query) {
+        if (query.test(cls))
+            return true;
+        for (SootClass itf: cls.getInterfaces()) {
+            if (anySupertype(itf, query))
+                return true;
+        }
+        return cls.hasSuperclass() && anySupertype(cls.getSuperclass(), query);
+    }
+
+    // class of the Scene for a dex class descriptor, null for array types and classes Soot does not know
+    private static SootClass getClass(String descriptor) {
+        if (!descriptor.startsWith("L"))
+            return null;
+        String name = descriptor.substring(1, descriptor.length() - 1).replace('/', '.');
+        return Scene.v().containsClass(name) ? Scene.v().getSootClass(name) : null;
+    }
+
+    // Soot signature of a dex method, built the same way as SootMethod.getSignature()
+    static String signature(String classDescriptor, String name, String returnType, List<String> params) {
+        StringBuilder sig = new StringBuilder("<");
+        sig.append(typeName(classDescriptor)).append(": ")
+                .append(typeName(returnType)).append(' ')
+                .append(Scene.v().quotedNameOf(name)).append('(');
+        for (int i = 0; i < params.size(); i++) {
+            sig.append(i == 0 ? "" : ",").append(typeName(params.get(i)));
+        }
+        return sig.append(")>").toString();
+    }
+
+    // Soot name of a dex type descriptor, e.g. "[Ljava/lang/String;" is "java.lang.String[]"
+    static String typeName(String descriptor) {
+        int dims = 0;
+        while (descriptor.charAt(dims) == '[')
+            dims++;
+        String base;
+        switch (descriptor.charAt(dims)) {
+            case 'V': base = "void"; break;
+            case 'Z': base = "boolean"; break;
+            case 'B': base = "byte"; break;
+            case 'S': base = "short"; break;
+            case 'C': base = "char"; break;
+            case 'I': base = "int"; break;
+            case 'J': base = "long"; break;
+            case 'F': base = "float"; break;
+            case 'D': base = "double"; break;
+            default:
+                base = Scene.v().quotedNameOf(descriptor.substring(dims + 1, descriptor.length() - 1).replace('/', '.'));
+        }
+        StringBuilder name = new StringBuilder(base);
+        for (int i = 0; i < dims; i++) {
+            name.append("[]");
+        }
+        return name.toString();
+    }
+
+    // All dex files of an APK (classes.dex, classes2.dex, ...), or the file itself if it is a dex file
+    private static List<DexBackedDexFile> readDexFiles(String apkPath) throws IOException {
+        ArrayList<DexBackedDexFile> dexFiles = new ArrayList<>();
+        if (apkPath.endsWith(".dex")) {
+            dexFiles.add(new DexBackedDexFile(Opcodes.getDefault(), Files.readAllBytes(Paths.get(apkPath))));
+            return dexFiles;
+        }
+        try (ZipFile zip = new ZipFile(apkPath)) {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (!entry.getName().matches("classes[0-9]*\\.dex"))
+                    continue;
+                try (InputStream in = zip.getInputStream(entry)) {
+                    dexFiles.add(new DexBackedDexFile(Opcodes.getDefault(), readAll(in)));
+                }
+            }
+        }
+        return dexFiles;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[64 * 1024];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,236 @@
+package com.guitard0g.dataflow_analysis;
+
+import soot.Scene;
+import soot.SootField;
+import soot.SootMethod;
+import soot.jimple.toolkits.callgraph.CallGraph;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Metadata of all dummy methods created by the instrumentation.
+ *
+ * Every dummy gets a dense id when it is created and its metadata is stored in an array under that id, grouped by
+ * kind as well so that the sources and sinks of the dataflow analysis can be built without scanning the call graph.
+ * The dataflow analysis usually runs on a Scene that was loaded from the instrumented APK and has its own method
+ * objects, so the dummies are looked up once by signature in that Scene and from then on are mapped to their
+ * metadata by identity. Interpreting a result is then a single map lookup, no name parsing or string building.
+ */
+class DummyRegistry {
+    // metadata of every dummy indexed by its id
+    private DummyCallInfo[] infos = new DummyCallInfo[256];
+    private int size = 0;
+    // metadata of the dummies of every kind, in the order they were created
+    private final EnumMap<DummyKind, ArrayList<DummyCallInfo>> byKind = new EnumMap<>(DummyKind.class);
+    // dummy methods of the Scene we are reading results from. The solver threads of the dataflow analysis look dummies
+    // up all the time, so the map is never changed but replaced as a whole and read without a lock
+    private volatile Map<SootMethod, DummyCallInfo> byMethod = Collections.emptyMap();
+    // metadata of every dummy by the signature of the dummy method
+    private final ConcurrentHashMap<String, DummyCallInfo> bySignature = new ConcurrentHashMap<>();
+
+    DummyRegistry() {
+        for (DummyKind kind: DummyKind.values()) {
+            byKind.put(kind, new ArrayList<>());
+        }
+    }
+
+    /**
+     * Remember a newly created dummy method
+     *
+     * @param info metadata of the dummy method
+     */
+    synchronized void register(DummyCallInfo info) {
+        if (info.id >= infos.length)
+            infos = Arrays.copyOf(infos, Math.max(infos.length * 2, info.id + 1));
+        infos[info.id] = info;
+        size = Math.max(size, info.id + 1);
+        byKind.get(info.kind).add(info);
+        bySignature.put(info.dummySignature, info);
+        Metrics.count("dummies." + info.kind.name().toLowerCase(), 1);
+    }
+
+    /**
+     * @param id id of a dummy method
+     * @return metadata of the dummy method, or null if there is none with this id
+     */
+    synchronized DummyCallInfo get(int id) {
+        return id >= 0 && id < size ? infos[id] : null;
+    }
+
+    /**
+     * @param dummy dummy method of the current Scene, looked up by identity if it was returned by
+     *              {@link #getReachable} and by signature otherwise
+     * @return metadata of the dummy method, or null if it is not one of ours
+     */
+    DummyCallInfo get(SootMethod dummy) {
+        DummyCallInfo info = byMethod.get(dummy);
+        if (info != null || dummy == null)
+            return info;
+        // FlowDroid may have loaded the APK again since the dummies were resolved, so fall back to the signature
+        return isDummyName(dummy.getName()) ? bySignature.get(dummy.getSignature()) : null;
+    }
+
+    // Check if a method name is one of our dummy names, without building its signature
+    static boolean isDummyName(String name) {
+        return name.contains(Instrument.SET_STATIC_VAR) || name.contains(Instrument.NULLIFY_STATIC_VAR)
+                || name.contains(Instrument.OPEN_RESOURCE) || name.contains(Instrument.CLOSE_RESOURCE);
+    }
+
+    /**
+     * @param kind kind of dummy methods
+     * @return metadata of all dummy methods of this kind, in the order they were created
+     */
+    synchronized List<DummyCallInfo> getAll(DummyKind kind) {
+        return Collections.unmodifiableList(new ArrayList<>(byKind.get(kind)));
+    }
+
+    // one past the highest id in use
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Look up the dummy methods of a kind in the current Scene and keep the ones the call graph reaches. The methods
+     * that are found are mapped to their metadata, so {@link #get(SootMethod)} works for them afterwards.
+     *
+     * @param kind kind of dummy methods
+     * @return reachable dummy methods of this kind (every method at most once)
+     */
+    List<SootMethod> getReachable(DummyKind kind) {
+        CallGraph cg = Scene.v().getCallGraph();
+        ArrayList<SootMethod> reachable = new ArrayList<>();
+        IdentityHashMap<SootMethod, DummyCallInfo> resolved = new IdentityHashMap<>();
+        for (DummyCallInfo info: getAll(kind)) {
+            SootMethod m = Scene.v().grabMethod(info.dummySignature);
+            if (m == null)
+                continue;
+            resolved.put(m, info);
+            // an unreachable dummy can never be part of a dataflow path
+            if (cg.edgesInto(m).hasNext())
+                reachable.add(m);
+        }
+        // the dataflow analysis may already be reading the old map from its solver threads
+        synchronized (this) {
+            resolved.putAll(byMethod);
+            byMethod = Collections.unmodifiableMap(resolved);
+        }
+        return reachable;
+    }
+
+    /**
+     * Keep only the signatures of the fields and methods of every dummy, so that the registry does not keep the
+     * Scene we instrumented alive. {@link #attach()} looks them up again once the next Scene is loaded.
+     */
+    synchronized void detach() {
+        for (int id = 0; id < size; id++) {
+            if (infos[id] != null)
+                infos[id].detach();
+        }
+        byMethod = Collections.emptyMap();
+    }
+
+    /**
+     * Look up the fields and methods of every detached dummy in the current Scene. Dummies whose field or method
+     * does not exist there are dropped, no dataflow path can reach them.
+     *
+     * @return number of dummies that were dropped
+     */
+    synchronized int attach() {
+        int dropped = 0;
+        for (int id = 0; id < size; id++) {
+            DummyCallInfo info = infos[id];
+            if (info == null || info.attach())
+                continue;
+            infos[id] = null;
+            byKind.get(info.kind).remove(info);
+            bySignature.remove(info.dummySignature);
+            dropped++;
+        }
+        return dropped;
+    }
+}
+
+/**
+ * Metadata of one dummy method
+ */
+class DummyCallInfo {
+    // dense id of the dummy method (also the suffix of its name)
+    public final int id;
+    public final DummyKind kind;
+    // signature of the dummy method itself
+    public final String dummySignature;
+    // static variable of STATIC_* dummies
+    public SootField f;
+    // method the dummy call was added to
+    public SootMethod m;
+    // API method that opened or closed the resource of RESOURCE_* dummies
+    public SootMethod resOpen;
+    // the instrumented instruction as it was before the instrumentation (only known in the run that instrumented)
+    public String instruction;
+    // signatures of f, m and resOpen while the dummy is detached from any Scene (null otherwise)
+    private String[] detached;
+
+    public DummyCallInfo(int id, DummyKind kind, String dummySignature, SootField f, SootMethod m) {
+        this.id = id;
+        this.kind = kind;
+        this.dummySignature = dummySignature;
+        this.f = f;
+        this.m = m;
+        this.resOpen = null;
+    }
+
+    public DummyCallInfo(int id, DummyKind kind, String dummySignature, SootMethod resOpen, SootMethod m) {
+        this.id = id;
+        this.kind = kind;
+        this.dummySignature = dummySignature;
+        this.f = null;
+        this.m = m;
+        this.resOpen = resOpen;
+    }
+
+    // replace the Soot objects with their signatures
+    void detach() {
+        detached = new String[]{
+                f == null ? null : f.getSignature(),
+                m.getSignature(),
+                resOpen == null ? null : resOpen.getSignature()};
+        f = null;
+        m = null;
+        resOpen = null;
+    }
+
+    // look the signatures up in the current Scene, false if one of them is not there
+    boolean attach() {
+        if (detached == null)
+            return true;
+        f = detached[0] == null ? null : Scene.v().grabField(detached[0]);
+        m = Scene.v().grabMethod(detached[1]);
+        resOpen = detached[2] == null ? null : Scene.v().grabMethod(detached[2]);
+        boolean found = m != null && (kind.isStaticVariable() ? f != null : resOpen != null);
+        detached = null;
+        return found;
+    }
+}
+
+enum DummyKind {
+    // a static variable is set to a value (source)
+    STATIC_SET,
+    // a static variable is set to null (sink)
+    STATIC_NULL_SET,
+    // a resource is opened (source)
+    RESOURCE_OPEN,
+    // a resource is closed (sink)
+    RESOURCE_CLOSE;
+
+    // whether the metadata of this kind of dummy refers to a static variable (or else to a resource API method)
+    public boolean isStaticVariable() {
+        return this == STATIC_SET || this == STATIC_NULL_SET;
+    }
+}
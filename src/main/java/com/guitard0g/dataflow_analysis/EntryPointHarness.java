@@ -0,0 +1,411 @@
+package com.guitard0g.dataflow_analysis;
+
+import soot.Body;
+import soot.DoubleType;
+import soot.FloatType;
+import soot.Local;
+import soot.LongType;
+import soot.Modifier;
+import soot.RefLikeType;
+import soot.Scene;
+import soot.SootClass;
+import soot.SootMethod;
+import soot.Type;
+import soot.Unit;
+import soot.Value;
+import soot.VoidType;
+import soot.jimple.DoubleConstant;
+import soot.jimple.FloatConstant;
+import soot.jimple.IdentityStmt;
+import soot.jimple.IntConstant;
+import soot.jimple.InvokeExpr;
+import soot.jimple.InvokeStmt;
+import soot.jimple.Jimple;
+import soot.jimple.LongConstant;
+import soot.jimple.NullConstant;
+import soot.jimple.infoflow.InfoflowConfiguration;
+import soot.jimple.infoflow.android.InfoflowAndroidConfiguration;
+import soot.jimple.infoflow.android.SetupApplication;
+import soot.jimple.infoflow.results.DataFlowResult;
+import soot.jimple.infoflow.results.InfoflowResults;
+import soot.jimple.toolkits.callgraph.CallGraph;
+import soot.jimple.toolkits.callgraph.CallGraphBuilder;
+import soot.jimple.toolkits.callgraph.Edge;
+import soot.jimple.toolkits.callgraph.Kind;
+import soot.jimple.toolkits.pointer.DumbPointerAnalysis;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Makes instrumented code that no entry point reaches analyzable, in bounded batches.
+ *
+ * Every application method with one of our dummies in it that the call graph does not reach gets called from a
+ * synthetic harness method. The methods are grouped by class (so that e.g. a source in onCreateView and its sink in
+ * onDestroyView end up together) into batches of a bounded number of methods, and every batch gets its own harness
+ * method. The call graph of the harness methods is built with CHA and only its edges out of methods the normal call
+ * graph does not reach are added to it. All of this happens after the normal dataflow analysis finished, so the normal
+ * analysis runs on the call graph it would have without the harness.
+ *
+ * Calling all of these methods from the dummy main would make the normal dataflow analysis propagate through all of
+ * them at once. Instead, every batch is analyzed on its own after the normal analysis: the body of the dummy main is
+ * swapped for a single call of the harness method of the batch, the dataflow analysis runs on the existing call
+ * graph with the sources of the batch, and the original body is put back.
+ */
+class EntryPointHarness {
+    private static final String HARNESS_CLASS = "dummyHarnessClass";
+    // class of the entry point FlowDroid generates
+    private static final String DUMMY_MAIN_CLASS = "dummyMainClass";
+
+    private final AnalysisMode mode;
+    private final DummyRegistry dummies;
+    private final int batchSize;
+    private final ArrayList<Batch> batches = new ArrayList<>();
+    // sources that only the harness methods reach, in the order of the batches
+    private final LinkedHashSet<DummyCallInfo> sources = new LinkedHashSet<>();
+    // methods the normal call graph reaches
+    private final HashSet<SootMethod> reachable = new HashSet<>();
+    private int reachableBefore = 0;
+    private int reachableAfter = 0;
+
+    /**
+     * @param mode which kinds of leaks we are looking for
+     * @param dummies metadata of all instrumented functions
+     * @param batchSize maximum number of methods a harness method calls (a larger class still gets one batch)
+     */
+    EntryPointHarness(AnalysisMode mode, DummyRegistry dummies, int batchSize) {
+        this.mode = mode;
+        this.dummies = dummies;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Generate the harness methods for all unreachable methods with dummies and add their calls to the call graph.
+     * This must run after the normal dataflow analysis, since the harness edges are added to the call graph it uses.
+     */
+    void build() {
+        CallGraph cg = Scene.v().getCallGraph();
+        for (Iterator<Edge> it = cg.iterator(); it.hasNext(); ) {
+            Edge e = it.next();
+            reachable.add(e.src());
+            reachable.add(e.tgt());
+        }
+        reachable.addAll(Scene.v().getEntryPoints());
+
+        // unreachable methods with dummies, grouped by class
+        LinkedHashMap<SootClass, List<SootMethod>> byClass = new LinkedHashMap<>();
+        HashSet<SootMethod> targets = new HashSet<>();
+        for (DummyKind kind: getKinds()) {
+            for (DummyCallInfo info: dummies.getAll(kind)) {
+                SootMethod m = Scene.v().grabMethod(info.m.getSignature());
+                if (m == null || !m.isConcrete() || reachable.contains(m) || !m.getDeclaringClass().isApplicationClass())
+                    continue;
+                if (targets.add(m))
+                    byClass.computeIfAbsent(m.getDeclaringClass(), k -> new ArrayList<>()).add(m);
+            }
+        }
+        reachableBefore = countReachableDummies();
+        reachableAfter = reachableBefore;
+        if (targets.isEmpty())
+            return;
+
+        // whole classes go into a batch until it is full
+        ArrayList<SootClass> classes = new ArrayList<>(byClass.keySet());
+        classes.sort(Comparator.comparing(SootClass::getName));
+        SootClass harnessClass = new SootClass(HARNESS_CLASS, Modifier.PUBLIC);
+        harnessClass.setSuperclass(Scene.v().getSootClass("java.lang.Object"));
+        Scene.v().addClass(harnessClass);
+        harnessClass.setApplicationClass();
+        ArrayList<SootMethod> batchTargets = new ArrayList<>();
+        for (SootClass c: classes) {
+            if (!batchTargets.isEmpty() && batchTargets.size() + byClass.get(c).size() > batchSize) {
+                batches.add(new Batch(createHarnessMethod(harnessClass, batches.size(), batchTargets), batchTargets));
+                batchTargets = new ArrayList<>();
+            }
+            batchTargets.addAll(byClass.get(c));
+        }
+        batches.add(new Batch(createHarnessMethod(harnessClass, batches.size(), batchTargets), batchTargets));
+
+        addHarnessEdges(cg);
+        reachableAfter = countReachableDummies();
+        assignSources();
+    }
+
+    private List<DummyKind> getKinds() {
+        ArrayList<DummyKind> kinds = new ArrayList<>();
+        if (mode.analyzesMemory()) {
+            kinds.add(DummyKind.STATIC_SET);
+            kinds.add(DummyKind.STATIC_NULL_SET);
+        }
+        if (mode.analyzesResources()) {
+            kinds.add(DummyKind.RESOURCE_OPEN);
+            kinds.add(DummyKind.RESOURCE_CLOSE);
+        }
+        return kinds;
+    }
+
+    // Create a static method that calls every target once, with default values for all arguments
+    private static SootMethod createHarnessMethod(SootClass harnessClass, int index, List<SootMethod> targets) {
+        SootMethod harness = new SootMethod("batch" + index, Collections.emptyList(), VoidType.v(),
+                Modifier.PUBLIC | Modifier.STATIC);
+        harnessClass.addMethod(harness);
+
+        Body b = Jimple.v().newBody(harness);
+        int locals = 0;
+        for (SootMethod target: targets) {
+            ArrayList<Value> args = new ArrayList<>();
+            for (Type t: target.getParameterTypes()) {
+                args.add(defaultValue(t));
+            }
+
+            InvokeExpr invoke;
+            if (target.isStatic()) {
+                invoke = Jimple.v().newStaticInvokeExpr(target.makeRef(), args);
+            } else {
+                // a receiver of the declaring class, the dataflow analysis does not need it to be initialized
+                SootClass c = target.getDeclaringClass();
+                Local receiver = Jimple.v().newLocal("$r" + locals++, c.getType());
+                b.getLocals().add(receiver);
+                Value value = c.isAbstract() || c.isInterface() ? NullConstant.v() : Jimple.v().newNewExpr(c.getType());
+                b.getUnits().addLast(Jimple.v().newAssignStmt(receiver, value));
+                // a special invoke has exactly one target, so the harness does not add edges to overrides
+                invoke = c.isInterface() ? Jimple.v().newInterfaceInvokeExpr(receiver, target.makeRef(), args)
+                        : Jimple.v().newSpecialInvokeExpr(receiver, target.makeRef(), args);
+            }
+            b.getUnits().addLast(Jimple.v().newInvokeStmt(invoke));
+        }
+        b.getUnits().addLast(Jimple.v().newReturnVoidStmt());
+        harness.setActiveBody(b);
+        return harness;
+    }
+
+    private static Value defaultValue(Type t) {
+        if (t instanceof RefLikeType)
+            return NullConstant.v();
+        if (t instanceof LongType)
+            return LongConstant.v(0);
+        if (t instanceof FloatType)
+            return FloatConstant.v(0);
+        if (t instanceof DoubleType)
+            return DoubleConstant.v(0);
+        // boolean, byte, char, short and int are all ints in Jimple
+        return IntConstant.v(0);
+    }
+
+    // Build the CHA call graph of the harness methods and add its edges out of methods the call graph did not reach
+    private void addHarnessEdges(CallGraph cg) {
+        List<SootMethod> entryPoints = Scene.v().getEntryPoints();
+        ArrayList<SootMethod> harnessMethods = new ArrayList<>();
+        for (Batch batch: batches) {
+            harnessMethods.add(batch.harness);
+        }
+
+        // the builder replaces the call graph of the Scene, so put ours back afterwards
+        Scene.v().setEntryPoints(harnessMethods);
+        CallGraph harnessCg;
+        try {
+            CallGraphBuilder builder = new CallGraphBuilder(DumbPointerAnalysis.v());
+            builder.build();
+            harnessCg = builder.getCallGraph();
+        } finally {
+            Scene.v().setEntryPoints(entryPoints);
+            Scene.v().setCallGraph(cg);
+        }
+
+        for (Iterator<Edge> it = harnessCg.iterator(); it.hasNext(); ) {
+            Edge e = it.next();
+            if (!reachable.contains(e.src()))
+                cg.addEdge(new Edge(e.src(), e.srcStmt(), e.tgt(), e.kind()));
+        }
+    }
+
+    private int countReachableDummies() {
+        int count = 0;
+        for (DummyKind kind: getKinds()) {
+            count += dummies.getReachable(kind).size();
+        }
+        return count;
+    }
+
+    // Give every source that only the harness reaches to the first batch that reaches it
+    private void assignSources() {
+        CallGraph cg = Scene.v().getCallGraph();
+        IdentityHashMap<SootMethod, Batch> owner = new IdentityHashMap<>();
+        for (Batch batch: batches) {
+            ArrayDeque<SootMethod> q = new ArrayDeque<>();
+            HashSet<SootMethod> seen = new HashSet<>();
+            q.add(batch.harness);
+            seen.add(batch.harness);
+            while (!q.isEmpty()) {
+                for (Iterator<Edge> it = cg.edgesOutOf(q.remove()); it.hasNext(); ) {
+                    SootMethod tgt = it.next().tgt();
+                    if (seen.add(tgt)) {
+                        q.add(tgt);
+                        owner.putIfAbsent(tgt, batch);
+                    }
+                }
+            }
+        }
+
+        for (DummyKind kind: getKinds()) {
+            if (kind != DummyKind.STATIC_SET && kind != DummyKind.RESOURCE_OPEN)
+                continue;
+            for (SootMethod m: dummies.getReachable(kind)) {
+                Batch batch = owner.get(m);
+                // a dummy that the normal call graph reaches belongs to the normal analysis
+                if (batch == null || reachable.contains(m) || !CustomSourceSinkProvider.isAppMethod(m))
+                    continue;
+                batch.sources.add(m);
+                sources.add(dummies.get(m));
+            }
+        }
+    }
+
+    // sources that the normal analysis does not reach and that are analyzed by the batches instead
+    Set<DummyCallInfo> getSources() {
+        return sources;
+    }
+
+    /**
+     * Analyze every batch on its own, on the existing call graph
+     *
+     * @param options options of the APK to analyze
+     * @param analyzedApkPath APK that the current Scene was loaded from
+     * @param decided sources that were already decided without the dataflow analysis
+     * @param unknownSources gets the sources of all batches that timed out or failed
+     * @return dataflow results of all batches
+     */
+    Collection<DataFlowResult> run(CliOptions options, String analyzedApkPath, Set<DummyCallInfo> decided,
+                                   Set<DummyCallInfo> unknownSources) {
+        ArrayList<DataFlowResult> flows = new ArrayList<>();
+        System.out.println("Entry point synthesis: " + getTargetCount() + " unreachable methods in " + batches.size()
+                + " batches, reachable dummies " + reachableBefore + " -> " + reachableAfter + ", "
+                + sources.size() + " new sources");
+        if (batches.isEmpty())
+            return flows;
+
+        SootMethod dummyMain = null;
+        for (SootMethod entryPoint: Scene.v().getEntryPoints()) {
+            if (entryPoint.getDeclaringClass().getName().equals(DUMMY_MAIN_CLASS))
+                dummyMain = entryPoint;
+        }
+        if (dummyMain == null || !dummyMain.hasActiveBody()) {
+            System.out.println("Entry point synthesis: no dummy main method, skipping the batches");
+            unknownSources.addAll(sources);
+            return flows;
+        }
+
+        // sinks of all kinds we are looking for, a batch can call into normally reachable code as well
+        ArrayList<SootMethod> sinks = new ArrayList<>();
+        if (mode.analyzesMemory())
+            sinks.addAll(dummies.getReachable(DummyKind.STATIC_NULL_SET));
+        if (mode.analyzesResources())
+            sinks.addAll(dummies.getReachable(DummyKind.RESOURCE_CLOSE));
+
+        for (Batch batch: batches) {
+            CustomSourceSinkProvider ssp = new CustomSourceSinkProvider();
+            for (SootMethod source: batch.sources) {
+                if (!decided.contains(dummies.get(source)))
+                    ssp.addSourceMethod(source);
+            }
+            if (ssp.getSourceMethods().isEmpty())
+                continue;
+            for (SootMethod sink: sinks) {
+                ssp.addSinkMethod(sink);
+            }
+
+            long start = System.currentTimeMillis();
+            String state;
+            Body original = dummyMain.getActiveBody();
+            try {
+                // the dummy main only calls the harness of this batch while it is analyzed
+                dummyMain.setActiveBody(createBatchMain(dummyMain, batch.harness));
+                SetupApplication analyzer = new SetupApplication(options.platformPath, analyzedApkPath);
+                InfoflowAndroidConfiguration config = analyzer.getConfig();
+                config.setSootIntegrationMode(InfoflowAndroidConfiguration.SootIntegrationMode.UseExistingCallgraph);
+                config.setCodeEliminationMode(InfoflowConfiguration.CodeEliminationMode.NoCodeElimination);
+                config.setFlowSensitiveAliasing(false);
+                config.setEnableArrayTracking(false);
+                config.setDataFlowTimeout(options.timeout_seconds);
+                if (options.reachabilityOnly)
+                    ReachabilityHandler.install(analyzer, dummies);
+                if (options.slice)
+                    CallGraphSlice.install(analyzer, CallGraphSlice.sitesOf(mode, dummies));
+
+                InfoflowResults results = analyzer.runInfoflow(ssp);
+                state = Integer.toString(results.getTerminationState());
+                if (!results.isEmpty())
+                    flows.addAll(results.getResultSet());
+                if (results.getTerminationState() != 0)
+                    addSources(unknownSources, ssp);
+            } catch (Exception | StackOverflowError | OutOfMemoryError e) {
+                state = e.toString();
+                addSources(unknownSources, ssp);
+            } finally {
+                dummyMain.setActiveBody(original);
+            }
+            System.out.println("Harness batch " + batches.indexOf(batch) + ": " + batch.targets.size() + " methods, "
+                    + ssp.getSourceMethods().size() + " sources, " + (System.currentTimeMillis() - start)
+                    + " ms, termination state " + state);
+        }
+        return flows;
+    }
+
+    private void addSources(Set<DummyCallInfo> unknownSources, CustomSourceSinkProvider ssp) {
+        for (SootMethod source: ssp.getSourceMethods()) {
+            unknownSources.add(dummies.get(source));
+        }
+    }
+
+    // Create a dummy main body that only calls one harness method, and add that call to the call graph
+    private static Body createBatchMain(SootMethod dummyMain, SootMethod harness) {
+        Body b = Jimple.v().newBody(dummyMain);
+        // keep the identity statements of the parameters so the body stays valid
+        for (Local l: dummyMain.getActiveBody().getLocals()) {
+            if (dummyMain.getActiveBody().getParameterLocals().contains(l))
+                b.getLocals().add(l);
+        }
+        for (Unit u: dummyMain.getActiveBody().getUnits()) {
+            if (u instanceof IdentityStmt)
+                b.getUnits().addLast((Unit) u.clone());
+        }
+        InvokeStmt call = Jimple.v().newInvokeStmt(Jimple.v().newStaticInvokeExpr(harness.makeRef()));
+        b.getUnits().addLast(call);
+        b.getUnits().addLast(Jimple.v().newReturnVoidStmt());
+        Scene.v().getCallGraph().addEdge(new Edge(dummyMain, call, harness, Kind.STATIC));
+        return b;
+    }
+
+    private int getTargetCount() {
+        int count = 0;
+        for (Batch batch: batches) {
+            count += batch.targets.size();
+        }
+        return count;
+    }
+
+    /**
+     * Unreachable methods that are analyzed together
+     */
+    private static class Batch {
+        final SootMethod harness;
+        final List<SootMethod> targets;
+        // source dummies this batch is responsible for
+        final ArrayList<SootMethod> sources = new ArrayList<>();
+
+        Batch(SootMethod harness, List<SootMethod> targets) {
+            this.harness = harness;
+            this.targets = targets;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.guitard0g.dataflow_analysis;
+
+import soot.Scene;
+import soot.SootMethod;
+import soot.jimple.InvokeStmt;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One result of the analysis of an APK: a source that was never closed, one whose analysis did not finish, or a
+ * thread-like object created inside of a context container.
+ *
+ * Everything the reports need is kept as strings, so a finding stays readable after Soot was reset.
+ */
+class Finding {
+    public final Kind kind;
+    // metadata of the source dummy of the leak (null for thread findings)
+    public final DummyCallInfo source;
+    // leaked static variable, resource API method or thread-like class
+    public final String subject;
+    // signature of the method the leak starts in
+    public final String method;
+    // source file of that method
+    public final String file;
+    // the instruction that creates the leak (null if we do not know it, e.g. after a cache hit)
+    public final String instruction;
+    // shortest call path from an entry point to the method (null if there is none)
+    public final List<String> path;
+    public final State state;
+
+    private Finding(Kind kind, DummyCallInfo source, String subject, SootMethod m, String instruction, State state) {
+        this.kind = kind;
+        this.source = source;
+        this.subject = subject;
+        this.method = m.getSignature();
+        this.file = GroundTruth.sourceFile(m.getDeclaringClass());
+        this.instruction = instruction;
+        this.state = state;
+
+        ArrayList<SootMethod> steps = App.getMethodPath(m);
+        if (steps == null) {
+            this.path = null;
+        } else {
+            this.path = new ArrayList<>();
+            for (SootMethod step: steps) {
+                this.path.add(step.getSignature());
+            }
+        }
+    }
+
+    /**
+     * A source without a dataflow path to a matching sink
+     *
+     * @param kind STATIC_VARIABLE_LEAK, RESOURCE_LEAK or UNKNOWN
+     * @param source metadata of the source dummy
+     * @param state how far the analysis of the source got
+     * @return the finding
+     */
+    static Finding leak(Kind kind, DummyCallInfo source, State state) {
+        String subject = source.kind.isStaticVariable() ? source.f.getSignature() : source.resOpen.getSignature();
+        // source.m may belong to the Scene we instrumented, the path index works on the one we analyzed
+        SootMethod m = Scene.v().grabMethod(source.m.getSignature());
+        return new Finding(kind, source, subject, m == null ? source.m : m, source.instruction, state);
+    }
+
+    /**
+     * A thread-like object that is created inside of a context container
+     *
+     * @param stmt constructor call of the object
+     * @param m method of the constructor call
+     * @return the finding
+     */
+    static Finding thread(InvokeStmt stmt, SootMethod m) {
+        return thread(stmt.getInvokeExpr().getMethod().getDeclaringClass().getName(), m, stmt.toString());
+    }
+
+    /**
+     * A thread-like object that is created inside of a context container, as read back from the instrumentation cache
+     *
+     * @param objectClass class of the thread-like object
+     * @param m method of the constructor call
+     * @param instruction the constructor call
+     * @return the finding
+     */
+    static Finding thread(String objectClass, SootMethod m, String instruction) {
+        return new Finding(Kind.THREAD_LEAK, null, objectClass, m, instruction, State.INSTRUMENTATION);
+    }
+
+    enum Kind {
+        // a static variable that holds a context and is never set back to null
+        STATIC_VARIABLE_LEAK,
+        // a resource that is never closed
+        RESOURCE_LEAK,
+        // an AsyncTask, Thread or TimerTask created inside of a context container
+        THREAD_LEAK,
+        // the dataflow analysis of the source did not finish, so it may or may not leak
+        UNKNOWN
+    }
+
+    enum State {
+        // the dataflow analysis finished normally
+        COMPLETE,
+        // the dataflow analysis timed out or ran out of memory, a missing path may just not have been found
+        INCOMPLETE,
+        // the dataflow analysis of this source did not finish
+        UNKNOWN,
+        // found by the instrumentation, no dataflow analysis needed
+        INSTRUMENTATION
+    }
+}
+
+/**
+ * Gets every finding of an APK as soon as the analysis reports it
+ */
+interface FindingListener {
+    void onFinding(Finding finding);
+}
@@ -0,0 +1,158 @@
+package com.guitard0g.dataflow_analysis;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streams the findings of an APK to a file as soon as they are reported.
+ *
+ * Every finding is written and flushed right away: thread findings while the instrumentation runs, leak verdicts
+ * right after the dataflow analysis. Nothing is kept in memory, and a run that is killed still leaves the findings it
+ * had so far.
+ */
+abstract class FindingWriter implements FindingListener, Closeable {
+    protected final PrintWriter out;
+    // file name of the analyzed APK
+    protected final String apk;
+
+    protected FindingWriter(String path, String apk) throws IOException {
+        Path file = Paths.get(path);
+        if (file.getParent() != null)
+            Files.createDirectories(file.getParent());
+        this.out = new PrintWriter(Files.newBufferedWriter(file));
+        this.apk = apk;
+    }
+
+    /**
+     * Open the writers the options ask for
+     *
+     * @param options options of the APK to analyze
+     * @return open writers, empty if there are none
+     */
+    static List<FindingWriter> open(CliOptions options) {
+        String apk = Paths.get(options.apkPath).getFileName().toString();
+        ArrayList<FindingWriter> writers = new ArrayList<>();
+        try {
+            if (options.jsonlPath != null)
+                writers.add(new JsonlFindingWriter(options.jsonlPath, apk));
+            if (options.sarifPath != null)
+                writers.add(new SarifFindingWriter(options.sarifPath, apk));
+        } catch (IOException e) {
+            System.out.println("Could not open findings file: " + e);
+        }
+        return writers;
+    }
+
+    @Override
+    public void close() {
+        out.close();
+    }
+}
+
+/**
+ * Writes one JSON object per line and finding
+ */
+class JsonlFindingWriter extends FindingWriter {
+    JsonlFindingWriter(String path, String apk) throws IOException {
+        super(path, apk);
+    }
+
+    @Override
+    public void onFinding(Finding finding) {
+        out.println("{\"apk\": " + Json.quote(apk)
+                + ", \"kind\": " + Json.quote(finding.kind.toString())
+                + ", \"subject\": " + Json.quote(finding.subject)
+                + ", \"method\": " + Json.quote(finding.method)
+                + ", \"file\": " + Json.quote(finding.file)
+                + ", \"instruction\": " + Json.quote(finding.instruction)
+                + ", \"path\": " + Json.array(finding.path)
+                + ", \"state\": " + Json.quote(finding.state.toString()) + "}");
+        out.flush();
+    }
+}
+
+/**
+ * Writes a SARIF 2.1.0 log with one run and one result per finding.
+ *
+ * The head of the log is written when the file is opened and the tail when it is closed, the results in between are
+ * streamed. Every kind of finding is a rule, the method is the logical location and the call path is a code flow.
+ */
+class SarifFindingWriter extends FindingWriter {
+    private boolean first = true;
+
+    SarifFindingWriter(String path, String apk) throws IOException {
+        super(path, apk);
+        out.println("{");
+        out.println("  \"$schema\": \"https://json.schemastore.org/sarif-2.1.0.json\",");
+        out.println("  \"version\": \"2.1.0\",");
+        out.println("  \"runs\": [{");
+        out.println("    \"tool\": {\"driver\": {\"name\": \"dataflow_analysis\", \"rules\": [");
+        Finding.Kind[] kinds = Finding.Kind.values();
+        for (int i = 0; i < kinds.length; i++) {
+            out.println("      {\"id\": " + Json.quote(kinds[i].toString())
+                    + ", \"shortDescription\": {\"text\": " + Json.quote(describe(kinds[i])) + "}}"
+                    + (i + 1 < kinds.length ? "," : ""));
+        }
+        out.println("    ]}},");
+        out.println("    \"artifacts\": [{\"location\": {\"uri\": " + Json.quote(apk) + "}}],");
+        out.print("    \"results\": [");
+        out.flush();
+    }
+
+    @Override
+    public void onFinding(Finding finding) {
+        out.println(first ? "" : ",");
+        first = false;
+
+        String location = "{\"physicalLocation\": {\"artifactLocation\": {\"uri\": " + Json.quote(finding.file) + "}}"
+                + ", \"logicalLocations\": [{\"fullyQualifiedName\": " + Json.quote(finding.method)
+                + ", \"kind\": \"function\"}]}";
+        StringBuilder result = new StringBuilder();
+        result.append("      {\"ruleId\": ").append(Json.quote(finding.kind.toString()))
+                .append(", \"level\": ").append(Json.quote(finding.kind == Finding.Kind.UNKNOWN ? "note" : "warning"))
+                .append(", \"message\": {\"text\": ").append(Json.quote(describe(finding.kind) + ": " + finding.subject))
+                .append("}, \"locations\": [").append(location).append("]");
+        if (finding.path != null) {
+            result.append(", \"codeFlows\": [{\"threadFlows\": [{\"locations\": [");
+            for (int i = 0; i < finding.path.size(); i++) {
+                result.append(i == 0 ? "" : ", ").append("{\"location\": {\"logicalLocations\": [{\"fullyQualifiedName\": ")
+                        .append(Json.quote(finding.path.get(i))).append(", \"kind\": \"function\"}]}}");
+            }
+            result.append("]}]}]");
+        }
+        result.append(", \"properties\": {\"apk\": ").append(Json.quote(apk))
+                .append(", \"subject\": ").append(Json.quote(finding.subject))
+                .append(", \"instruction\": ").append(Json.quote(finding.instruction))
+                .append(", \"state\": ").append(Json.quote(finding.state.toString())).append("}}");
+        out.print(result);
+        out.flush();
+    }
+
+    @Override
+    public void close() {
+        out.println();
+        out.println("    ]");
+        out.println("  }]");
+        out.println("}");
+        super.close();
+    }
+
+    private static String describe(Finding.Kind kind) {
+        switch (kind) {
+            case STATIC_VARIABLE_LEAK:
+                return "Static variable holds a context and is never cleared";
+            case RESOURCE_LEAK:
+                return "Resource is never closed";
+            case THREAD_LEAK:
+                return "Thread-like object created inside of a context container";
+            default:
+                return "Analysis did not finish, the source may leak";
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package com.guitard0g.dataflow_analysis;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+import soot.SootClass;
+import soot.tagkit.SourceFileTag;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Known leaks of the DroidLeaks dataset (experiment/resource_leaks/droidleaks.xlsx).
+ *
+ * Every row of the sheet is one leak: the app, the leaked resource class, the revision that fixed it and the buggy
+ * revision before it, and the method and file the resource was opened in. The APK of the buggy revision is named
+ * "<app>-rev-<buggy revision>.apk" (spaces in the app name replaced by dashes). We read the sheet straight from the
+ * xlsx zip so that we do not need a spreadsheet library.
+ */
+class GroundTruth {
+    private static final String SHEET = "xl/worksheets/sheet1.xml";
+    private static final String SHARED_STRINGS = "xl/sharedStrings.xml";
+
+    // known leaks by the file name of the APK they are in
+    private final HashMap<String, ArrayList<Leak>> byApk = new HashMap<>();
+
+    /**
+     * Read the known leaks from a DroidLeaks xlsx file
+     *
+     * @param xlsxPath path of the xlsx file
+     * @throws IOException if the file can not be read or is not a DroidLeaks sheet
+     */
+    GroundTruth(String xlsxPath) throws IOException {
+        try (ZipFile zip = new ZipFile(xlsxPath)) {
+            List<String> strings = readSharedStrings(zip);
+            Document sheet = parse(zip, SHEET);
+            NodeList rows = sheet.getElementsByTagName("row");
+            // the first row is the header
+            for (int i = 1; i < rows.getLength(); i++) {
+                HashMap<String, String> cells = readRow((Element) rows.item(i), strings);
+                if (cells.get("A") == null || cells.get("D") == null)
+                    continue;
+                Leak leak = new Leak(cells.get("A"), cells.get("B"), cells.get("D"), cells.get("E"), cells.get("F"));
+                byApk.computeIfAbsent(leak.apkName(), k -> new ArrayList<>()).add(leak);
+            }
+        }
+    }
+
+    /**
+     * Get the known leaks of an APK
+     *
+     * @param apkName file name of the APK
+     * @return known leaks in the APK, empty if there are none
+     */
+    List<Leak> getLeaks(String apkName) {
+        return byApk.getOrDefault(apkName, new ArrayList<>());
+    }
+
+    // file names of all APKs with known leaks
+    List<String> getApkNames() {
+        return new ArrayList<>(byApk.keySet());
+    }
+
+    // the text of every shared string, cells of type "s" hold an index into this list
+    private static List<String> readSharedStrings(ZipFile zip) throws IOException {
+        ArrayList<String> strings = new ArrayList<>();
+        if (zip.getEntry(SHARED_STRINGS) == null)
+            return strings;
+        NodeList items = parse(zip, SHARED_STRINGS).getElementsByTagName("si");
+        for (int i = 0; i < items.getLength(); i++) {
+            // rich text is split into several runs, each with its own <t>
+            NodeList texts = ((Element) items.item(i)).getElementsByTagName("t");
+            StringBuilder text = new StringBuilder();
+            for (int j = 0; j < texts.getLength(); j++) {
+                text.append(texts.item(j).getTextContent());
+            }
+            strings.add(text.toString());
+        }
+        return strings;
+    }
+
+    // values of all cells of a row by column letter
+    private static HashMap<String, String> readRow(Element row, List<String> strings) {
+        HashMap<String, String> cells = new HashMap<>();
+        NodeList cs = row.getElementsByTagName("c");
+        for (int i = 0; i < cs.getLength(); i++) {
+            Element c = (Element) cs.item(i);
+            NodeList v = c.getElementsByTagName("v");
+            String value;
+            if ("inlineStr".equals(c.getAttribute("t"))) {
+                value = c.getTextContent();
+            } else if (v.getLength() == 0) {
+                continue;
+            } else if ("s".equals(c.getAttribute("t"))) {
+                value = strings.get(Integer.parseInt(v.item(0).getTextContent()));
+            } else {
+                value = v.item(0).getTextContent();
+            }
+            // the cell reference is the column letters followed by the row number
+            String column = c.getAttribute("r").replaceAll("[0-9]", "");
+            cells.put(column, value.trim());
+        }
+        return cells;
+    }
+
+    private static Document parse(ZipFile zip, String name) throws IOException {
+        ZipEntry entry = zip.getEntry(name);
+        if (entry == null)
+            throw new IOException("Not a DroidLeaks sheet, missing " + name);
+        try (InputStream in = zip.getInputStream(entry)) {
+            return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(in);
+        } catch (ParserConfigurationException | SAXException e) {
+            throw new IOException("Could not parse " + name + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * One known leak
+     */
+    static class Leak {
+        public final String app;
+        // fully qualified name of the leaked resource class
+        public final String resource;
+        public final String revision;
+        // name of the method the resource is opened in, as written in the sheet (e.g. "eta() @line 2585")
+        public final String method;
+        // name of the source file of that method (e.g. "Sched.java")
+        public final String file;
+
+        Leak(String app, String resource, String revision, String method, String file) {
+            this.app = app;
+            this.resource = resource == null ? "" : resource;
+            this.revision = revision;
+            this.method = method == null ? "" : method;
+            this.file = file == null ? "" : file;
+        }
+
+        // file name of the APK of the buggy revision
+        String apkName() {
+            return app.replace(' ', '-') + "-rev-" + revision + ".apk";
+        }
+
+        // stable description of this leak for reports
+        String key() {
+            return apkName() + "|" + resource + "|" + file + "|" + method;
+        }
+
+        /**
+         * Check if a finding of our analysis is this leak: same resource class, method name and source file
+         *
+         * @param finding finding in the APK of this leak
+         * @return whether the finding reports this leak
+         */
+        boolean matches(Finding finding) {
+            if (finding.kind != Finding.Kind.RESOURCE_LEAK)
+                return false;
+            DummyCallInfo source = finding.source;
+            if (!resource.equals(source.resOpen.getReturnType().toString())
+                    && !resource.equals(source.resOpen.getDeclaringClass().getName()))
+                return false;
+            return methodName().equals(source.m.getName()) && file.equals(finding.file);
+        }
+
+        // method name without the parameter list and line number, constructors use the name of their class
+        private String methodName() {
+            int paren = method.indexOf('(');
+            String name = (paren < 0 ? method : method.substring(0, paren)).trim();
+            String className = file.endsWith(".java") ? file.substring(0, file.length() - ".java".length()) : file;
+            return name.equals(className) ? "<init>" : name;
+        }
+    }
+
+    /**
+     * Get the name of the source file a class was compiled from
+     *
+     * @param cls class to look up
+     * @return the source file name from the debug info, or the outer class name with ".java" if there is none
+     */
+    static String sourceFile(SootClass cls) {
+        SourceFileTag tag = (SourceFileTag) cls.getTag("SourceFileTag");
+        if (tag != null)
+            return tag.getSourceFile();
+        String name = cls.getShortName();
+        int dollar = name.indexOf('$');
+        return (dollar < 0 ? name : name.substring(0, dollar)) + ".java";
+    }
+
+    // Stable description of a finding for reports, matching is done on the finding itself
+    static String key(String apkName, Finding finding) {
+        return apkName + "|" + finding.kind + "|" + finding.subject + "|" + finding.method;
+    }
+}
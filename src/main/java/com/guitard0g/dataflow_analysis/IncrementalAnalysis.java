@@ -0,0 +1,420 @@
+package com.guitard0g.dataflow_analysis;
+
+import soot.Scene;
+import soot.SootClass;
+import soot.SootField;
+import soot.SootMethod;
+import soot.Unit;
+import soot.ValueBox;
+import soot.jimple.FieldRef;
+import soot.jimple.toolkits.callgraph.CallGraph;
+import soot.jimple.toolkits.callgraph.Edge;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Reuses the verdicts of an earlier analysis of another revision of the same app.
+ *
+ * The state directory keeps a hash of every application method body and, for every source, its verdict, the sinks it
+ * reached and its neighbourhood: the methods the dataflow analysis can get to from the source, i.e. everything that
+ * calls into the source method (up to the FlowDroid dummy main) and everything those methods call, plus every method
+ * that touches the variable of a static variable source. Since the dummy main calls the callbacks of a component one
+ * after another, a value can also flow between callbacks without any call edge, e.g. a resource stored in a field in
+ * onCreate and closed in onDestroy. So all methods of the class of the source method belong to the neighbourhood as
+ * well. A value stored in a field, static or not, can be read by every method that uses the field, and from there
+ * flow on to its callers and callees and into the fields they use, so the neighbourhood is grown through calls and
+ * fields until nothing new is found. A source is analyzed again if a method in its neighbourhood changed, or if a
+ * changed method calls into or is called from its neighbourhood or shares a field with it, since new call edges and
+ * field accesses can only come from changed code. All other sources keep their old verdict and are not given to the
+ * dataflow analysis.
+ *
+ * Sources are identified across revisions by their kind, the method they are in, their variable or API method and
+ * their position among the sources of the same kind in that method, since the ids of dummies change from run to run.
+ * The instrumentation itself always runs again, its decisions show up in the hashes of the instrumented bodies.
+ */
+class IncrementalAnalysis {
+    private static final String STATE_FILE = "state.tsv";
+    private static final int STATE_VERSION = 3;
+    // class of the entry point FlowDroid generates, everything in the app is reachable from it
+    private static final String DUMMY_MAIN_CLASS = "dummyMainClass";
+    // the id suffix of our dummies, which differs between runs of the same code
+    private static final Pattern DUMMY_ID = Pattern.compile("(" + Instrument.SET_STATIC_VAR + "|"
+            + Instrument.NULLIFY_STATIC_VAR + "|" + Instrument.OPEN_RESOURCE + "|" + Instrument.CLOSE_RESOURCE + ")\\d+");
+
+    enum Verdict {
+        CLOSED,
+        LEAKED,
+        UNKNOWN
+    }
+
+    private final Path stateFile;
+    private final AnalysisMode mode;
+    // hashes of the method bodies of the previous and the current revision, by method signature
+    private final HashMap<String, String> oldHashes = new HashMap<>();
+    private final HashMap<String, String> hashes = new HashMap<>();
+    // results of the previous revision, by stable source id
+    private final HashMap<String, Record> oldRecords = new HashMap<>();
+    // stable ids of all dummies of the current revision
+    private final IdentityHashMap<DummyCallInfo, String> stableIds = new IdentityHashMap<>();
+    private final HashMap<String, DummyCallInfo> byStableId = new HashMap<>();
+    // application methods that use a field, by field signature, and the other way around
+    private final HashMap<String, Set<String>> fieldUsers = new HashMap<>();
+    private final HashMap<String, Set<String>> fieldsOf = new HashMap<>();
+    // sources that keep their verdict from the previous revision
+    private final IdentityHashMap<DummyCallInfo, Record> reused = new IdentityHashMap<>();
+    private int changedMethods = 0;
+
+    /**
+     * @param stateDir directory the state of the previous revision is read from and the new state is written to
+     * @param mode which kinds of leaks we are looking for (state of another mode is ignored)
+     */
+    IncrementalAnalysis(String stateDir, AnalysisMode mode) throws IOException {
+        Path dir = Paths.get(stateDir);
+        Files.createDirectories(dir);
+        this.stateFile = dir.resolve(STATE_FILE);
+        this.mode = mode;
+    }
+
+    /**
+     * Compare the current Scene with the previous revision and decide which sources keep their verdict. This must run
+     * after the call graph was built.
+     *
+     * @param dummies metadata of all instrumented functions
+     * @param sources all sources of this analysis
+     */
+    void prepare(DummyRegistry dummies, List<DummyCallInfo> sources) {
+        load();
+        hashMethods();
+        assignStableIds(dummies);
+
+        // methods that changed, were added or were removed
+        HashSet<String> changed = new HashSet<>();
+        for (Map.Entry<String, String> e: hashes.entrySet()) {
+            if (!e.getValue().equals(oldHashes.get(e.getKey())))
+                changed.add(e.getKey());
+        }
+        for (String m: oldHashes.keySet()) {
+            if (!hashes.containsKey(m))
+                changed.add(m);
+        }
+        changedMethods = changed.size();
+
+        // a neighbourhood that contains one of these methods may have gained or lost a call edge
+        HashSet<String> touched = new HashSet<>(changed);
+        CallGraph cg = Scene.v().getCallGraph();
+        for (String sig: changed) {
+            SootMethod m = Scene.v().grabMethod(sig);
+            if (m == null)
+                continue;
+            for (Iterator<Edge> it = cg.edgesInto(m); it.hasNext(); ) {
+                touched.add(it.next().src().getSignature());
+            }
+            for (Iterator<Edge> it = cg.edgesOutOf(m); it.hasNext(); ) {
+                touched.add(it.next().tgt().getSignature());
+            }
+            // a new or changed callback is called by the dummy main next to the other callbacks of its component
+            for (SootMethod callback: m.getDeclaringClass().getMethods()) {
+                touched.add(callback.getSignature());
+            }
+            // a changed method may have started to write a field the neighbourhood reads, or the other way around
+            for (String field: fieldsOf.getOrDefault(sig, Collections.emptySet())) {
+                touched.addAll(fieldUsers.get(field));
+            }
+        }
+
+        for (DummyCallInfo source: sources) {
+            Record old = oldRecords.get(stableIds.get(source));
+            if (old == null || !Collections.disjoint(old.neighbourhood, touched))
+                continue;
+            reused.put(source, old);
+        }
+    }
+
+    // Read the state of the previous revision, if there is one for this mode
+    private void load() {
+        if (!Files.isRegularFile(stateFile))
+            return;
+        try {
+            List<String> lines = Files.readAllLines(stateFile, StandardCharsets.UTF_8);
+            if (lines.isEmpty() || !lines.get(0).equals(header()))
+                return;
+
+            ArrayList<String> methods = new ArrayList<>();
+            for (String line: lines.subList(1, lines.size())) {
+                String[] parts = line.split("\t", -1);
+                if (parts[0].equals("M")) {
+                    methods.add(parts[1]);
+                    oldHashes.put(parts[1], parts[2]);
+                } else if (parts[0].equals("S")) {
+                    Record record = new Record(Verdict.valueOf(parts[2]));
+                    if (!parts[3].isEmpty())
+                        Collections.addAll(record.sinks, parts[3].split(";"));
+                    if (!parts[4].isEmpty()) {
+                        for (String index: parts[4].split(" ")) {
+                            record.neighbourhood.add(methods.get(Integer.parseInt(index)));
+                        }
+                    }
+                    oldRecords.put(parts[1], record);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // a broken state only costs us the reuse, the analysis itself is complete either way
+            System.out.println("Could not read incremental state, analyzing everything: " + e);
+            oldHashes.clear();
+            oldRecords.clear();
+        }
+    }
+
+    private String header() {
+        return "V\t" + STATE_VERSION + "\t" + mode + "\t" + Instrument.RULES_VERSION;
+    }
+
+    // Hash the instrumented body of every application method and remember which methods use which fields
+    private void hashMethods() {
+        MessageDigest digest = newDigest();
+        for (SootClass c: Scene.v().getApplicationClasses()) {
+            // the dummy main is generated from the callbacks, which are hashed themselves, and calls every component
+            if (c.getName().equals(DUMMY_MAIN_CLASS))
+                continue;
+            for (SootMethod m: c.getMethods()) {
+                // methods without a body were never reached when the call graph was built
+                if (!m.hasActiveBody() || DUMMY_ID.matcher(m.getName()).find())
+                    continue;
+                String body = DUMMY_ID.matcher(m.getActiveBody().toString()).replaceAll("$1");
+                hashes.put(m.getSignature(), toHex(digest.digest(body.getBytes(StandardCharsets.UTF_8))));
+
+                for (Unit u: m.getActiveBody().getUnits()) {
+                    for (ValueBox box: u.getUseAndDefBoxes()) {
+                        if (box.getValue() instanceof FieldRef) {
+                            SootField f = ((FieldRef) box.getValue()).getField();
+                            fieldUsers.computeIfAbsent(f.getSignature(), k -> new HashSet<>()).add(m.getSignature());
+                            fieldsOf.computeIfAbsent(m.getSignature(), k -> new HashSet<>()).add(f.getSignature());
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // Give every dummy an id that stays the same as long as the code around it does not change
+    private void assignStableIds(DummyRegistry dummies) {
+        HashMap<String, Integer> ordinals = new HashMap<>();
+        for (DummyKind kind: DummyKind.values()) {
+            for (DummyCallInfo info: dummies.getAll(kind)) {
+                String target = kind.isStaticVariable() ? info.f.getSignature() : info.resOpen.getSignature();
+                String base = kind + "|" + info.m.getSignature() + "|" + target;
+                int ordinal = ordinals.merge(base, 1, Integer::sum) - 1;
+                String id = base + "|" + ordinal;
+                stableIds.put(info, id);
+                byStableId.put(id, info);
+            }
+        }
+    }
+
+    // sources that keep their verdict and must not be given to the dataflow analysis
+    Set<DummyCallInfo> getReused() {
+        Set<DummyCallInfo> sources = Collections.newSetFromMap(new IdentityHashMap<>());
+        sources.addAll(reused.keySet());
+        return sources;
+    }
+
+    /**
+     * @param source a source returned by {@link #getReused()}
+     * @return its verdict in the previous revision
+     */
+    Verdict getVerdict(DummyCallInfo source) {
+        return reused.get(source).verdict;
+    }
+
+    /**
+     * @param source a source returned by {@link #getReused()}
+     * @return the sinks it reached in the previous revision that still exist
+     */
+    List<DummyCallInfo> getSinks(DummyCallInfo source) {
+        ArrayList<DummyCallInfo> sinks = new ArrayList<>();
+        for (String id: reused.get(source).sinks) {
+            DummyCallInfo sink = byStableId.get(id);
+            if (sink != null)
+                sinks.add(sink);
+        }
+        return sinks;
+    }
+
+    /**
+     * Write the state of this revision for the next run
+     *
+     * @param sources all sources of this analysis
+     * @param closed sources that reached a matching sink
+     * @param unknown sources whose analysis did not finish
+     * @param sinksBySource sinks that every source reached
+     */
+    void save(List<DummyCallInfo> sources, Set<DummyCallInfo> closed, Set<DummyCallInfo> unknown,
+              Map<DummyCallInfo, List<DummyCallInfo>> sinksBySource) throws IOException {
+        ArrayList<String> lines = new ArrayList<>();
+        lines.add(header());
+        HashMap<String, Integer> methodIndex = new HashMap<>();
+        for (Map.Entry<String, String> e: hashes.entrySet()) {
+            methodIndex.put(e.getKey(), methodIndex.size());
+            lines.add("M\t" + e.getKey() + "\t" + e.getValue());
+        }
+
+        // sources in the same method share most of their neighbourhood
+        HashMap<SootMethod, Set<String>> neighbourhoods = new HashMap<>();
+        for (DummyCallInfo source: sources) {
+            Verdict verdict = closed.contains(source) ? Verdict.CLOSED
+                    : unknown.contains(source) ? Verdict.UNKNOWN : Verdict.LEAKED;
+            ArrayList<String> sinks = new ArrayList<>();
+            for (DummyCallInfo sink: sinksBySource.getOrDefault(source, Collections.emptyList())) {
+                sinks.add(stableIds.get(sink));
+            }
+
+            Collection<String> neighbourhood;
+            if (reused.containsKey(source)) {
+                neighbourhood = reused.get(source).neighbourhood;
+            } else {
+                SootMethod m = Scene.v().grabMethod(source.m.getSignature());
+                if (m == null)
+                    continue;
+                // the instrumented method reads the variable of a static variable source, so every method that uses
+                // the variable is part of the neighbourhood of its method already
+                neighbourhood = neighbourhoods.computeIfAbsent(m, this::neighbourhoodOf);
+            }
+            StringBuilder indices = new StringBuilder();
+            for (String method: neighbourhood) {
+                Integer index = methodIndex.get(method);
+                if (index == null)
+                    continue;
+                if (indices.length() > 0)
+                    indices.append(' ');
+                indices.append(index);
+            }
+            lines.add("S\t" + stableIds.get(source) + "\t" + verdict + "\t" + String.join(";", sinks) + "\t" + indices);
+        }
+
+        // write next to the old state and swap, so that a crash leaves the old state intact
+        Path tmp = stateFile.resolveSibling(STATE_FILE + ".tmp");
+        Files.write(tmp, lines, StandardCharsets.UTF_8);
+        Files.move(tmp, stateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Get all methods whose changes can influence the dataflow from a source in method m
+    private Set<String> neighbourhoodOf(SootMethod m) {
+        CallGraph cg = Scene.v().getCallGraph();
+        HashSet<SootMethod> callers = new HashSet<>();
+        HashSet<SootMethod> reached = new HashSet<>();
+        HashSet<String> fields = new HashSet<>();
+        ArrayDeque<SootMethod> up = new ArrayDeque<>();
+        ArrayDeque<SootMethod> down = new ArrayDeque<>();
+
+        // the other callbacks of the component, which the dummy main calls before and after m
+        callers.add(m);
+        up.add(m);
+        for (SootMethod callback: m.getDeclaringClass().getMethods()) {
+            if (callback.isConcrete() && callers.add(callback))
+                up.add(callback);
+        }
+
+        while (!up.isEmpty()) {
+            // everything that calls them, without going through the dummy main that calls every component
+            while (!up.isEmpty()) {
+                SootMethod method = up.remove();
+                if (reached.add(method))
+                    down.add(method);
+                for (Iterator<Edge> it = cg.edgesInto(method); it.hasNext(); ) {
+                    SootMethod src = it.next().src();
+                    if (!src.getDeclaringClass().getName().equals(DUMMY_MAIN_CLASS) && callers.add(src))
+                        up.add(src);
+                }
+            }
+
+            // and everything these methods call
+            ArrayList<SootMethod> added = new ArrayList<>();
+            while (!down.isEmpty()) {
+                SootMethod method = down.remove();
+                added.add(method);
+                for (Iterator<Edge> it = cg.edgesOutOf(method); it.hasNext(); ) {
+                    SootMethod tgt = it.next().tgt();
+                    if (reached.add(tgt))
+                        down.add(tgt);
+                }
+            }
+
+            // a value stored in a field can be read by any method that uses the field, called from here or not, and
+            // flow on from there to its callers and callees, so these start another round
+            for (SootMethod method: added) {
+                for (String field: fieldsOf.getOrDefault(method.getSignature(), Collections.emptySet())) {
+                    if (!fields.add(field))
+                        continue;
+                    for (String user: fieldUsers.get(field)) {
+                        SootMethod u = Scene.v().grabMethod(user);
+                        if (u != null && callers.add(u))
+                            up.add(u);
+                    }
+                }
+            }
+        }
+
+        HashSet<String> signatures = new HashSet<>();
+        for (SootMethod method: reached) {
+            if (method.getDeclaringClass().isApplicationClass())
+                signatures.add(method.getSignature());
+        }
+        return signatures;
+    }
+
+    void printStats(int sources) {
+        System.out.println("Incremental analysis: " + changedMethods + " methods changed, " + reused.size() + " of "
+                + sources + " sources reused");
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every JVM has to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b: bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Result of one source in the previous revision
+     */
+    private static class Record {
+        final Verdict verdict;
+        // stable ids of the sinks the source reached
+        final ArrayList<String> sinks = new ArrayList<>();
+        // signatures of the methods whose changes can influence the source
+        final HashSet<String> neighbourhood = new HashSet<>();
+
+        Record(Verdict verdict) {
+            this.verdict = verdict;
+        }
+    }
+}
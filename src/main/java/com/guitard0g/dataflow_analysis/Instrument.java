@@ -6,24 +6,39 @@ import soot.jimple.internal.JReturnStmt;
 import soot.jimple.internal.JimpleLocal;
 
 import java.util.*;
-import java.util.function.Function;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 public class Instrument {
-    // Metadata hashmap for storing info about instrumented functions
-    public static HashMap<Integer, DummyCallInfo> keyToInfoDecoder = new HashMap<>();
+    // Metadata of every dummy method we create, keyed by its unique key
+    static DummyRegistry dummies = new DummyRegistry();
+    // hands out the unique keys of instrumented functions
+    static final AtomicInteger nextInfoKey = new AtomicInteger();
     // stores resources that we see used so that we know which ones to instrument close functions for
-    static HashSet<SootClass> usedResources = new HashSet<>();
+    static Set<SootClass> usedResources = ConcurrentHashMap.newKeySet();
     // keep a count of the number of thread/async related bugs for logging
-    static int threadBugCount = 0;
+    static final AtomicInteger threadBugCount = new AtomicInteger();
+    // number of worklist steps and time in milliseconds spent gathering context containers
+    static int contextContainerIterations = 0;
+    static long contextContainerMillis = 0;
     // keeps track of resource open methods
-    static HashSet<SootMethod> resourceOpens = new HashSet<>();
+    static Set<SootMethod> resourceOpens = ConcurrentHashMap.newKeySet();
     // whether or not we are instrumenting resources
     static boolean resMode = false;
 
 
     // set of all context containers that can qualify for memory leaks
     static HashSet<SootClass> contextContainers = new HashSet<>();
+    // memoized class hierarchy of the scene we are instrumenting
+    static ClassHierarchyIndex hierarchy;
+    // cached hierarchy checks for all of the fixed class predicates we use during instrumentation
+    static ClassHierarchyIndex.Query contextContainerQuery;
+    static ClassHierarchyIndex.Query asyncTaskQuery;
+    static ClassHierarchyIndex.Query threadOrTimerTaskQuery;
+    static ClassHierarchyIndex.Query resourceClassQuery;
+    static ClassHierarchyIndex.Query autoClosedResourceQuery;
+    static ClassHierarchyIndex.Query contentQueryMapQuery;
     // prefixes for function names of API functions that be resource openers
     static final HashSet<String> openers = new HashSet<>(Arrays.asList(new String[]{"start", "obtain", "request", "lock", "open", "register", "acquire", "vibrate", "enable", "<init>"}));
     // prefixes for function names of API functions that be resource closers
@@ -70,12 +85,29 @@ public class Instrument {
     public static final String SET_STATIC_VAR = "__SET__VAR__";
     public static final String NULLIFY_STATIC_VAR = "__NULLIFY__VAR__";
 
+    // Version of the instrumentation rules. Bump this whenever a change here changes the instrumented APK or the
+    // decoder, so that cached instrumentations (see InstrumentationCache) are not reused.
+    public static final int RULES_VERSION = 2;
+
     // List of auto managed resources that we do not need to worry about for leaks
     static final HashSet<String> autoManagedResources = new HashSet<>(Arrays.asList(
             "android.database.sqlite.SQLiteOpenHelper"));
 
-    public static HashMap<Integer, DummyCallInfo> instrument(String sdkPath, String apkPath, boolean resourceMode) {
-        resMode = resourceMode;
+    /**
+     * Instrument all leak candidates of an APK
+     *
+     * @param sdkPath path to the android platforms directory
+     * @param apkPath APK to instrument
+     * @param mode which kinds of leaks to instrument
+     * @param threads number of threads for the instrumentation walk
+     * @param writeApk whether or not to write the instrumented APK. If not, the instrumented code only lives in the
+     *                 current Scene and the dataflow analysis has to run on that Scene directly.
+     * @param lowMemory whether or not to release the bodies of methods that are not instrumented while walking
+     * @return metadata of all instrumented functions
+     */
+    public static DummyRegistry instrument(String sdkPath, String apkPath, AnalysisMode mode, int threads,
+                                                         boolean writeApk, boolean lowMemory) {
+        resMode = mode.analyzesResources();
 
         // We use the Soot pack manager to add a pass for instrumenting
         PackManager.v().getPack("wjtp").add(new Transform("wjtp.myInstrumenter", new SceneTransformer() {
@@ -83,89 +115,147 @@ public class Instrument {
             // (A "Scene" is the collection of all information about the APK that Soot has most recently analyzed)
             @Override
             protected void internalTransform(String var1, Map<String, String> var2) {
+                Metrics.end("instrumentation.soot_load");
                 // Keep track of methods we have seen
                 InstrumenterData data = new InstrumenterData();
 
+                // Index the class hierarchy so that our type checks are simple lookups
+                Metrics.begin("instrumentation.context_containers");
+                hierarchy = new ClassHierarchyIndex();
+
                 // Traverse all classes and calculate which ones are context containers
                 gatherContextContainers();
 
-                if (!resourceMode)
+                // Context containers are fixed from here on, so every class predicate can be cached
+                buildHierarchyQueries();
+                if (threads > 1)
+                    // Detectors will share the index between threads, so fill and freeze it up front
+                    freezeHierarchyQueries();
+                Metrics.end("instrumentation.context_containers");
+
+                // Rule out the methods that no detector can fire in from their dex code, without building bodies
+                Metrics.begin("instrumentation.prefilter");
+                DexPrefilter prefilter = DexPrefilter.build(apkPath, resMode, mode.analyzesMemory());
+                Metrics.end("instrumentation.prefilter");
+
+                // All of our checks run together in a single walk over the application code
+                InstrumentationPipeline pipeline = new InstrumentationPipeline()
+                        .setReleaseBodies(lowMemory)
+                        .setPrefilter(prefilter);
+                if (mode.analyzesMemory())
                     // If we are considering memory leaks, then analyze all thread classes
-                    analyzeThreadWork(data);
+                    pipeline.register(threadWorkDetector());
                 // Analyze openers of resources XOR static variables
-                analyzeOpeners(data);
+                pipeline.register(openerDetector(data));
                 // Analyze closers of resources XOR static variables
-                analyzeClosers(data);
-
-                // This is necessary to make sure we validate all of the classes we have altered
-                // add all new methods to their corresponding classes
-                for (SootMethod m: data.nullSets.values()) {
-                    SootClass c = m.getDeclaringClass();
-                    c.validate();
-                }
-                for (SootMethod m: data.valSets.values()) {
-                    SootClass c = m.getDeclaringClass();
-                    c.validate();
-                }
-                for (SootMethod m: data.resourceOpens) {
-                    SootClass c = m.getDeclaringClass();
-                    c.validate();
-                }
-                for (SootMethod m: data.resourceCloses) {
-                    SootClass c = m.getDeclaringClass();
-                    c.validate();
+                pipeline.register(closerDetector(data));
+                pipeline.run(threads);
+                if (prefilter != null)
+                    System.out.println("Dex pre-filter skipped " + pipeline.getSkippedBodies() + " of "
+                            + prefilter.getMethodCount() + " method bodies");
+
+                // Every modified body was validated when its rewrites were applied. In debug mode (--validate) we also
+                // validate every class we added dummy methods to, once per class.
+                Metrics.begin("instrumentation.validate");
+                if (soot.options.Options.v().validate()) {
+                    LinkedHashSet<SootClass> altered = new LinkedHashSet<>();
+                    for (SootMethod m: data.nullSets.values())
+                        altered.add(m.getDeclaringClass());
+                    for (SootMethod m: data.valSets.values())
+                        altered.add(m.getDeclaringClass());
+                    for (SootMethod m: data.resourceOpens)
+                        altered.add(m.getDeclaringClass());
+                    for (SootMethod m: data.resourceCloses)
+                        altered.add(m.getDeclaringClass());
+                    for (SootClass c: altered) {
+                        c.validate();
+                    }
                 }
+                Metrics.end("instrumentation.validate");
+                // the rest of the run is Soot writing the instrumented APK
+                Metrics.begin("instrumentation.write");
             }
         }));
 
+        if (!writeApk) {
+            // skip writing dex, and keep the instrumented bodies around after the run since nothing reloads them
+            soot.options.Options.v().set_output_format(soot.options.Options.output_format_none);
+            soot.options.Options.v().set_no_writeout_body_releasing(true);
+        }
+
         // Run the instrumentation
-        soot.Main.main(new String[]{"-android-jars", sdkPath, "-process-dir", apkPath});
+        Metrics.begin("instrumentation.soot_load");
+        try {
+            soot.Main.main(new String[]{"-android-jars", sdkPath, "-process-dir", apkPath});
+        } finally {
+            // In memory mode nothing resets Soot before FlowDroid applies the wjtp pack again, which would instrument
+            // the instrumented Scene a second time
+            PackManager.v().getPack("wjtp").remove("wjtp.myInstrumenter");
+        }
+        Metrics.end("instrumentation.soot_load");
+        Metrics.end("instrumentation.write");
+        Metrics.set("context_container_iterations", contextContainerIterations);
         // Display thread bug number
-        System.out.println("Number of Thread related bugs: " + threadBugCount);
+        System.out.println("Number of Thread related bugs: " + threadBugCount.get());
+        // Display context container propagation cost
+        System.out.println("Context container propagation: " + contextContainerIterations + " iterations in "
+                + contextContainerMillis + " ms");
 
         // clear this so that it doesnt take up heap space
         contextContainers = null;
+        hierarchy = null;
+        contextContainerQuery = null;
+        asyncTaskQuery = null;
+        threadOrTimerTaskQuery = null;
+        resourceClassQuery = null;
+        autoClosedResourceQuery = null;
+        contentQueryMapQuery = null;
+        // the resources we saw are only needed while instrumenting
+        usedResources = ConcurrentHashMap.newKeySet();
+        resourceOpens = ConcurrentHashMap.newKeySet();
 
         // return this as the decoder for our dataflow analysis
-        return keyToInfoDecoder;
+        return dummies;
     }
 
     /**
-     * Traverse the program code for AsyncTasks, ThreadTasks, TimerTasks that can cause a thread to reach a context
+     * Forget everything about the previously instrumented APK so that the next one can be instrumented in the same JVM
+     */
+    public static void reset() {
+        dummies = new DummyRegistry();
+        nextInfoKey.set(0);
+        usedResources = ConcurrentHashMap.newKeySet();
+        threadBugCount.set(0);
+        resourceOpens = ConcurrentHashMap.newKeySet();
+        contextContainers = new HashSet<>();
+        contextContainerIterations = 0;
+        contextContainerMillis = 0;
+    }
+
+    /**
+     * Detector for AsyncTasks, ThreadTasks, TimerTasks that can cause a thread to reach a context
      *
-     * @param data Metadata for analysis
+     * @return detector that reports thread-like objects created inside of context containers
      */
-    public static void analyzeThreadWork(InstrumenterData data) {
-        // Traverse all classes
-        for(SootClass c: Scene.v().getApplicationClasses()) {
-            // Traverse all methods
-            for (SootMethod m : c.getMethods()) {
-                // Get information about the current method
-                CurrentOpenerMethodData mData;
-                try {
-                    mData = new CurrentOpenerMethodData(m);
-                } catch (MalformedMethodException e) {
-                    continue;
-                }
+    public static StatementDetector threadWorkDetector() {
+        return new StatementDetector() {
+            @Override
+            public boolean accepts(CurrentOpenerMethodData mData) {
+                return !mData.isClassInit();
+            }
 
-                // Iterate all units (bytecode instructions)
-                //important to use snapshotIterator here
-                for(Iterator iter = mData.units.snapshotIterator(); iter.hasNext();) {
-                    final Unit u = (Unit)iter.next();
-
-                    // Check the instruction for an object creation (which will be an <init>() invoke statement)
-                    u.apply(new AbstractStmtSwitch() {
-                        // InvokeStmt = method invocation
-                        public void caseInvokeStmt(InvokeStmt stmt) {
-                            // check for async tasks
-                            caseInvokeAsyncTask(stmt, mData, Instrument::isAsyncTask, "AsyncTask");
-                            // check for thread or timer tasks
-                            caseInvokeAsyncTask(stmt, mData, Instrument::isThreadOrTimerTask, "ThreadTask/TimerTask");
-                        }
-                    });
+            @Override
+            public void visit(Unit u, CurrentOpenerMethodData mData, RewriteQueue rewrites) {
+                // Check the instruction for an object creation (which will be an <init>() invoke statement)
+                if (u instanceof InvokeStmt) {
+                    InvokeStmt stmt = (InvokeStmt) u;
+                    // check for async tasks
+                    caseInvokeAsyncTask(stmt, mData, asyncTaskQuery, "AsyncTask", rewrites);
+                    // check for thread or timer tasks
+                    caseInvokeAsyncTask(stmt, mData, threadOrTimerTaskQuery, "ThreadTask/TimerTask", rewrites);
                 }
             }
-        }
+        };
     }
 
     /**
@@ -194,7 +284,7 @@ public class Instrument {
      * @return whether or not this is an automanaged resource class
      */
     private static boolean isAutoClosedResource(SootClass cls) {
-        return isInterestingClass(cls, c -> autoManagedResources.contains(c.getName()));
+        return autoClosedResourceQuery.test(cls);
     }
 
     /**
@@ -202,19 +292,21 @@ public class Instrument {
      *
      * @param stmt The bytecode invoke statement to check
      * @param mData The containing method information
-     * @param testFunc The function that checks for the class type to see if it is thread-like
+     * @param testQuery The cached hierarchy check for the class type to see if it is thread-like
      * @param objectType Logging information for if we find a leak
+     * @param rewrites queue of the current method, the leak is reported from there once the walk is done
      */
     public static void caseInvokeAsyncTask(InvokeStmt stmt,
                                            CurrentOpenerMethodData mData,
-                                           Function<SootClass, Boolean> testFunc,
-                                           String objectType) {
+                                           ClassHierarchyIndex.Query testQuery,
+                                           String objectType,
+                                           RewriteQueue rewrites) {
         /*
           If the declaring class is not a context or context container then this is not a leak
           If the method is a library method then we don't check because we only check user-written code
           If the class is Ad related then we don't check.
          */
-        if(!isInterestingClass(mData.method.getDeclaringClass(), Instrument::isContextContainer)
+        if(!contextContainerQuery.test(mData.method.getDeclaringClass())
                 || isLibraryClass(mData.method.getDeclaringClass())
                 || stmt.getInvokeExpr().getMethod().getDeclaringClass().isStatic()
                 || isAdRelated(mData)
@@ -227,118 +319,96 @@ public class Instrument {
           If the invoke expr is an object instantiation (<init>) and it is instantiating an object that matches our
           test function, then we declare this as a leak and display its information
          */
-        if (isInterestingClass(stmt.getInvokeExpr().getMethod().getDeclaringClass(), testFunc) &&
+        if (testQuery.test(stmt.getInvokeExpr().getMethod().getDeclaringClass()) &&
                 stmt.getInvokeExpr().getMethod().getName().equals("<init>")) {
-            threadBugCount++;
-
-            System.out.println("==========================(" + objectType + ")==============================");
-            System.out.println(objectType + " DECLARED INSIDE UI OBJECT (POTENTIAL LEAK): ");
-            System.out.println("Bytecode instruction: ");
-            System.out.println("\t" + stmt);
-            System.out.println("SOURCE: ");
-            System.out.println("\t" + mData.method);
-            ArrayList<SootMethod> path = App.getMethodPath(mData.method);
-            if (path == null) {
-                System.out.println("NO PATH TO SOURCE METHOD FOUND.");
-                return;
-            } else {
-                System.out.println("PATH TO SOURCE METHOD: ");
-                int i = 0;
-                for (SootMethod step: path) {
-                    System.out.print("\t" + i + ": ");
-                    System.out.println(step);
-                    i++;
-                }
+            // the call path is looked up on the call graph, which the parallel walk must not build
+            SootMethod m = mData.method;
+            rewrites.report(() -> reportThreadTask(stmt, m, objectType));
+        }
+    }
+
+    // Print a thread-like object created inside of a context container and pass it on as a finding
+    private static void reportThreadTask(InvokeStmt stmt, SootMethod m, String objectType) {
+        threadBugCount.incrementAndGet();
+
+        StringBuilder report = new StringBuilder();
+        report.append("==========================(").append(objectType).append(")==============================\n");
+        report.append(objectType).append(" DECLARED INSIDE UI OBJECT (POTENTIAL LEAK): \n");
+        report.append("Bytecode instruction: \n");
+        report.append("\t").append(stmt).append("\n");
+        report.append("SOURCE: \n");
+        report.append("\t").append(m).append("\n");
+        ArrayList<SootMethod> path = App.getMethodPath(m);
+        if (path == null) {
+            report.append("NO PATH TO SOURCE METHOD FOUND.\n");
+        } else {
+            report.append("PATH TO SOURCE METHOD: \n");
+            int i = 0;
+            for (SootMethod step: path) {
+                report.append("\t").append(i).append(": ").append(step).append("\n");
+                i++;
             }
         }
+        System.out.print(report);
+        App.report(Finding.thread(stmt, m));
     }
 
     /**
-     * Analyze all allocations. This means opening a resource or setting a static variable
+     * Detector for all allocations. This means opening a resource or setting a static variable
      *
      * @param data Instrumentation metadata that we might add to
+     * @return detector that instruments allocations
      */
-    public static void analyzeOpeners(InstrumenterData data) {
-        // Iterate over all classes
-        for(SootClass c: Scene.v().getApplicationClasses()) {
-            // create a copy of the methods because the instrumentation might alter some methods and cause
-            // a concurrent modification exception of the for loop
-            HashSet<SootMethod> methods = new HashSet<>(c.getMethods());
-            // Iterate over all methods
-            for (SootMethod m : methods) {
-                // Get method metadata we need
-                CurrentOpenerMethodData mData;
-                try {
-                    mData = new CurrentOpenerMethodData(m);
-                } catch (MalformedMethodException e) {
-                    continue;
-                }
+    public static StatementDetector openerDetector(InstrumenterData data) {
+        return new StatementDetector() {
+            @Override
+            public boolean accepts(CurrentOpenerMethodData mData) {
+                // class init is not user written so no allocation is being done
+                return !mData.isClassInit();
+            }
 
-                // Iterate over all instructions (units)
-                //important to use snapshotIterator here
-                for(Iterator iter = mData.units.snapshotIterator(); iter.hasNext();) {
-                    final Unit u = (Unit)iter.next();
-                    // This switch statement is what applies the instrumentation based on the type of instruction
-                    u.apply(new AbstractStmtSwitch() {
-                        // This is for identity instructions (assigning a register to a value)
-                        public void caseIdentityStmt(IdentityStmt stmt) {
-                            openerCaseIdentityStmt(stmt, mData);
-                        }
-
-                        // This is for a standard assign statement of a variable
-                        public void caseAssignStmt(AssignStmt stmt) {
-                            openerCaseAssignStmt(stmt, u, mData, data);
-                        }
-                    });
+            @Override
+            public void visit(Unit u, CurrentOpenerMethodData mData, RewriteQueue rewrites) {
+                if (u instanceof IdentityStmt) {
+                    // This is for identity instructions (assigning a register to a value)
+                    openerCaseIdentityStmt((IdentityStmt) u, mData);
+                } else if (u instanceof AssignStmt) {
+                    // This is for a standard assign statement of a variable
+                    openerCaseAssignStmt((AssignStmt) u, u, mData, data, rewrites);
                 }
             }
-        }
+        };
     }
 
     /**
-     * Analyze all deallocations or clears. This means closing a resource or setting a static variable to null
+     * Detector for all deallocations or clears. This means closing a resource or setting a static variable to null
      *
      * @param data Instrumentation metadata that we might add to
+     * @return detector that instruments deallocations
      */
-    public static void analyzeClosers(InstrumenterData data) {
-        // Iterate over all classes
-        for(SootClass c: Scene.v().getApplicationClasses()) {
-            // create a copy of the methods because the instrumentation might alter some methods and cause
-            // a concurrent modification exception of the for loop
-            HashSet<SootMethod> methods = new HashSet<>(c.getMethods());
-            // Iterate over all methods
-            for (SootMethod m : methods) {
-                // Get method metadata we need
-                CurrentCloserMethodData mData;
-                try {
-                    mData = new CurrentCloserMethodData(m);
-                } catch (MalformedMethodException e) {
-                    continue;
-                }
+    public static StatementDetector closerDetector(InstrumenterData data) {
+        return new StatementDetector() {
+            @Override
+            public boolean accepts(CurrentOpenerMethodData mData) {
+                return true;
+            }
 
-                // Iterate over all instructions (units)
-                //important to use snapshotIterator here
-                for(Iterator iter = mData.units.snapshotIterator(); iter.hasNext();) {
-                    final Unit u = (Unit)iter.next();
-                    // This switch statement is what applies the instrumentation based on the type of instruction
-                    u.apply(new AbstractStmtSwitch() {
-                        // Instrument variable assign statements
-                        public void caseAssignStmt(AssignStmt stmt) {
-                            closerCaseAssignStmt(stmt, u, mData, data);
-                            // If the right side of the assignment is an invocation, check for resource creation
-                            if (resMode && stmt.getRightOp() instanceof InvokeExpr)
-                                closerCaseInvokeExpr(stmt.getInvokeExpr(), u, mData, data);
-                        }
-
-                        // Instrument a method invocation for resource creation
-                        public void caseInvokeStmt(InvokeStmt stmt) {
-                            if (resMode)
-                                closerCaseInvokeExpr(stmt.getInvokeExpr(), u, mData, data);
-                        }
-                    });
+            @Override
+            public void visit(Unit u, CurrentOpenerMethodData mData, RewriteQueue rewrites) {
+                if (u instanceof AssignStmt) {
+                    // Instrument variable assign statements
+                    AssignStmt stmt = (AssignStmt) u;
+                    closerCaseAssignStmt(stmt, u, mData, data, rewrites);
+                    // If the right side of the assignment is an invocation, check for resource creation
+                    if (resMode && stmt.getRightOp() instanceof InvokeExpr)
+                        closerCaseInvokeExpr(stmt.getInvokeExpr(), u, mData, data, rewrites);
+                } else if (u instanceof InvokeStmt) {
+                    // Instrument a method invocation for resource creation
+                    if (resMode)
+                        closerCaseInvokeExpr(((InvokeStmt) u).getInvokeExpr(), u, mData, data, rewrites);
                 }
             }
-        }
+        };
     }
 
     /**
@@ -362,7 +432,8 @@ public class Instrument {
     public static void openerCaseAssignStmt(AssignStmt stmt,
                                             Unit u,
                                             CurrentOpenerMethodData mData,
-                                            InstrumenterData data) {
+                                            InstrumenterData data,
+                                            RewriteQueue rewrites) {
         if (stmt.getLeftOp() instanceof JimpleLocal) {
             // keep track of local values
             mData.localAssignments.put((JimpleLocal)stmt.getLeftOp(), stmt.getRightOp());
@@ -388,63 +459,10 @@ public class Instrument {
 
                 // Add this to our collection of resource openers
                 resourceOpens.add(((InvokeExpr)stmt.getRightOp()).getMethod());
-
-                // We need a unique key to decode what method this instrumentation corresponds to.
-                // We use the size of the number of instrumentations as the key because this will increment for
-                // every new instrumentation.
-                int infoKey = keyToInfoDecoder.size();
-
-                // Create our instrumentation dummy method
-                SootMethod dummy = createResourceReturnMethod((JimpleLocal)stmt.getLeftOp(), mData.method, infoKey);
-                data.resourceOpens.add(dummy);
                 // Add the resource type to the collection of used resources so that we know what to look out for
-                // in the next pass
                 Instrument.usedResources.add(((InvokeExpr) stmt.getRightOp()).getMethod().getDeclaringClass());
 
-                // Add this method to the decoder for use during dataflow analysis
-                keyToInfoDecoder.put(infoKey, new DummyCallInfo(stmt.getInvokeExpr().getMethod(), mData.method));
-
-
-                /*
-                    We need to change the bytecode so that we don't alter the behavior of the program but also so that
-                    our new instrumented value is being passed along to all of the same places. To achieve this we do
-                    the following:
-                    // change this
-                    $register = ResourceClass.open();
-
-                    // into this
-                    $dummyRegister = ResourceClass.open();
-                    $register = dummyFunction($dummyRegister);
-
-                    This way we are creating the same resource, but our dummy function is the one assigning the value
-                    that the rest of the program will use.
-                 */
-
-                // take our original ref and replace it with our new method invocation return val
-                Local originalRef = (JimpleLocal)stmt.getLeftOp();
-                // make a replacement ref to take the place of the original and add it to the body
-                Local replacementRef = Jimple.v().newLocal( "$m1",
-                        stmt.getLeftOp().getType());
-                mData.body.getLocals().add(replacementRef);
-
-                // create method invocation that sets our original ref to our dummy method invocation
-                ValueBox invocation = Jimple.v().newInvokeExprBox(Jimple.v().newStaticInvokeExpr(
-                        dummy.makeRef(),
-                        replacementRef
-                ));
-
-                // assign temporary value to original method call
-                stmt.setLeftOp(replacementRef);
-                // assign our original local to the method invocation
-                AssignStmt setField = Jimple.v().newAssignStmt(originalRef, invocation.getValue());
-
-                // add new assign statement
-                mData.units.insertAfter(setField, u);
-                for(Trap trap: mData.method.getActiveBody().getTraps()) {
-                    if (trap.getEndUnit() == u)
-                        trap.setEndUnit(setField);
-                }
-                mData.method.getActiveBody().validate();
+                rewrites.add(tx -> instrumentResourceOpen(stmt, u, mData, data, tx));
             }
         } else if (stmt.getLeftOp() instanceof StaticFieldRef) {
             // MEMORY LEAKS
@@ -457,43 +475,104 @@ public class Instrument {
                 // Keep track of the fields we are tracking
                 data.fields.add(f);
 
-                // get new unique key for our instrumented dummy function
-                int infoKey = keyToInfoDecoder.size();
+                rewrites.add(tx -> instrumentStaticSet(f, u, mData, tx));
+            }
+        }
+    }
+
+    // Wrap the resource returned by an opener invocation with our dummy source method
+    private static void instrumentResourceOpen(AssignStmt stmt,
+                                               Unit u,
+                                               CurrentOpenerMethodData mData,
+                                               InstrumenterData data,
+                                               BodyTransaction transaction) {
+        // We need a unique key to decode what method this instrumentation corresponds to.
+        // The key allocator increments for every new instrumentation.
+        int infoKey = nextInfoKey.getAndIncrement();
 
-                // create dummy method that just returns the value of the static variable
-                SootMethod dummy = createReturnMethod(f, infoKey);
+        // Create our instrumentation dummy method
+        SootMethod dummy = createResourceReturnMethod((JimpleLocal)stmt.getLeftOp(), mData.method, infoKey);
+        data.resourceOpens.add(dummy);
 
-                // add the new dummy method to the decoder
-                keyToInfoDecoder.put(infoKey, new DummyCallInfo(f, mData.method));
+        // Add this method to the decoder for use during dataflow analysis
+        DummyCallInfo info = new DummyCallInfo(infoKey, DummyKind.RESOURCE_OPEN, dummy.getSignature(),
+                stmt.getInvokeExpr().getMethod(), mData.method);
+        info.instruction = stmt.toString();
+        dummies.register(info);
 
-                // create a new reference to the static variable
-                Local fieldRef = addFieldRef(mData.body, f, "fieldTmpRef");
 
-                // set the new reference to an invocation of our dummy function
-                ValueBox invocation = Jimple.v().newInvokeExprBox(Jimple.v().newStaticInvokeExpr(
-                        dummy.makeRef(),
-                        fieldRef
-                ));
+        /*
+            We need to change the bytecode so that we don't alter the behavior of the program but also so that
+            our new instrumented value is being passed along to all of the same places. To achieve this we do
+            the following:
+            // change this
+            $register = ResourceClass.open();
+
+            // into this
+            $dummyRegister = ResourceClass.open();
+            $register = dummyFunction($dummyRegister);
+
+            This way we are creating the same resource, but our dummy function is the one assigning the value
+            that the rest of the program will use.
+         */
 
-                // invoke our new method and assign return value to local
-                Local fieldRef2 = addFieldRef(mData.body, f, "fieldTmpRef2");
-                AssignStmt setTmpField = Jimple.v().newAssignStmt(fieldRef2, invocation.getValue());
+        // take our original ref and replace it with our new method invocation return val
+        Local originalRef = (JimpleLocal)stmt.getLeftOp();
+        // make a replacement ref to take the place of the original and add it to the body
+        Local replacementRef = Jimple.v().newLocal( "$m1",
+                stmt.getLeftOp().getType());
+        mData.body.getLocals().add(replacementRef);
 
-                // assign local value to static field
-                AssignStmt setField = Jimple.v().newAssignStmt(Jimple.v().newStaticFieldRef(f.makeRef()), fieldRef2);
+        // create method invocation that sets our original ref to our dummy method invocation
+        ValueBox invocation = Jimple.v().newInvokeExprBox(Jimple.v().newStaticInvokeExpr(
+                dummy.makeRef(),
+                replacementRef
+        ));
 
-                // add after in reverse order
-                mData.units.insertAfter(setField, u);
-                mData.units.insertAfter(setTmpField, u);
-                mData.units.insertAfter(Jimple.v().newAssignStmt(fieldRef, Jimple.v().newStaticFieldRef(f.makeRef())), u);
+        // assign temporary value to original method call
+        stmt.setLeftOp(replacementRef);
+        // assign our original local to the method invocation
+        AssignStmt setField = Jimple.v().newAssignStmt(originalRef, invocation.getValue());
 
-                for(Trap trap: mData.method.getActiveBody().getTraps()) {
-                    if (trap.getEndUnit() == u)
-                        trap.setEndUnit(setField);
-                }
-                mData.method.getActiveBody().validate();
-            }
-        }
+        // add new assign statement
+        transaction.insertAfter(u, setField);
+    }
+
+    // Route the value assigned to static field f through our dummy source method
+    private static void instrumentStaticSet(SootField f, Unit u, CurrentOpenerMethodData mData,
+                                            BodyTransaction transaction) {
+        // get new unique key for our instrumented dummy function
+        int infoKey = nextInfoKey.getAndIncrement();
+
+        // create dummy method that just returns the value of the static variable
+        SootMethod dummy = createReturnMethod(f, infoKey);
+
+        // add the new dummy method to the decoder
+        DummyCallInfo info = new DummyCallInfo(infoKey, DummyKind.STATIC_SET, dummy.getSignature(), f, mData.method);
+        info.instruction = u.toString();
+        dummies.register(info);
+
+        // create a new reference to the static variable
+        Local fieldRef = addFieldRef(mData.body, f, "fieldTmpRef");
+
+        // set the new reference to an invocation of our dummy function
+        ValueBox invocation = Jimple.v().newInvokeExprBox(Jimple.v().newStaticInvokeExpr(
+                dummy.makeRef(),
+                fieldRef
+        ));
+
+        // invoke our new method and assign return value to local
+        Local fieldRef2 = addFieldRef(mData.body, f, "fieldTmpRef2");
+        AssignStmt setTmpField = Jimple.v().newAssignStmt(fieldRef2, invocation.getValue());
+
+        // assign local value to static field
+        AssignStmt setField = Jimple.v().newAssignStmt(Jimple.v().newStaticFieldRef(f.makeRef()), fieldRef2);
+
+        // read the field, pass it through our dummy and write it back, right after the original assignment
+        transaction.insertAfter(u,
+                Jimple.v().newAssignStmt(fieldRef, Jimple.v().newStaticFieldRef(f.makeRef())),
+                setTmpField,
+                setField);
     }
 
     /**
@@ -503,11 +582,13 @@ public class Instrument {
      * @param u current full instruction
      * @param mData current method metadata
      * @param data current general instrumentation data
+     * @param rewrites queue for changes to the current method
      */
     public static void closerCaseInvokeExpr(InvokeExpr expr,
                                             Unit u,
                                             CurrentCloserMethodData mData,
-                                            InstrumenterData data) {
+                                            InstrumenterData data,
+                                            RewriteQueue rewrites) {
 
         Value base;
         if (expr instanceof InstanceInvokeExpr && isResCloser(expr)) {
@@ -522,8 +603,18 @@ public class Instrument {
             return;
         }
 
+        rewrites.add(tx -> instrumentResourceClose(expr.getMethod(), base, u, mData, data, tx));
+    }
+
+    // Pass the closed resource to our dummy sink method right after it is closed
+    private static void instrumentResourceClose(SootMethod closer,
+                                                Value base,
+                                                Unit u,
+                                                CurrentCloserMethodData mData,
+                                                InstrumenterData data,
+                                                BodyTransaction transaction) {
         // get the unique key for our decoder to store the instrumentation function
-        int infoKey = keyToInfoDecoder.size();
+        int infoKey = nextInfoKey.getAndIncrement();
 
         // create dummy method for a resource clear
         SootMethod dummy = createResourceClearMethod(base, mData.method, infoKey);
@@ -531,7 +622,7 @@ public class Instrument {
         data.resourceCloses.add(dummy);
 
         // add an entry for this dummy function to our decoder
-        keyToInfoDecoder.put(infoKey, new DummyCallInfo(expr.getMethod(), mData.method));
+        dummies.register(new DummyCallInfo(infoKey, DummyKind.RESOURCE_CLOSE, dummy.getSignature(), closer, mData.method));
 
         // create an invocation of our dummy method with the register holding the resource object as the argument, i.e.
         // $register.close()
@@ -544,14 +635,8 @@ public class Instrument {
         // Create a full statement wrapping this invocation
         InvokeStmt invokeStmt = Jimple.v().newInvokeStmt(invocation);
 
-        // add new assign statement
-        mData.units.insertAfter(invokeStmt, u);
-        for(Trap trap: mData.method.getActiveBody().getTraps()) {
-            if (trap.getEndUnit() == u)
-                trap.setEndUnit(invokeStmt);
-        }
-        // validate this method for any mistakes
-        mData.method.getActiveBody().validate();
+        // add new invoke statement
+        transaction.insertAfter(u, invokeStmt);
     }
 
     /**
@@ -561,11 +646,13 @@ public class Instrument {
      * @param u current full instruction
      * @param mData current method metadata
      * @param data current general instrumentation data
+     * @param rewrites queue for changes to the current method
      */
     public static void closerCaseAssignStmt(AssignStmt stmt,
                                             Unit u,
                                             CurrentCloserMethodData mData,
-                                            InstrumenterData data) {
+                                            InstrumenterData data,
+                                            RewriteQueue rewrites) {
 
         // If this is assigning to a resource method invocation, we should still instrument it as a resource close
         if (stmt instanceof InvokeStmt &&
@@ -574,27 +661,8 @@ public class Instrument {
 
             if (!resMode)
                 return;
-            SootMethod dummy;
             InstanceInvokeExpr iexpr = (InstanceInvokeExpr)stmt.getInvokeExpr();
-            int infoKey = keyToInfoDecoder.size();
-            dummy = createResourceClearMethod(iexpr.getBase(), mData.method, infoKey);
-            data.resourceCloses.add(dummy);
-
-            keyToInfoDecoder.put(infoKey, new DummyCallInfo(stmt.getInvokeExpr().getMethod(), mData.method));
-
-            Value invocation = Jimple.v().newStaticInvokeExpr(
-                    dummy.makeRef(),
-                    iexpr.getBase()
-            );
-            InvokeStmt invokeStmt = Jimple.v().newInvokeStmt(invocation);
-
-            // add new assign statement
-            mData.units.insertAfter(invokeStmt, u);
-            for(Trap trap: mData.method.getActiveBody().getTraps()) {
-                if (trap.getEndUnit() == u)
-                    trap.setEndUnit(invokeStmt);
-            }
-            mData.method.getActiveBody().validate();
+            rewrites.add(tx -> instrumentResourceClose(iexpr.getMethod(), iexpr.getBase(), u, mData, data, tx));
         } else if (stmt.getLeftOp() instanceof StaticFieldRef) {
             // We are assigning a static variable
 
@@ -603,38 +671,40 @@ public class Instrument {
             SootField f = ref.getField();
 
             // if the static variable reaches a context container and we instrumented an opener for it, and the right
-            // side is a null value, then we need to instrument this assignment
-            if ((isInterestingField(f) || data.fields.contains(f)) &&
-                    stmt.getRightOp() instanceof NullConstant) {
-                // get unique key for decoder
-                int infoKey = keyToInfoDecoder.size();
+            // side is a null value, then we need to instrument this assignment.
+            // The opener may be in a class we have not walked yet, so we only check for it once the walk is done.
+            if (stmt.getRightOp() instanceof NullConstant) {
+                rewrites.add(tx -> {
+                    if (isInterestingField(f) || data.fields.contains(f))
+                        instrumentStaticNullSet(f, u, mData, tx);
+                });
+            }
+        }
+    }
 
-                // create our null set dummy method
-                SootMethod dummy = createSetNullMethod(f, infoKey);
+    // Pass the value of static field f to our dummy sink method right before it is set to null
+    private static void instrumentStaticNullSet(SootField f, Unit u, CurrentCloserMethodData mData,
+                                                BodyTransaction transaction) {
+        // get unique key for decoder
+        int infoKey = nextInfoKey.getAndIncrement();
 
-                // add entry for key mapping to dummy method
-                keyToInfoDecoder.put(infoKey, new DummyCallInfo(f, mData.method));
+        // create our null set dummy method
+        SootMethod dummy = createSetNullMethod(f, infoKey);
 
-                // create new local register to store the static variable
-                Local fieldRef = addFieldRef(mData.body, f, "fieldTmpRef");
+        // add entry for key mapping to dummy method
+        dummies.register(new DummyCallInfo(infoKey, DummyKind.STATIC_NULL_SET, dummy.getSignature(), f, mData.method));
 
-                // create new assign statement of this local assigned to the static variable
-                AssignStmt assign = Jimple.v().newAssignStmt( fieldRef, Jimple.v().newStaticFieldRef(f.makeRef()) );
-                mData.units.insertBefore( assign, u );
+        // create new local register to store the static variable
+        Local fieldRef = addFieldRef(mData.body, f, "fieldTmpRef");
 
-                // create new invocation of our dummy method with the new local as the argument
-                InvokeStmt invoke = Jimple.v().newInvokeStmt( Jimple.v().newStaticInvokeExpr( dummy.makeRef(), fieldRef ));
-                mData.units.insertBefore(invoke, u);
+        // create new assign statement of this local assigned to the static variable
+        AssignStmt assign = Jimple.v().newAssignStmt( fieldRef, Jimple.v().newStaticFieldRef(f.makeRef()) );
 
-                // check all traps for if we need to change the boundaries
-                for(Trap trap: mData.method.getActiveBody().getTraps()) {
-                    if (trap.getBeginUnit() == u)
-                        trap.setBeginUnit(assign);
-                }
-                // validate to make sure we didn't mess up
-                mData.method.getActiveBody().validate();
-            }
-        }
+        // create new invocation of our dummy method with the new local as the argument
+        InvokeStmt invoke = Jimple.v().newInvokeStmt( Jimple.v().newStaticInvokeExpr( dummy.makeRef(), fieldRef ));
+
+        // both go right before the assignment of null
+        transaction.insertBefore(u, assign, invoke);
     }
 
     // Add a new local to a method body with the same type as class c
@@ -827,6 +897,19 @@ public class Instrument {
         return false;
     }
 
+    // Answer every cached query for all classes of the Scene and stop memoizing, so the index is read-only
+    private static void freezeHierarchyQueries() {
+        for (SootClass cls: Scene.v().getClasses()) {
+            contextContainerQuery.test(cls);
+            asyncTaskQuery.test(cls);
+            threadOrTimerTaskQuery.test(cls);
+            resourceClassQuery.test(cls);
+            autoClosedResourceQuery.test(cls);
+            contentQueryMapQuery.test(cls);
+        }
+        hierarchy.freeze();
+    }
+
     // Check if the field is a context container type
     private static boolean isInterestingField(SootField f) {
         if (!(f.getType() instanceof RefType)) {
@@ -835,7 +918,7 @@ public class Instrument {
 
         SootClass cls = ((RefType) f.getType()).getSootClass();
 
-        return isInterestingClass(cls, Instrument::isContextContainer);
+        return contextContainerQuery.test(cls);
     }
 
     // Check if the assignment is assigning to a context container
@@ -860,7 +943,7 @@ public class Instrument {
 
         RefType ref = (RefType)value.getType();
         // check if the type of the right side of the assignment is a context container
-        if (isInterestingClass(ref.getSootClass(), Instrument::isContextContainer)) {
+        if (contextContainerQuery.test(ref.getSootClass())) {
             return true;
         }
 
@@ -872,32 +955,17 @@ public class Instrument {
         }
 
         // Check if it is an inner class of a context container
-        return isInterestingClass(ref.getSootClass().getOuterClass(), Instrument::isContextContainer);
+        return contextContainerQuery.test(ref.getSootClass().getOuterClass());
     }
 
-    // Generic function to see if this class or any class in its inheritance hierarchy matches the given test function
-    private static boolean isInterestingClass(SootClass cls, Function<SootClass, Boolean> isInterestingFunc) {
-        // check base class
-        if (isInterestingFunc.apply(cls))
-            return true;
-        for(SootClass itf: cls.getInterfaces()) {
-            if (isInterestingFunc.apply(itf))
-                return true;
-        }
-
-        // check inheritance hierarchy
-        while (cls.hasSuperclass()) {
-            cls = cls.getSuperclass();
-
-            if (isInterestingFunc.apply(cls))
-                return true;
-            for(SootClass itf: cls.getInterfaces()) {
-                if (isInterestingFunc.apply(itf))
-                    return true;
-            }
-        }
-
-        return false;
+    // Create the cached hierarchy checks. This has to happen after the context containers have been gathered.
+    static void buildHierarchyQueries() {
+        contextContainerQuery = hierarchy.newQuery(Instrument::isContextContainer);
+        asyncTaskQuery = hierarchy.newQuery(Instrument::isAsyncTask);
+        threadOrTimerTaskQuery = hierarchy.newQuery(Instrument::isThreadOrTimerTask);
+        resourceClassQuery = hierarchy.newQuery(Instrument::hasResourceClassName);
+        autoClosedResourceQuery = hierarchy.newQuery(cls -> autoManagedResources.contains(cls.getName()));
+        contentQueryMapQuery = hierarchy.newQuery(cls -> cls.getName().equals("android.content.ContentQueryMap"));
     }
 
     // check if this class is a context container
@@ -931,10 +999,14 @@ public class Instrument {
 
     // Check if this is a resource class
     private static boolean isResourceClass(SootClass cls) {
-        if (resClasses.contains(cls.getName()))
-            return true;
+        return resourceClassQuery.test(cls);
+    }
+
+    // Check if the name of this class (not its hierarchy) matches one of our resource classes
+    private static boolean hasResourceClassName(SootClass cls) {
+        String name = cls.getName();
         for (String resClass: resClasses) {
-            if (isInterestingClass(cls, (SootClass sc)->sc.getName().contains(resClass)))
+            if (name.contains(resClass))
                 return true;
         }
         return false;
@@ -945,9 +1017,7 @@ public class Instrument {
     private static boolean isSpecialResCloser(InvokeExpr iexpr) {
         if (iexpr.getMethod().getName().contains("startManagingCursor"))
             return true;
-        if (isInterestingClass(
-                iexpr.getMethod().getDeclaringClass(),
-                cls -> cls.getName().equals("android.content.ContentQueryMap")) &&
+        if (contentQueryMapQuery.test(iexpr.getMethod().getDeclaringClass()) &&
                 iexpr.getMethod().getName().equals("<init>")
         ) {
             return true;
@@ -956,7 +1026,7 @@ public class Instrument {
     }
 
     // Check if this invocation closes a resource
-    private static boolean isResCloser(InvokeExpr iexpr) {
+    static boolean isResCloser(InvokeExpr iexpr) {
         if (iexpr.getMethod().getDeclaringClass().isApplicationClass() ||
                 !isResourceClass(iexpr.getMethod().getDeclaringClass())) {
             return false;
@@ -973,7 +1043,7 @@ public class Instrument {
     }
 
     // Check if this invocation opens a resource
-    private static boolean isOpener(InvokeExpr iexpr) {
+    static boolean isOpener(InvokeExpr iexpr) {
         Type returnType = iexpr.getMethod().getReturnType();
         if (
                 iexpr.getMethod().getDeclaringClass().isApplicationClass() ||
@@ -994,71 +1064,91 @@ public class Instrument {
         return false;
     }
 
-    // check if the field touches a context
-    private static boolean isContextField(SootField f, HashSet<SootClass> currContainers) {
-        SootClass typeClass = Scene.v().getSootClassUnsafe(f.getType().toString(), false);
-        if (typeClass != null &&
-                isInterestingClass(typeClass, cls -> currContainers.contains(cls)))
-            return true;
-        return false;
-    }
-
-    // check if the method m accepts a context container as an argument
-    private static boolean hasContextParam(SootMethod m, HashSet<SootClass> currContainers) {
-        for (Type t: m.getParameterTypes()) {
-            SootClass typeClass = Scene.v().getSootClassUnsafe(t.toString(), false);
-            if (typeClass != null &&
-                    isInterestingClass(typeClass, cls -> currContainers.contains(cls)))
-                return true;
-        }
-        return false;
-    }
-
-    // Go through all fields that can hold context containers
-    private static HashSet<SootClass> gatherContextContainersF() {
-        HashSet<SootClass> contextContainers = new HashSet<>();
-        SootClass context = Scene.v().getSootClass("android.content.Context");
-        contextContainers.add(context);
+    /*
+        Gather all context containers.
 
-        // iteratively gather context containers until fixed point
-        int prevContainerCount;
-        do {
-            prevContainerCount = contextContainers.size();
+        A class is a context container if one of its constructors accepts a context container ("C" containers) or if
+        it implements an interface and one of its fields can hold a context container ("F" containers). Both sets
+        start out with android.content.Context and are closed under these rules independently, the final result is
+        their union.
 
-            for(SootClass cls: Scene.v().getClasses()) {
-                if (cls.getFields().stream().anyMatch(f -> isContextField(f, contextContainers)) && cls.getInterfaceCount() > 0)
-                    contextContainers.add(cls);
+        Instead of rescanning every class of the Scene until nothing changes, we first build a reverse dependency
+        graph from every type to the classes whose constructor parameters or fields mention a subtype of it. When a
+        class becomes a container we only revisit the classes that depend on it. Both sets are propagated by the
+        same worklist loop.
+     */
+    static void gatherContextContainers() {
+        long start = System.currentTimeMillis();
+        contextContainerIterations = 0;
+
+        // class number of a type -> classes with a constructor parameter (or field) that is a subtype of it
+        HashMap<Integer, ArrayList<SootClass>> constructorDependents = new HashMap<>();
+        HashMap<Integer, ArrayList<SootClass>> fieldDependents = new HashMap<>();
+        for (SootClass cls: Scene.v().getClasses()) {
+            for (SootMethod constructor: getConstructors(cls)) {
+                for (Type t: constructor.getParameterTypes()) {
+                    addDependent(constructorDependents, t, cls);
+                }
+            }
+            // classes without interfaces never become field containers so nothing depends on their fields
+            if (cls.getInterfaceCount() > 0) {
+                for (SootField f: cls.getFields()) {
+                    addDependent(fieldDependents, f.getType(), cls);
+                }
             }
-        } while (contextContainers.size() != prevContainerCount);
+        }
 
-        return contextContainers;
-    }
+        HashSet<SootClass> constructorContainers = new HashSet<>();
+        HashSet<SootClass> fieldContainers = new HashSet<>();
+        ArrayDeque<SootClass> constructorWorklist = new ArrayDeque<>();
+        ArrayDeque<SootClass> fieldWorklist = new ArrayDeque<>();
 
-    // Go through all classes that can be context containers
-    private static HashSet<SootClass> gatherContextContainersC() {
-        HashSet<SootClass> contextContainers = new HashSet<>();
         SootClass context = Scene.v().getSootClass("android.content.Context");
-        contextContainers.add(context);
+        constructorContainers.add(context);
+        constructorWorklist.add(context);
+        fieldContainers.add(context);
+        fieldWorklist.add(context);
+
+        // propagate new containers to the classes that depend on them until fixed point
+        while (!constructorWorklist.isEmpty() || !fieldWorklist.isEmpty()) {
+            contextContainerIterations++;
+            if (!constructorWorklist.isEmpty()) {
+                propagateContainer(constructorWorklist.remove(), constructorDependents, constructorContainers, constructorWorklist);
+            } else {
+                propagateContainer(fieldWorklist.remove(), fieldDependents, fieldContainers, fieldWorklist);
+            }
+        }
 
-        // iteratively gather context containers until fixed point
-        int prevContainerCount;
-        do {
-            prevContainerCount = contextContainers.size();
+        contextContainers = constructorContainers;
+        contextContainers.addAll(fieldContainers);
+        contextContainerMillis = System.currentTimeMillis() - start;
+    }
 
-            for(SootClass cls: Scene.v().getClasses()) {
-                List<SootMethod> constructors = getConstructors(cls);
-                if (constructors.stream().anyMatch(f -> hasContextParam(f, contextContainers)))
-                    contextContainers.add(cls);
-            }
-        } while (contextContainers.size() != prevContainerCount);
+    // record that owner mentions type t, so owner depends on every supertype of t
+    private static void addDependent(HashMap<Integer, ArrayList<SootClass>> dependents, Type t, SootClass owner) {
+        SootClass typeClass = Scene.v().getSootClassUnsafe(t.toString(), false);
+        if (typeClass == null)
+            return;
 
-        return contextContainers;
+        BitSet supertypes = hierarchy.getClosure(typeClass);
+        for (int i = supertypes.nextSetBit(0); i >= 0; i = supertypes.nextSetBit(i + 1)) {
+            dependents.computeIfAbsent(i, k -> new ArrayList<>()).add(owner);
+        }
     }
 
-    // gather all context containers
-    private static void gatherContextContainers() {
-        contextContainers = gatherContextContainersC();
-        contextContainers.addAll(gatherContextContainersF());
+    // every class depending on a new container becomes a container itself
+    private static void propagateContainer(SootClass container,
+                                           HashMap<Integer, ArrayList<SootClass>> dependents,
+                                           HashSet<SootClass> containers,
+                                           ArrayDeque<SootClass> worklist) {
+        ArrayList<SootClass> affected = dependents.get(container.getNumber());
+        if (affected == null)
+            return;
+
+        for (SootClass cls: affected) {
+            if (containers.add(cls))
+                worklist.add(cls);
+        }
     }
 
     // get constructors for a class
@@ -1072,78 +1162,51 @@ public class Instrument {
     }
 }
 
-class DummyCallInfo {
-    public SootField f;
-    public SootMethod m;
-    public SootMethod resOpen;
-
-    public DummyCallInfo(SootField f, SootMethod m) {
-        this.f = f;
-        this.m = m;
-        this.resOpen = null;
-    }
-
-    public DummyCallInfo(SootMethod resOpen, SootMethod m) {
-        this.f = null;
-        this.m = m;
-        this.resOpen = resOpen;
-    }
-}
-
 class InstrumenterData {
     public HashMap<SootField, SootMethod> nullSets;
     public HashMap<SootField, SootMethod> valSets;
     public HashMap<Integer, DummyCallInfo> keyToInfo;
-    public HashSet<SootField> fields;
-    public HashSet<SootMethod> resourceOpens;
-    public HashSet<SootMethod> resourceCloses;
+    // detectors may run in parallel, so everything they add to is concurrent
+    public Set<SootField> fields;
+    public Set<SootMethod> resourceOpens;
+    public Set<SootMethod> resourceCloses;
 
     public InstrumenterData() {
         nullSets = new HashMap<>();
         valSets = new HashMap<>();
         keyToInfo = new HashMap<>();
-        fields = new HashSet<>();
-        resourceOpens = new HashSet<>();
-        resourceCloses = new HashSet<>();
+        fields = ConcurrentHashMap.newKeySet();
+        resourceOpens = ConcurrentHashMap.newKeySet();
+        resourceCloses = ConcurrentHashMap.newKeySet();
     }
 }
 
-class CurrentOpenerMethodData {
-    public Body body;
-    public SootMethod method;
+class CurrentOpenerMethodData extends CurrentCloserMethodData {
     public HashMap<JimpleLocal, Value> localAssignments;
-    public PatchingChain units;
     public HashSet<Unit> skippableInstrs;
 
     public CurrentOpenerMethodData(SootMethod m) {
-        if (m.getName().equals("<clinit>")) {
-            // Continue if this is a class init because it is
-            // not user written so no allocation is being done
-            throw new MalformedMethodException();
-        }
-
-        if (!m.hasActiveBody()) {
-            try {
-                m.retrieveActiveBody();
-            } catch (Exception ignore) {
-                throw new MalformedMethodException();
-            }
-        }
-
-        this.method = m;
-        this.body = m.getActiveBody();
-        this.units = this.body.getUnits();
+        super(m);
         this.localAssignments = new HashMap<>();
         fillSkippableInstrs();
     }
 
+    // Class init is not user written so no allocation is being done
+    public boolean isClassInit() {
+        return method.getName().equals("<clinit>");
+    }
+
+    // Drop the maps that are only needed while the detectors walk the method
+    public void releaseDetectionState() {
+        localAssignments = null;
+        skippableInstrs = null;
+    }
 
     private void fillSkippableInstrs() {
         this.skippableInstrs = new HashSet<>();
         HashSet<Unit> skips = new HashSet<>();
         HashSet<Value> rets = new HashSet<>();
-        for(Iterator iter = this.units.snapshotIterator(); iter.hasNext();) {
-            final Unit u = (Unit)iter.next();
+        for (Unit u: this.units) {
             if (u instanceof JReturnStmt) {
                 JReturnStmt ret = (JReturnStmt)u;
                 if (ret.getOp() instanceof JimpleLocal)
@@ -1151,8 +1214,7 @@ class CurrentOpenerMethodData {
             }
         }
 
-        for(Iterator iter = this.units.snapshotIterator(); iter.hasNext();) {
-            final Unit u = (Unit) iter.next();
+        for (Unit u: this.units) {
             if (u instanceof AssignStmt) {
                 if (rets.contains(((AssignStmt)u).getLeftOp()))
                     skips.add(u);
@@ -1166,7 +1228,7 @@ class CurrentOpenerMethodData {
 class CurrentCloserMethodData {
     public Body body;
     public SootMethod method;
-    public PatchingChain units;
+    public PatchingChain<Unit> units;
 
     public CurrentCloserMethodData(SootMethod m) {
         if (!m.hasActiveBody()) {
@@ -0,0 +1,323 @@
+package com.guitard0g.dataflow_analysis;
+
+import soot.Scene;
+import soot.SootField;
+import soot.SootMethod;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * On-disk cache of instrumented APKs.
+ *
+ * An entry is keyed by the hash of the APK, the analysis mode, the android platforms we instrument against and
+ * {@link Instrument#RULES_VERSION}, so any change to one of them is a miss. Every entry is a directory that holds the
+ * instrumented APK, the decoder of the dummy functions (as signatures, since the Soot objects do not outlive the
+ * instrumentation Scene), the thread findings of the instrumentation and everything the instrumentation printed. Entries are evicted least recently used first
+ * once the cache grows beyond its size limit.
+ */
+class InstrumentationCache {
+    private static final String APK_FILE = "instrumented.apk";
+    private static final String DECODER_FILE = "decoder.tsv";
+    private static final String LOG_FILE = "instrument.log";
+    private static final String THREADS_FILE = "threads.tsv";
+    private static final String STATS_FILE = "stats.properties";
+
+    private final Path dir;
+    private final long maxBytes;
+
+    InstrumentationCache(String dir, long maxMegabytes) throws IOException {
+        this.dir = Paths.get(dir);
+        this.maxBytes = maxMegabytes * 1024 * 1024;
+        Files.createDirectories(this.dir);
+    }
+
+    /**
+     * Compute the cache key of an APK
+     *
+     * @param options options of the APK to analyze
+     * @return hex digest of everything that changes the result of the instrumentation
+     */
+    String key(CliOptions options) throws IOException {
+        MessageDigest digest = newDigest();
+        try (InputStream in = Files.newInputStream(Paths.get(options.apkPath))) {
+            byte[] buf = new byte[1 << 16];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                digest.update(buf, 0, n);
+            }
+        }
+        digest.update(("\0" + options.mode + "\0" + Instrument.RULES_VERSION + "\0").getBytes(StandardCharsets.UTF_8));
+        digest.update(platformVersion(options.platformPath).getBytes(StandardCharsets.UTF_8));
+        return toHex(digest.digest());
+    }
+
+    // Soot picks the android.jar by the target SDK of the APK, so we key on every platform jar it could pick
+    private static String platformVersion(String platformPath) throws IOException {
+        StringBuilder version = new StringBuilder(new File(platformPath).getCanonicalPath());
+        try (Stream<Path> platforms = Files.list(Paths.get(platformPath))) {
+            for (Path platform: platforms.sorted().collect(Collectors.toList())) {
+                File jar = platform.resolve("android.jar").toFile();
+                if (jar.isFile()) {
+                    version.append('\n').append(platform.getFileName())
+                            .append(' ').append(jar.length())
+                            .append(' ').append(jar.lastModified());
+                }
+            }
+        }
+        return version.toString();
+    }
+
+    /**
+     * Look up an entry and mark it as recently used
+     *
+     * @param key cache key of the APK
+     * @return the cached entry, or null on a miss
+     */
+    Entry lookup(String key) {
+        Path entryDir = dir.resolve(key);
+        if (!Files.isRegularFile(entryDir.resolve(APK_FILE)) || !Files.isRegularFile(entryDir.resolve(DECODER_FILE))
+                || !Files.isRegularFile(entryDir.resolve(THREADS_FILE))) {
+            recordStat("misses");
+            return null;
+        }
+
+        entryDir.toFile().setLastModified(System.currentTimeMillis());
+        recordStat("hits");
+        return new Entry(entryDir);
+    }
+
+    /**
+     * Store the result of an instrumentation and evict old entries if the cache is too large
+     *
+     * @param key cache key of the APK
+     * @param instrumentedApk APK written by Soot
+     * @param dummies metadata of all instrumented functions
+     * @param threadFindings thread findings the instrumentation reported
+     * @param log everything the instrumentation printed
+     */
+    void store(String key, String instrumentedApk, DummyRegistry dummies, List<Finding> threadFindings, String log)
+            throws IOException {
+        // write into a temporary directory first so that a crash never leaves a half written entry behind
+        Path tmp = Files.createTempDirectory(dir, key + ".tmp");
+        Files.copy(Paths.get(instrumentedApk), tmp.resolve(APK_FILE), StandardCopyOption.REPLACE_EXISTING);
+        Files.write(tmp.resolve(LOG_FILE), log.getBytes(StandardCharsets.UTF_8));
+
+        // one line per dummy: id, kind, dummy signature, field or resource method signature, containing method signature
+        ArrayList<String> records = new ArrayList<>();
+        for (DummyKind kind: DummyKind.values()) {
+            for (DummyCallInfo info: dummies.getAll(kind)) {
+                String target = kind.isStaticVariable() ? info.f.getSignature() : info.resOpen.getSignature();
+                records.add(info.id + "\t" + kind + "\t" + info.dummySignature + "\t" + target + "\t"
+                        + info.m.getSignature());
+            }
+        }
+        Files.write(tmp.resolve(DECODER_FILE), records, StandardCharsets.UTF_8);
+
+        // one line per thread finding: class of the thread-like object, method signature, constructor call
+        ArrayList<String> threads = new ArrayList<>();
+        for (Finding finding: threadFindings) {
+            threads.add(finding.subject + "\t" + finding.method + "\t" + finding.instruction);
+        }
+        Files.write(tmp.resolve(THREADS_FILE), threads, StandardCharsets.UTF_8);
+
+        Path entryDir = dir.resolve(key);
+        deleteRecursively(entryDir);
+        Files.move(tmp, entryDir, StandardCopyOption.ATOMIC_MOVE);
+
+        evict();
+    }
+
+    /**
+     * Remove an entry that turned out to be unusable
+     *
+     * @param entry entry to remove
+     */
+    void invalidate(Entry entry) {
+        try {
+            deleteRecursively(entry.dir);
+        } catch (IOException ignored) {}
+    }
+
+    // Delete the least recently used entries until the cache fits into its size limit again
+    private void evict() throws IOException {
+        List<Path> entries;
+        try (Stream<Path> files = Files.list(dir)) {
+            entries = files.filter(Files::isDirectory).collect(Collectors.toList());
+        }
+
+        HashMap<Path, Long> sizes = new HashMap<>();
+        long total = 0;
+        for (Path entry: entries) {
+            long size = sizeOf(entry);
+            sizes.put(entry, size);
+            total += size;
+        }
+
+        entries.sort(Comparator.comparingLong(e -> e.toFile().lastModified()));
+        for (Path entry: entries) {
+            if (total <= maxBytes)
+                break;
+            total -= sizes.get(entry);
+            deleteRecursively(entry);
+            recordStat("evictions");
+        }
+    }
+
+    // Count a cache event in the stats file that is kept across runs
+    private void recordStat(String name) {
+        Path statsFile = dir.resolve(STATS_FILE);
+        Properties stats = new Properties();
+        try {
+            if (Files.isRegularFile(statsFile)) {
+                try (InputStream in = Files.newInputStream(statsFile)) {
+                    stats.load(in);
+                }
+            }
+            long count = Long.parseLong(stats.getProperty(name, "0")) + 1;
+            stats.setProperty(name, Long.toString(count));
+            try (OutputStream out = Files.newOutputStream(statsFile)) {
+                stats.store(out, "instrumentation cache statistics");
+            }
+        } catch (IOException | NumberFormatException ignored) {
+            // statistics are best effort, they should never fail an analysis
+        }
+
+        System.out.println("Instrumentation cache " + name + ": " + stats.getProperty("hits", "0")
+                + " hits, " + stats.getProperty("misses", "0") + " misses, "
+                + stats.getProperty("evictions", "0") + " evictions in total");
+    }
+
+    private static long sizeOf(Path path) throws IOException {
+        try (Stream<Path> files = Files.walk(path)) {
+            return files.filter(Files::isRegularFile).mapToLong(f -> f.toFile().length()).sum();
+        }
+    }
+
+    private static void deleteRecursively(Path path) throws IOException {
+        if (!Files.exists(path))
+            return;
+        try (Stream<Path> files = Files.walk(path)) {
+            // children before their parent directory
+            for (Path p: files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(p);
+            }
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every JVM has to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b: bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * A cached instrumentation result
+     */
+    static class Entry {
+        private final Path dir;
+
+        private Entry(Path dir) {
+            this.dir = dir;
+        }
+
+        // copy the cached APK to where the dataflow analysis expects the instrumented APK
+        void restoreApk(String instrumentedApk) throws IOException {
+            Path target = Paths.get(instrumentedApk);
+            if (target.getParent() != null)
+                Files.createDirectories(target.getParent());
+            Files.copy(dir.resolve(APK_FILE), target, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        // everything the instrumentation printed when this entry was created
+        String log() throws IOException {
+            Path logFile = dir.resolve(LOG_FILE);
+            if (!Files.isRegularFile(logFile))
+                return "";
+            return new String(Files.readAllBytes(logFile), StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Rebuild the dummy metadata from the stored signatures. This must run after the instrumented APK is loaded.
+         *
+         * @return metadata with the fields and methods of the current Scene, or null if one of them does not exist
+         */
+        DummyRegistry resolveDummies() throws IOException {
+            DummyRegistry dummies = new DummyRegistry();
+            for (String line: Files.readAllLines(dir.resolve(DECODER_FILE), StandardCharsets.UTF_8)) {
+                if (line.isEmpty())
+                    continue;
+                String[] parts = line.split("\t");
+                if (parts.length != 5)
+                    return null;
+
+                int id = Integer.parseInt(parts[0]);
+                DummyKind kind = DummyKind.valueOf(parts[1]);
+                SootMethod m = Scene.v().grabMethod(parts[4]);
+                if (m == null)
+                    return null;
+                if (kind.isStaticVariable()) {
+                    SootField f = Scene.v().grabField(parts[3]);
+                    if (f == null)
+                        return null;
+                    dummies.register(new DummyCallInfo(id, kind, parts[2], f, m));
+                } else {
+                    SootMethod resOpen = Scene.v().grabMethod(parts[3]);
+                    if (resOpen == null)
+                        return null;
+                    dummies.register(new DummyCallInfo(id, kind, parts[2], resOpen, m));
+                }
+            }
+            return dummies;
+        }
+
+        /**
+         * Rebuild the thread findings of the instrumentation. This must run after the call graph of the instrumented
+         * APK is built, so that the findings get their call paths.
+         *
+         * @return the findings with the methods of the current Scene, or null if one of them does not exist
+         */
+        List<Finding> resolveThreadFindings() throws IOException {
+            ArrayList<Finding> findings = new ArrayList<>();
+            for (String line: Files.readAllLines(dir.resolve(THREADS_FILE), StandardCharsets.UTF_8)) {
+                if (line.isEmpty())
+                    continue;
+                String[] parts = line.split("\t", 3);
+                if (parts.length != 3)
+                    return null;
+                SootMethod m = Scene.v().grabMethod(parts[1]);
+                if (m == null)
+                    return null;
+                findings.add(Finding.thread(parts[0], m, parts[2]));
+            }
+            return findings;
+        }
+    }
+}
@@ -0,0 +1,447 @@
+package com.guitard0g.dataflow_analysis;
+
+import soot.Body;
+import soot.PatchingChain;
+import soot.Scene;
+import soot.SootClass;
+import soot.SootMethod;
+import soot.Trap;
+import soot.Unit;
+import soot.Value;
+import soot.ValueBox;
+import soot.jimple.FieldRef;
+import soot.jimple.InvokeExpr;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Runs every registered statement detector over the application code in a single walk.
+ *
+ * Each method body is retrieved once (unless a pre-filter rules the method out) and its units are iterated once. All registered detectors look at every unit
+ * and queue the rewrites they want to do. Nothing is changed while we are walking, the queued rewrites are applied
+ * after every method has been visited. Some rewrites depend on what the detectors found in other classes (e.g. a
+ * static field that is set to a context somewhere else), so they must not run before the whole walk is done.
+ *
+ * Detectors must be safe to call from several threads at once if the pipeline is run in parallel.
+ */
+public class InstrumentationPipeline {
+    // with several threads, classes are prepared on the calling thread and then walked in parallel in rounds of this
+    // many classes, so that the bodies of the whole app do not have to exist at the same time
+    private static final int CLASSES_PER_ROUND = 256;
+
+    private final ArrayList<StatementDetector> detectors = new ArrayList<>();
+    // whether the current run walks on worker threads, which must not build bodies or resolve references themselves
+    private boolean parallel = false;
+    // whether to release the bodies of methods that nothing is rewritten in
+    private boolean releaseBodies = false;
+    // methods whose bodies do not need to be built (null if every body is built)
+    private DexPrefilter prefilter;
+    private final AtomicInteger skippedBodies = new AtomicInteger();
+
+    /**
+     * Add a detector to the pipeline. Detectors see each unit in the order they were registered.
+     *
+     * @param detector detector to add
+     * @return this pipeline
+     */
+    public InstrumentationPipeline register(StatementDetector detector) {
+        detectors.add(detector);
+        return this;
+    }
+
+    /**
+     * Release the body of every method that the detectors queue no rewrites for, right after it was walked. Soot
+     * reads the body from the APK again if it is needed later (e.g. to write the instrumented APK), so this trades
+     * some time for not keeping the Jimple of the whole app in memory at once.
+     *
+     * @param releaseBodies whether or not to release the bodies
+     * @return this pipeline
+     */
+    public InstrumentationPipeline setReleaseBodies(boolean releaseBodies) {
+        this.releaseBodies = releaseBodies;
+        return this;
+    }
+
+    /**
+     * Skip the methods that a pre-filter rules out without building their bodies
+     *
+     * @param prefilter filter of the APK, or null to walk every method
+     * @return this pipeline
+     */
+    public InstrumentationPipeline setPrefilter(DexPrefilter prefilter) {
+        this.prefilter = prefilter;
+        return this;
+    }
+
+    // number of methods the pre-filter ruled out in the last run
+    public int getSkippedBodies() {
+        return skippedBodies.get();
+    }
+
+    /**
+     * Walk all application classes with the registered detectors and apply all of the queued rewrites
+     *
+     * @param threads number of threads to walk the classes with. With more than one thread the classes are split
+     *                across a fork/join pool. Only the detectors run concurrently, everything that changes the Scene
+     *                (building bodies, resolving references, the rewrites that create the dummy methods) is still done
+     *                by this thread alone.
+     */
+    public void run(int threads) {
+        ArrayList<SootClass> classes = new ArrayList<>(Scene.v().getApplicationClasses());
+
+        List<RewriteQueue> pending;
+        Metrics.begin("instrumentation.detect");
+        parallel = threads > 1;
+        if (parallel) {
+            pending = new ArrayList<>();
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                for (int from = 0; from < classes.size(); from += CLASSES_PER_ROUND) {
+                    int to = Math.min(classes.size(), from + CLASSES_PER_ROUND);
+                    // building the bodies is not parallel, the phases show how much of the time that is
+                    Metrics.begin("instrumentation.prepare");
+                    prepare(classes, from, to);
+                    Metrics.end("instrumentation.prepare");
+                    Metrics.begin("instrumentation.walk");
+                    List<RewriteQueue> round = pool.invoke(new WalkTask(this, classes, from, to));
+                    Metrics.end("instrumentation.walk");
+                    if (releaseBodies)
+                        releaseUnchanged(classes, from, to, round);
+                    pending.addAll(round);
+                }
+            } finally {
+                pool.shutdown();
+                parallel = false;
+            }
+        } else {
+            pending = walkClasses(classes, 0, classes.size());
+        }
+        Metrics.end("instrumentation.detect");
+        Metrics.set("instrumentation.skipped_bodies", skippedBodies.get());
+        Metrics.set("instrumentation.rewritten_methods", pending.size());
+
+        // Now that every detector has seen the whole program we can change the code.
+        // The queues are in class order no matter how many threads we used, so the result is deterministic.
+        Metrics.begin("instrumentation.rewrite");
+        for (RewriteQueue rewrites: pending) {
+            rewrites.apply();
+        }
+        Metrics.end("instrumentation.rewrite");
+    }
+
+    // Walk the classes in [from, to) and collect all non-empty rewrite queues
+    List<RewriteQueue> walkClasses(List<SootClass> classes, int from, int to) {
+        ArrayList<RewriteQueue> pending = new ArrayList<>();
+
+        // Traverse all classes
+        Metrics.count("instrumentation.classes", to - from);
+        for (SootClass c: classes.subList(from, to)) {
+            Metrics.count("instrumentation.methods", c.getMethodCount());
+            // Traverse all methods
+            for (SootMethod m: c.getMethods()) {
+                RewriteQueue rewrites = walk(m);
+                if (rewrites != null && !rewrites.isEmpty()) {
+                    pending.add(rewrites);
+                } else if (releaseBodies && !parallel && m.hasActiveBody()) {
+                    m.releaseActiveBody();
+                    Metrics.count("instrumentation.released_bodies", 1);
+                }
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * Build the bodies of the classes in [from, to) and resolve every method and field they refer to. Both can add
+     * phantom classes and methods to the Scene, which is not thread safe, so this runs before the workers walk the
+     * classes. The resolved references are cached in Soot, so the detectors only read the Scene afterwards.
+     */
+    private void prepare(List<SootClass> classes, int from, int to) {
+        for (SootClass c: classes.subList(from, to)) {
+            for (SootMethod m: c.getMethods()) {
+                if (!m.hasActiveBody()) {
+                    if (prefilter != null && prefilter.canSkip(m))
+                        continue;
+                    try {
+                        m.retrieveActiveBody();
+                    } catch (Exception ignore) {
+                        // walk() counts it as malformed
+                        continue;
+                    }
+                }
+                for (Unit u: m.getActiveBody().getUnits()) {
+                    for (ValueBox box: u.getUseAndDefBoxes()) {
+                        Value v = box.getValue();
+                        try {
+                            if (v instanceof InvokeExpr)
+                                ((InvokeExpr) v).getMethod();
+                            else if (v instanceof FieldRef)
+                                ((FieldRef) v).getField();
+                        } catch (RuntimeException ignore) {
+                            // unresolvable, a detector resolving it gets the same exception without changing anything
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // Release the bodies of the methods in [from, to) that are not rewritten (parallel mode does this per round)
+    private void releaseUnchanged(List<SootClass> classes, int from, int to, List<RewriteQueue> rewritten) {
+        Set<Body> changed = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (RewriteQueue rewrites: rewritten) {
+            changed.add(rewrites.getBody());
+        }
+        for (SootClass c: classes.subList(from, to)) {
+            for (SootMethod m: c.getMethods()) {
+                if (m.hasActiveBody() && !changed.contains(m.getActiveBody())) {
+                    m.releaseActiveBody();
+                    Metrics.count("instrumentation.released_bodies", 1);
+                }
+            }
+        }
+    }
+
+    // Run all interested detectors over the units of one method
+    private RewriteQueue walk(SootMethod m) {
+        if (prefilter != null && !m.hasActiveBody() && prefilter.canSkip(m)) {
+            skippedBodies.incrementAndGet();
+            return null;
+        }
+        if (parallel && !m.hasActiveBody()) {
+            // prepare() could not build the body, and workers must not try again
+            Metrics.count("instrumentation.malformed_methods", 1);
+            return null;
+        }
+
+        // Get information about the current method (this is the only place we retrieve the body, unless prepare() did)
+        CurrentOpenerMethodData mData;
+        try {
+            mData = new CurrentOpenerMethodData(m);
+        } catch (MalformedMethodException e) {
+            Metrics.count("instrumentation.malformed_methods", 1);
+            return null;
+        }
+
+        ArrayList<StatementDetector> active = new ArrayList<>(detectors.size());
+        for (StatementDetector detector: detectors) {
+            if (detector.accepts(mData))
+                active.add(detector);
+        }
+        if (active.isEmpty())
+            return null;
+
+        RewriteQueue rewrites = new RewriteQueue(mData.body);
+        // Iterate all units (bytecode instructions). No detector changes the body while we walk it.
+        for (Unit u: mData.units) {
+            for (StatementDetector detector: active) {
+                detector.visit(u, mData, rewrites);
+            }
+        }
+        // the queued rewrites keep mData alive until the whole walk is done, but they do not need what we detected with
+        mData.releaseDetectionState();
+        return rewrites;
+    }
+}
+
+/**
+ * Splits a range of classes in half until it is small enough to walk directly
+ */
+class WalkTask extends RecursiveTask<List<RewriteQueue>> {
+    // ranges with at most this many classes are walked by a single task
+    private static final int CLASSES_PER_TASK = 8;
+
+    private final InstrumentationPipeline pipeline;
+    private final List<SootClass> classes;
+    private final int from;
+    private final int to;
+
+    WalkTask(InstrumentationPipeline pipeline, List<SootClass> classes, int from, int to) {
+        this.pipeline = pipeline;
+        this.classes = classes;
+        this.from = from;
+        this.to = to;
+    }
+
+    @Override
+    protected List<RewriteQueue> compute() {
+        if (to - from <= CLASSES_PER_TASK) {
+            return pipeline.walkClasses(classes, from, to);
+        }
+
+        int mid = (from + to) >>> 1;
+        WalkTask left = new WalkTask(pipeline, classes, from, mid);
+        WalkTask right = new WalkTask(pipeline, classes, mid, to);
+        left.fork();
+        List<RewriteQueue> rightResult = right.compute();
+        // keep the queues in class order
+        ArrayList<RewriteQueue> result = new ArrayList<>(left.join());
+        result.addAll(rightResult);
+        return result;
+    }
+}
+
+/**
+ * A check that looks at single statements of a method and queues instrumentation for them
+ */
+interface StatementDetector {
+    /**
+     * @param mData method that is about to be walked
+     * @return whether or not this detector wants to see the statements of this method
+     */
+    boolean accepts(CurrentOpenerMethodData mData);
+
+    /**
+     * Look at a single unit. Changes to the body must be queued in rewrites, never done directly.
+     *
+     * @param u current instruction
+     * @param mData containing method metadata
+     * @param rewrites queue for changes to this method
+     */
+    void visit(Unit u, CurrentOpenerMethodData mData, RewriteQueue rewrites);
+}
+
+/**
+ * Changes to a single method body that are applied after the detection walk
+ */
+class RewriteQueue {
+    private final Body body;
+    private final ArrayList<Consumer<BodyTransaction>> rewrites = new ArrayList<>();
+
+    // findings that are reported once the walk is done, since reporting builds call paths
+    private final ArrayList<Runnable> reports = new ArrayList<>();
+
+    RewriteQueue(Body body) {
+        this.body = body;
+    }
+
+    public void add(Consumer<BodyTransaction> rewrite) {
+        rewrites.add(rewrite);
+    }
+
+    public void report(Runnable report) {
+        reports.add(report);
+    }
+
+    public boolean isEmpty() {
+        return rewrites.isEmpty() && reports.isEmpty();
+    }
+
+    Body getBody() {
+        return body;
+    }
+
+    // report the findings, then apply the rewrites in the order they were queued, all of their insertions go into the
+    // body at once
+    public void apply() {
+        for (Runnable report: reports) {
+            report.run();
+        }
+        if (rewrites.isEmpty())
+            return;
+        BodyTransaction transaction = new BodyTransaction(body);
+        for (Consumer<BodyTransaction> rewrite: rewrites) {
+            rewrite.accept(transaction);
+        }
+        transaction.commit();
+    }
+}
+
+/**
+ * Collects the statements that the rewrites of one method insert and puts them into the body in one go.
+ *
+ * Inserting used to walk all traps of the method and validate the whole body for every single instrumented
+ * statement, which is quadratic in methods with many closes or static writes. Here the insertions are done in the
+ * order they were recorded (so the resulting body is the same as before), the trap boundaries are moved in a single
+ * pass over the traps and the body is validated once.
+ */
+class BodyTransaction {
+    private final Body body;
+    // statements to insert right after / before an original unit, one group per insertion in the order they were
+    // recorded
+    private final ArrayList<Unit> anchors = new ArrayList<>();
+    private final ArrayList<List<Unit>> groups = new ArrayList<>();
+    private final ArrayList<Boolean> after = new ArrayList<>();
+
+    BodyTransaction(Body body) {
+        this.body = body;
+    }
+
+    /**
+     * Insert statements right after a unit. A trap that ends at the unit is extended over the statements.
+     *
+     * @param u original unit of the body
+     * @param stmts statements to insert, in the order they should run
+     */
+    public void insertAfter(Unit u, Unit... stmts) {
+        record(u, stmts, true);
+    }
+
+    /**
+     * Insert statements right before a unit. Jumps to the unit go to the statements instead, and a trap that begins at
+     * the unit begins at them as well.
+     *
+     * @param u original unit of the body
+     * @param stmts statements to insert, in the order they should run
+     */
+    public void insertBefore(Unit u, Unit... stmts) {
+        record(u, stmts, false);
+    }
+
+    private void record(Unit u, Unit[] stmts, boolean isAfter) {
+        if (stmts.length == 0)
+            return;
+        anchors.add(u);
+        groups.add(Arrays.asList(stmts));
+        after.add(isAfter);
+    }
+
+    // Apply all insertions, fix the traps and validate the body if anything changed
+    public void commit() {
+        if (anchors.isEmpty())
+            return;
+
+        PatchingChain<Unit> units = body.getUnits();
+        // only the first insertion at a unit moves a trap boundary, later ones end up inside of the trap already
+        IdentityHashMap<Unit, Unit> newEnds = new IdentityHashMap<>();
+        IdentityHashMap<Unit, Unit> newBegins = new IdentityHashMap<>();
+        for (int i = 0; i < anchors.size(); i++) {
+            Unit u = anchors.get(i);
+            List<Unit> group = groups.get(i);
+            if (after.get(i)) {
+                // every statement goes right after u, so we insert them back to front
+                for (int j = group.size() - 1; j >= 0; j--) {
+                    units.insertAfter(group.get(j), u);
+                }
+                newEnds.putIfAbsent(u, group.get(group.size() - 1));
+            } else {
+                for (Unit stmt: group) {
+                    units.insertBefore(stmt, u);
+                }
+                newBegins.putIfAbsent(u, group.get(0));
+            }
+        }
+
+        for (Trap trap: body.getTraps()) {
+            Unit end = newEnds.get(trap.getEndUnit());
+            if (end != null)
+                trap.setEndUnit(end);
+            Unit begin = newBegins.get(trap.getBeginUnit());
+            if (begin != null)
+                trap.setBeginUnit(begin);
+        }
+
+        // validate this method for any mistakes, once for all of its instrumentation
+        body.validate();
+        Metrics.count("instrumentation.validated_bodies", 1);
+    }
+}
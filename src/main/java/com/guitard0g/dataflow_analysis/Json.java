@@ -0,0 +1,49 @@
+package com.guitard0g.dataflow_analysis;
+
+import java.util.List;
+
+/**
+ * The little bit of JSON we need for our reports, so that we do not need a JSON library
+ */
+class Json {
+    /**
+     * @param s string to quote, may be null
+     * @return s as a JSON string literal, or null
+     */
+    static String quote(String s) {
+        if (s == null)
+            return "null";
+        StringBuilder sb = new StringBuilder("\"");
+        for (char c: s.toCharArray()) {
+            switch (c) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if (c < 0x20)
+                        sb.append(String.format("\\u%04x", (int) c));
+                    else
+                        sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    /**
+     * @param strings strings to quote, may be null
+     * @return the strings as a JSON array, or null
+     */
+    static String array(List<String> strings) {
+        if (strings == null)
+            return "null";
+        StringBuilder sb = new StringBuilder("[");
+        for (String s: strings) {
+            if (sb.length() > 1)
+                sb.append(", ");
+            sb.append(quote(s));
+        }
+        return sb.append(']').toString();
+    }
+}
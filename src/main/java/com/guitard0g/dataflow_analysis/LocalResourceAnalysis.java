@@ -0,0 +1,279 @@
+package com.guitard0g.dataflow_analysis;
+
+import soot.Body;
+import soot.Local;
+import soot.Scene;
+import soot.SootMethod;
+import soot.Unit;
+import soot.Value;
+import soot.ValueBox;
+import soot.jimple.ArrayRef;
+import soot.jimple.AssignStmt;
+import soot.jimple.CastExpr;
+import soot.jimple.ConditionExpr;
+import soot.jimple.EqExpr;
+import soot.jimple.FieldRef;
+import soot.jimple.IfStmt;
+import soot.jimple.InstanceInvokeExpr;
+import soot.jimple.InvokeExpr;
+import soot.jimple.NeExpr;
+import soot.jimple.NullConstant;
+import soot.jimple.ReturnStmt;
+import soot.jimple.Stmt;
+import soot.jimple.ThrowStmt;
+import soot.jimple.toolkits.callgraph.CallGraph;
+import soot.jimple.toolkits.callgraph.Edge;
+import soot.toolkits.graph.ExceptionalUnitGraph;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Decides resource leaks that never leave the method they were opened in, before the dataflow analysis.
+ *
+ * Most resources are opened and closed in the same method (often in a finally block). For every resource open dummy
+ * we follow the local that holds the resource through copies and casts. If the resource escapes the method (it is
+ * returned, stored in a field or array, passed to a call that is not one of our close dummies, or the receiver of a
+ * call that can run app code, e.g. a method of a CursorWrapper subclass) the dataflow analysis has to decide it. Otherwise we walk the control flow graph of the method, including the edges into
+ * exception handlers, from the open until the close dummies:
+ *  - if no path reaches an exit of the method while the resource is still open, the resource is closed
+ *  - if no close dummy can be reached at all, the resource is leaked
+ *  - anything in between is left to the dataflow analysis, which keeps the results of the two modes the same
+ */
+class LocalResourceAnalysis {
+    enum Verdict {
+        CLOSED,
+        LEAKED,
+        UNDECIDED
+    }
+
+    private final DummyRegistry dummies;
+    // resource open dummies that were decided here and need no dataflow analysis
+    private final LinkedHashSet<DummyCallInfo> closed = new LinkedHashSet<>();
+    private final LinkedHashSet<DummyCallInfo> leaked = new LinkedHashSet<>();
+    private int undecided = 0;
+
+    LocalResourceAnalysis(DummyRegistry dummies) {
+        this.dummies = dummies;
+    }
+
+    /**
+     * Decide all reachable resource open dummies that we can
+     */
+    void run() {
+        // resolve the close dummies as well, so that we can recognize their calls
+        dummies.getReachable(DummyKind.RESOURCE_CLOSE);
+
+        CallGraph cg = Scene.v().getCallGraph();
+        for (SootMethod open: dummies.getReachable(DummyKind.RESOURCE_OPEN)) {
+            DummyCallInfo info = dummies.get(open);
+            Verdict verdict = analyze(cg, open);
+            if (verdict == Verdict.CLOSED)
+                closed.add(info);
+            else if (verdict == Verdict.LEAKED)
+                leaked.add(info);
+            else
+                undecided++;
+        }
+    }
+
+    // Decide a single resource open dummy
+    private Verdict analyze(CallGraph cg, SootMethod open) {
+        // every open dummy is created for a single statement, anything else we leave alone
+        Iterator<Edge> edges = cg.edgesInto(open);
+        Edge edge = edges.next();
+        if (edges.hasNext() || !(edge.srcUnit() instanceof AssignStmt))
+            return Verdict.UNDECIDED;
+
+        AssignStmt openStmt = (AssignStmt) edge.srcUnit();
+        SootMethod caller = edge.src();
+        if (!caller.hasActiveBody() || !(openStmt.getLeftOp() instanceof Local))
+            return Verdict.UNDECIDED;
+        Body body = caller.getActiveBody();
+
+        Set<Local> aliases = getAliases(body, (Local) openStmt.getLeftOp());
+        if (aliases == null || escapes(cg, body, aliases))
+            return Verdict.UNDECIDED;
+
+        // walk the CFG from the open, stopping at closes and at branches where the resource is null
+        ExceptionalUnitGraph graph = new ExceptionalUnitGraph(body);
+        HashSet<Unit> visited = new HashSet<>();
+        ArrayDeque<Unit> queue = new ArrayDeque<>(graph.getUnexceptionalSuccsOf(openStmt));
+        boolean sawClose = false;
+        boolean openAtExit = false;
+        while (!queue.isEmpty()) {
+            Unit u = queue.remove();
+            if (!visited.add(u))
+                continue;
+
+            if (isClose(u, aliases)) {
+                sawClose = true;
+                continue;
+            }
+            List<Unit> succs = graph.getSuccsOf(u);
+            if (succs.isEmpty()) {
+                openAtExit = true;
+                continue;
+            }
+            Unit nullSucc = getNullSucc(u, aliases, graph);
+            for (Unit succ: succs) {
+                if (succ != nullSucc)
+                    queue.add(succ);
+            }
+        }
+
+        if (!openAtExit && sawClose)
+            return Verdict.CLOSED;
+        if (!sawClose)
+            return Verdict.LEAKED;
+        return Verdict.UNDECIDED;
+    }
+
+    // Get all locals that are copies of the resource, or null if one of them is assigned more than once (we do not
+    // track which definition holds the resource at which statement)
+    private static Set<Local> getAliases(Body body, Local resource) {
+        HashMap<Local, Integer> defCounts = new HashMap<>();
+        for (Unit u: body.getUnits()) {
+            for (ValueBox def: u.getDefBoxes()) {
+                if (def.getValue() instanceof Local)
+                    defCounts.merge((Local) def.getValue(), 1, Integer::sum);
+            }
+        }
+
+        HashSet<Local> aliases = new HashSet<>();
+        aliases.add(resource);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Unit u: body.getUnits()) {
+                if (!(u instanceof AssignStmt))
+                    continue;
+                AssignStmt assign = (AssignStmt) u;
+                Value right = assign.getRightOp();
+                if (right instanceof CastExpr)
+                    right = ((CastExpr) right).getOp();
+                if (assign.getLeftOp() instanceof Local && aliases.contains(right)
+                        && aliases.add((Local) assign.getLeftOp()))
+                    changed = true;
+            }
+        }
+
+        for (Local alias: aliases) {
+            if (defCounts.getOrDefault(alias, 0) != 1)
+                return null;
+        }
+        return aliases;
+    }
+
+    // Check if the resource can leave the method
+    private boolean escapes(CallGraph cg, Body body, Set<Local> aliases) {
+        for (Unit u: body.getUnits()) {
+            if (u instanceof ReturnStmt && aliases.contains(((ReturnStmt) u).getOp()))
+                return true;
+            if (u instanceof ThrowStmt && aliases.contains(((ThrowStmt) u).getOp()))
+                return true;
+
+            if (u instanceof AssignStmt) {
+                AssignStmt assign = (AssignStmt) u;
+                Value right = assign.getRightOp();
+                if (right instanceof CastExpr)
+                    right = ((CastExpr) right).getOp();
+                Value left = assign.getLeftOp();
+                if (aliases.contains(right) && (left instanceof FieldRef || left instanceof ArrayRef))
+                    return true;
+            }
+
+            // passing the resource to anything but our close dummies lets it escape
+            Stmt stmt = (Stmt) u;
+            if (stmt.containsInvokeExpr()) {
+                InvokeExpr invoke = stmt.getInvokeExpr();
+                DummyCallInfo callee = dummies.get(invoke.getMethod());
+                if (callee != null && callee.kind == DummyKind.RESOURCE_CLOSE)
+                    continue;
+                for (Value arg: invoke.getArgs()) {
+                    if (aliases.contains(arg))
+                        return true;
+                }
+                // calls on the resource itself only stay inside the framework as long as no app method overrides them
+                if (invoke instanceof InstanceInvokeExpr && aliases.contains(((InstanceInvokeExpr) invoke).getBase())
+                        && callsAppCode(cg, stmt))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    // Check if a call can be resolved to a method of the app
+    private static boolean callsAppCode(CallGraph cg, Stmt call) {
+        if (call.getInvokeExpr().getMethod().getDeclaringClass().isApplicationClass())
+            return true;
+        for (Iterator<Edge> it = cg.edgesOutOf(call); it.hasNext(); ) {
+            if (it.next().tgt().getDeclaringClass().isApplicationClass())
+                return true;
+        }
+        return false;
+    }
+
+    // Check if this statement passes the resource to one of our close dummies
+    private boolean isClose(Unit u, Set<Local> aliases) {
+        Stmt stmt = (Stmt) u;
+        if (!stmt.containsInvokeExpr())
+            return false;
+        InvokeExpr invoke = stmt.getInvokeExpr();
+        DummyCallInfo callee = dummies.get(invoke.getMethod());
+        if (callee == null || callee.kind != DummyKind.RESOURCE_CLOSE)
+            return false;
+        for (Value arg: invoke.getArgs()) {
+            if (aliases.contains(arg))
+                return true;
+        }
+        return false;
+    }
+
+    // Get the successor of a null check on the resource that is taken when the resource is null (null otherwise)
+    private static Unit getNullSucc(Unit u, Set<Local> aliases, ExceptionalUnitGraph graph) {
+        if (!(u instanceof IfStmt))
+            return null;
+        IfStmt ifStmt = (IfStmt) u;
+        ConditionExpr cond = (ConditionExpr) ifStmt.getCondition();
+        boolean comparesResourceToNull =
+                (aliases.contains(cond.getOp1()) && cond.getOp2() instanceof NullConstant) ||
+                (aliases.contains(cond.getOp2()) && cond.getOp1() instanceof NullConstant);
+        if (!comparesResourceToNull)
+            return null;
+
+        if (cond instanceof EqExpr)
+            return ifStmt.getTarget();
+        if (cond instanceof NeExpr) {
+            // the fall through successor is the one that is not the branch target
+            for (Unit succ: graph.getUnexceptionalSuccsOf(u)) {
+                if (succ != ifStmt.getTarget())
+                    return succ;
+            }
+        }
+        return null;
+    }
+
+    // Sources that we decided here and must not be given to the dataflow analysis
+    Set<DummyCallInfo> getDecided() {
+        LinkedHashSet<DummyCallInfo> decided = new LinkedHashSet<>(closed);
+        decided.addAll(leaked);
+        return decided;
+    }
+
+    // Resources that are closed on every path through the method they were opened in
+    List<DummyCallInfo> getClosed() {
+        return new ArrayList<>(closed);
+    }
+
+    void printStats() {
+        System.out.println("Local resource analysis: " + closed.size() + " closed, " + leaked.size() + " leaked, "
+                + undecided + " left to the dataflow analysis");
+    }
+}
@@ -0,0 +1,323 @@
+package com.guitard0g.dataflow_analysis;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Timings and counters of the analysis of one APK.
+ *
+ * A phase is started and ended by name, phases can be nested (we use dotted names like "instrumentation.detect" for
+ * phases inside of "instrumentation") and a phase that runs several times adds up. For every phase we record:
+ *  - wall time
+ *  - CPU time of the whole process, so that the worker threads of the instrumentation and FlowDroid are included
+ *  - bytes allocated by all threads that are alive when the phase ends (threads that already died are missed)
+ *  - peak heap, as the sum of the peaks of all heap pools (an upper bound of the real peak). We never reset the peaks
+ *    of the pools, the corpus benchmark does that for each APK, so the peak only tells us something about a phase if it
+ *    went up while the phase ran. Otherwise the phase gets the highest heap usage at its start or end.
+ * Every phase is also emitted as a JFR event (dataflow_analysis.Phase) when the JVM has JFR, so a recording shows
+ * the phases next to GC and allocation events. The event type is created through reflection since we still target
+ * Java 8.
+ *
+ * Counters can be incremented from any thread. Everything is static like the rest of the instrumentation state and is
+ * cleared by reset() between APKs.
+ */
+class Metrics {
+    private static final LinkedHashMap<String, Phase> phases = new LinkedHashMap<>();
+    // phases that were started and not ended yet
+    private static final ArrayList<Phase> open = new ArrayList<>();
+    private static final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private static final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+
+    /**
+     * Start a phase
+     *
+     * @param name name of the phase, a phase that ran before adds up
+     */
+    static synchronized void begin(String name) {
+        Phase phase = phases.computeIfAbsent(name, Phase::new);
+        phase.begin();
+        open.add(phase);
+    }
+
+    /**
+     * End a phase that was started with begin(). Ending a phase that is not running does nothing.
+     *
+     * @param name name of the phase
+     */
+    static synchronized void end(String name) {
+        Phase phase = phases.get(name);
+        if (phase == null || !open.contains(phase))
+            return;
+        phase.end();
+        open.remove(phase);
+    }
+
+    /**
+     * Add to a counter
+     *
+     * @param name name of the counter
+     * @param delta amount to add
+     */
+    static void count(String name, long delta) {
+        counters.computeIfAbsent(name, k -> new LongAdder()).add(delta);
+    }
+
+    /**
+     * Set a counter to a value
+     *
+     * @param name name of the counter
+     * @param value new value
+     */
+    static void set(String name, long value) {
+        LongAdder counter = counters.computeIfAbsent(name, k -> new LongAdder());
+        counter.reset();
+        counter.add(value);
+    }
+
+    // wall time in milliseconds of every phase, in the order the phases were first started
+    static synchronized Map<String, Long> getPhaseMillis() {
+        LinkedHashMap<String, Long> millis = new LinkedHashMap<>();
+        for (Phase phase: phases.values()) {
+            millis.put(phase.name, phase.wallNanos / 1000000);
+        }
+        return millis;
+    }
+
+    // print the peak heap of every phase, so that -Xmx can be sized without writing the metrics
+    static synchronized void printPeakHeap() {
+        System.out.println("Peak heap per phase:");
+        for (Phase phase: phases.values()) {
+            System.out.println("\t" + phase.name + ": " + phase.peakHeapBytes / (1024 * 1024) + " MB");
+        }
+    }
+
+    // forget everything about the previous APK
+    static synchronized void reset() {
+        phases.clear();
+        open.clear();
+        counters.clear();
+    }
+
+    /**
+     * Write all phases and counters as JSON
+     *
+     * @param path file to write, its directory is created if needed
+     */
+    static synchronized void write(String path) throws IOException {
+        Path file = Paths.get(path);
+        if (file.getParent() != null)
+            Files.createDirectories(file.getParent());
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file))) {
+            out.println("{");
+            out.println("  \"phases\": [");
+            int i = 0;
+            for (Phase phase: phases.values()) {
+                out.println("    {\"name\": " + Json.quote(phase.name)
+                        + ", \"runs\": " + phase.runs
+                        + ", \"wall_ms\": " + phase.wallNanos / 1000000
+                        + ", \"cpu_ms\": " + (phase.cpuNanos < 0 ? "null" : phase.cpuNanos / 1000000)
+                        + ", \"allocated_mb\": " + (phase.allocatedBytes < 0 ? "null" : phase.allocatedBytes / (1024 * 1024))
+                        + ", \"peak_heap_mb\": " + phase.peakHeapBytes / (1024 * 1024) + "}"
+                        + (++i < phases.size() ? "," : ""));
+            }
+            out.println("  ],");
+            out.println("  \"counters\": {");
+            TreeMap<String, LongAdder> sorted = new TreeMap<>(counters);
+            i = 0;
+            for (Map.Entry<String, LongAdder> counter: sorted.entrySet()) {
+                out.println("    " + Json.quote(counter.getKey()) + ": " + counter.getValue().sum()
+                        + (++i < sorted.size() ? "," : ""));
+            }
+            out.println("  }");
+            out.println("}");
+        }
+    }
+
+    // sum of the peak usage of all heap pools since their last reset
+    static long heapPeakBytes() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool: ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP)
+                peak += pool.getPeakUsage().getUsed();
+        }
+        return peak;
+    }
+
+    // sum of the current usage of all heap pools
+    private static long heapUsedBytes() {
+        long used = 0;
+        for (MemoryPoolMXBean pool: ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP)
+                used += pool.getUsage().getUsed();
+        }
+        return used;
+    }
+
+    // CPU time of the whole process in nanoseconds, or -1 if the JVM does not tell us
+    private static long processCpuNanos() {
+        if (os instanceof com.sun.management.OperatingSystemMXBean)
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        return -1;
+    }
+
+    // bytes allocated so far by all live threads, or -1 if the JVM does not tell us
+    private static long allocatedBytes() {
+        if (!(threads instanceof com.sun.management.ThreadMXBean))
+            return -1;
+        com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+        if (!sunThreads.isThreadAllocatedMemorySupported() || !sunThreads.isThreadAllocatedMemoryEnabled())
+            return -1;
+        long sum = 0;
+        for (long bytes: sunThreads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            // threads that died since we listed them report -1
+            if (bytes > 0)
+                sum += bytes;
+        }
+        return sum;
+    }
+
+    /**
+     * Totals of one named phase
+     */
+    private static class Phase {
+        final String name;
+        int runs = 0;
+        long wallNanos = 0;
+        long cpuNanos = 0;
+        long allocatedBytes = 0;
+        long peakHeapBytes = 0;
+
+        // values when the current run started
+        private long startWall;
+        private long startCpu;
+        private long startAllocated;
+        private long startPeakHeap;
+        private long startUsedHeap;
+        private Object event;
+
+        Phase(String name) {
+            this.name = name;
+        }
+
+        void begin() {
+            runs++;
+            event = PhaseEvents.begin();
+            startAllocated = allocatedBytes();
+            startPeakHeap = heapPeakBytes();
+            startUsedHeap = heapUsedBytes();
+            startCpu = processCpuNanos();
+            startWall = System.nanoTime();
+        }
+
+        void end() {
+            wallNanos += System.nanoTime() - startWall;
+            long cpu = processCpuNanos();
+            cpuNanos = cpu < 0 || cpuNanos < 0 ? -1 : cpuNanos + cpu - startCpu;
+            long allocated = allocatedBytes();
+            allocatedBytes = allocated < 0 || allocatedBytes < 0 ? -1 : allocatedBytes + Math.max(0, allocated - startAllocated);
+            // a peak above the one at the start was reached during this run, an older one may belong to another phase
+            long peak = heapPeakBytes();
+            long runPeak = peak > startPeakHeap ? peak : Math.max(startUsedHeap, heapUsedBytes());
+            peakHeapBytes = Math.max(peakHeapBytes, runPeak);
+            PhaseEvents.commit(event, name, cpu < 0 ? -1 : cpu - startCpu,
+                    allocated < 0 ? -1 : allocated - startAllocated, peakHeapBytes);
+            event = null;
+        }
+    }
+}
+
+/**
+ * Emits the phases as JFR events, if the JVM has JFR (JDK 11 and later).
+ *
+ * The event type is created with jdk.jfr.EventFactory through reflection, so this compiles for and runs on Java 8
+ * where it simply does nothing.
+ */
+class PhaseEvents {
+    // factory of the event type, null if JFR is not available
+    private static final Object factory = createFactory();
+    private static Method newEvent;
+    private static Method beginEvent;
+    private static Method endEvent;
+    private static Method commitEvent;
+    private static Method setField;
+
+    private static Object createFactory() {
+        try {
+            Class<?> annotationElement = Class.forName("jdk.jfr.AnnotationElement");
+            Class<?> valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor");
+            Class<?> eventFactory = Class.forName("jdk.jfr.EventFactory");
+            Class<?> event = Class.forName("jdk.jfr.Event");
+            Constructor<?> annotation = annotationElement.getConstructor(Class.class, Object.class);
+            Constructor<?> field = valueDescriptor.getConstructor(Class.class, String.class);
+
+            List<Object> annotations = Arrays.asList(
+                    annotation.newInstance(Class.forName("jdk.jfr.Name"), "dataflow_analysis.Phase"),
+                    annotation.newInstance(Class.forName("jdk.jfr.Label"), "Analysis Phase"),
+                    annotation.newInstance(Class.forName("jdk.jfr.Category"), new String[]{"Leak Analysis"}));
+            // the field indexes are used in commit()
+            List<Object> fields = Arrays.asList(
+                    field.newInstance(String.class, "phase"),
+                    field.newInstance(long.class, "cpuNanos"),
+                    field.newInstance(long.class, "allocatedBytes"),
+                    field.newInstance(long.class, "peakHeapBytes"));
+
+            Object factory = eventFactory.getMethod("create", List.class, List.class).invoke(null, annotations, fields);
+            newEvent = eventFactory.getMethod("newEvent");
+            beginEvent = event.getMethod("begin");
+            endEvent = event.getMethod("end");
+            commitEvent = event.getMethod("commit");
+            setField = event.getMethod("set", int.class, Object.class);
+            return factory;
+        } catch (ReflectiveOperationException | RuntimeException | LinkageError e) {
+            // no JFR in this JVM
+            return null;
+        }
+    }
+
+    // start a new event, null if JFR is not available
+    static Object begin() {
+        if (factory == null)
+            return null;
+        try {
+            Object event = newEvent.invoke(factory);
+            beginEvent.invoke(event);
+            return event;
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    // end an event that begin() returned and commit it with the totals of the phase run
+    static void commit(Object event, String phase, long cpuNanos, long allocatedBytes, long peakHeapBytes) {
+        if (event == null)
+            return;
+        try {
+            endEvent.invoke(event);
+            setField.invoke(event, 0, phase);
+            setField.invoke(event, 1, cpuNanos);
+            setField.invoke(event, 2, allocatedBytes);
+            setField.invoke(event, 3, peakHeapBytes);
+            commitEvent.invoke(event);
+        } catch (ReflectiveOperationException ignored) {}
+    }
+}
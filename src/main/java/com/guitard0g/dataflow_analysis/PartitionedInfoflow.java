@@ -0,0 +1,203 @@
+package com.guitard0g.dataflow_analysis;
+
+import soot.RefType;
+import soot.SootMethod;
+import soot.Type;
+import soot.jimple.infoflow.android.InfoflowAndroidConfiguration;
+import soot.jimple.infoflow.android.SetupApplication;
+import soot.jimple.infoflow.results.DataFlowResult;
+import soot.jimple.infoflow.results.InfoflowResults;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Splits the dataflow analysis into independent sub-problems.
+ *
+ * A static variable source can only be closed by a sink of the same variable, and a resource can only be closed by a
+ * sink of the same resource class, so sources and sinks are grouped by variable or resource class and every group is
+ * analyzed on its own. All partitions share the Scene, call graph and parsed app resources of the analyzer that built
+ * the call graph, and each get their own dataflow timeout. A partition that does not finish in time only loses the
+ * answers for its own sources, which are then reported as unknown.
+ *
+ * Neither Soot nor FlowDroid can run several analyses on one Scene at the same time, so the partitions run one after
+ * another and the threads go to the IFDS solver of every partition instead.
+ */
+class PartitionedInfoflow {
+    // partition key of resources that do not match any of our resource classes
+    private static final String OTHER_RESOURCES = "<other resources>";
+
+    // analyzer that built the call graph of the current Scene
+    private final SetupApplication analyzer;
+    private final int timeoutSeconds;
+    private final int threads;
+    // metadata of all dummies if every partition should stop at the first matching sink of a source (else null)
+    private DummyRegistry reachabilityDummies = null;
+    // metadata of all dummies if every partition should be sliced to its own sources and sinks (else null)
+    private DummyRegistry sliceDummies = null;
+
+    /**
+     * @param analyzer analyzer that built the call graph of the current Scene
+     * @param timeoutSeconds dataflow timeout of every single partition
+     * @param threads number of solver threads of every partition
+     */
+    PartitionedInfoflow(SetupApplication analyzer, int timeoutSeconds, int threads) {
+        this.analyzer = analyzer;
+        this.timeoutSeconds = timeoutSeconds;
+        this.threads = threads;
+    }
+
+    /**
+     * Only look for the first matching sink of every source, see {@link ReachabilityHandler}
+     *
+     * @param dummies metadata of all instrumented functions
+     */
+    void setReachabilityOnly(DummyRegistry dummies) {
+        this.reachabilityDummies = dummies;
+    }
+
+    /**
+     * Only analyze the part of the call graph that leads to the sources and sinks of a partition, see
+     * {@link CallGraphSlice}
+     *
+     * @param dummies metadata of all instrumented functions
+     */
+    void setSliced(DummyRegistry dummies) {
+        this.sliceDummies = dummies;
+    }
+
+    /**
+     * Group the reachable dummies of the analysis into partitions
+     *
+     * @param mode which kinds of leaks we are looking for
+     * @param dummies metadata of all instrumented functions
+     * @param decided sources that were already decided without the dataflow analysis
+     * @return partitions in a deterministic order
+     */
+    static List<Partition> partition(AnalysisMode mode, DummyRegistry dummies, Set<DummyCallInfo> decided) {
+        LinkedHashMap<Object, Partition> partitions = new LinkedHashMap<>();
+        if (mode.analyzesMemory()) {
+            for (SootMethod m: dummies.getReachable(DummyKind.STATIC_SET)) {
+                DummyCallInfo info = dummies.get(m);
+                if (decided.contains(info))
+                    continue;
+                partitionOf(partitions, info.f, info.f.getSignature()).sources.add(m);
+            }
+            for (SootMethod m: dummies.getReachable(DummyKind.STATIC_NULL_SET)) {
+                DummyCallInfo info = dummies.get(m);
+                partitionOf(partitions, info.f, info.f.getSignature()).sinks.add(m);
+            }
+        }
+        if (mode.analyzesResources()) {
+            for (SootMethod m: dummies.getReachable(DummyKind.RESOURCE_OPEN)) {
+                if (decided.contains(dummies.get(m)))
+                    continue;
+                String resClass = resourceClassOf(m);
+                partitionOf(partitions, resClass, resClass).sources.add(m);
+            }
+            for (SootMethod m: dummies.getReachable(DummyKind.RESOURCE_CLOSE)) {
+                String resClass = resourceClassOf(m);
+                partitionOf(partitions, resClass, resClass).sinks.add(m);
+            }
+        }
+        return new ArrayList<>(partitions.values());
+    }
+
+    private static Partition partitionOf(LinkedHashMap<Object, Partition> partitions, Object key, String name) {
+        return partitions.computeIfAbsent(key, k -> new Partition(name));
+    }
+
+    // Get the resource class of the value passed to a resource dummy
+    private static String resourceClassOf(SootMethod dummy) {
+        Type t = dummy.getParameterType(0);
+        if (!(t instanceof RefType))
+            return OTHER_RESOURCES;
+        for (String resClass: Instrument.resClasses) {
+            if (ClassHierarchyIndex.walk(((RefType) t).getSootClass(), c -> c.getName().contains(resClass)))
+                return resClass;
+        }
+        return OTHER_RESOURCES;
+    }
+
+    /**
+     * Analyze all partitions one after another
+     *
+     * @param partitions partitions to analyze, their results are stored in them
+     */
+    void run(List<Partition> partitions) {
+        InfoflowAndroidConfiguration config = analyzer.getConfig();
+        // the call graph, callbacks and resources of the analyzer are reused by every partition
+        config.setSootIntegrationMode(InfoflowAndroidConfiguration.SootIntegrationMode.UseExistingCallgraph);
+        config.setDataFlowTimeout(timeoutSeconds);
+        config.setMaxThreadNum(threads);
+        for (Partition partition: partitions) {
+            // without sinks nothing can be closed, so there is nothing to analyze
+            if (partition.sources.isEmpty() || partition.sinks.isEmpty())
+                continue;
+            analyze(partition);
+        }
+    }
+
+    // Run the dataflow analysis of a single partition on the existing call graph
+    private void analyze(Partition partition) {
+        CustomSourceSinkProvider ssp = new CustomSourceSinkProvider();
+        for (SootMethod source: partition.sources) {
+            ssp.addSourceMethod(source);
+        }
+        for (SootMethod sink: partition.sinks) {
+            ssp.addSinkMethod(sink);
+        }
+        if (ssp.getSourceMethods().isEmpty())
+            return;
+
+        long start = System.currentTimeMillis();
+        try {
+            // the handlers of the previous partition must not see this one
+            analyzer.setTaintPropagationHandler(null);
+            analyzer.setTaintWrapper(null);
+            if (reachabilityDummies != null)
+                ReachabilityHandler.install(analyzer, reachabilityDummies);
+            if (sliceDummies != null) {
+                ArrayList<DummyCallInfo> sites = new ArrayList<>();
+                for (SootMethod m: partition.sources) {
+                    sites.add(sliceDummies.get(m));
+                }
+                for (SootMethod m: partition.sinks) {
+                    sites.add(sliceDummies.get(m));
+                }
+                CallGraphSlice.install(analyzer, sites);
+            }
+
+            InfoflowResults results = analyzer.runInfoflow(ssp);
+            // termination state 0 means the solver finished, anything else means we may have missed paths
+            partition.unknown = results.getTerminationState() != 0;
+            if (!results.isEmpty())
+                partition.results.addAll(results.getResultSet());
+        } catch (Exception | StackOverflowError | OutOfMemoryError e) {
+            partition.unknown = true;
+            partition.error = e.toString();
+        }
+        partition.millis = System.currentTimeMillis() - start;
+    }
+}
+
+/**
+ * Sources and sinks of one static variable or resource class
+ */
+class Partition {
+    public final String name;
+    public final ArrayList<SootMethod> sources = new ArrayList<>();
+    public final ArrayList<SootMethod> sinks = new ArrayList<>();
+    // filled in by the analysis
+    public final ArrayList<DataFlowResult> results = new ArrayList<>();
+    // true if the analysis timed out or failed, so the sources of this partition may or may not be closed
+    public volatile boolean unknown = false;
+    public volatile String error = null;
+    public volatile long millis = 0;
+
+    Partition(String name) {
+        this.name = name;
+    }
+}
@@ -0,0 +1,113 @@
+package com.guitard0g.dataflow_analysis;
+
+import soot.SootMethod;
+import soot.Unit;
+import soot.Value;
+import soot.jimple.InvokeExpr;
+import soot.jimple.Stmt;
+import soot.jimple.infoflow.InfoflowConfiguration;
+import soot.jimple.infoflow.InfoflowManager;
+import soot.jimple.infoflow.android.InfoflowAndroidConfiguration;
+import soot.jimple.infoflow.android.SetupApplication;
+import soot.jimple.infoflow.data.Abstraction;
+import soot.jimple.infoflow.handlers.TaintPropagationHandler;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stops the taint propagation of a source as soon as it reaches a matching sink.
+ *
+ * For the leak report we only need to know if a source reaches at least one sink of the same variable or resource,
+ * not every path to every sink. Once a taint of a source arrives at the call of such a sink the source is closed, and
+ * from then on every abstraction that comes from it is dropped instead of being propagated to the fixpoint. The sink
+ * itself is still recorded by FlowDroid, since flow functions run before we drop the outgoing abstractions.
+ */
+class ReachabilityHandler implements TaintPropagationHandler {
+    private final DummyRegistry dummies;
+    // sources that already reached a matching sink
+    private final Set<DummyCallInfo> closedSources = ConcurrentHashMap.newKeySet();
+    // number of abstractions we did not propagate
+    private final AtomicLong dropped = new AtomicLong();
+
+    ReachabilityHandler(DummyRegistry dummies) {
+        this.dummies = dummies;
+    }
+
+    /**
+     * Switch an analyzer to existence-only results: no paths, path agnostic results and early termination per source
+     *
+     * @param analyzer analyzer to configure
+     * @param dummies metadata of all instrumented functions (the dummies must be resolved in the current Scene)
+     * @return the handler that was installed
+     */
+    static ReachabilityHandler install(SetupApplication analyzer, DummyRegistry dummies) {
+        InfoflowAndroidConfiguration config = analyzer.getConfig();
+        // we never print paths, and without them FlowDroid does not need to keep the predecessors of abstractions
+        config.getPathConfiguration().setPathReconstructionMode(InfoflowConfiguration.PathReconstructionMode.NoPaths);
+        // one result per source and sink is enough, no matter how many ways there are to get there
+        config.setPathAgnosticResults(true);
+
+        ReachabilityHandler handler = new ReachabilityHandler(dummies);
+        analyzer.setTaintPropagationHandler(handler);
+        return handler;
+    }
+
+    @Override
+    public void notifyFlowIn(Unit stmt, Abstraction taint, InfoflowManager manager, FlowFunctionType type) {
+        DummyCallInfo source = getSource(taint);
+        if (source == null || closedSources.contains(source))
+            return;
+
+        // check if the taint is passed to a sink of the same variable (or another resource sink)
+        Stmt s = (Stmt) stmt;
+        if (!s.containsInvokeExpr())
+            return;
+        InvokeExpr invoke = s.getInvokeExpr();
+        DummyCallInfo sink = dummies.get(invoke.getMethod());
+        if (sink == null || !isSink(sink) || sink.f != source.f)
+            return;
+
+        Value tainted = taint.getAccessPath().getPlainValue();
+        for (Value arg: invoke.getArgs()) {
+            if (arg == tainted) {
+                closedSources.add(source);
+                return;
+            }
+        }
+    }
+
+    @Override
+    public Set<Abstraction> notifyFlowOut(Unit stmt, Abstraction d1, Abstraction incoming, Set<Abstraction> outgoing,
+                                          InfoflowManager manager, FlowFunctionType type) {
+        DummyCallInfo source = getSource(incoming);
+        if (source == null || outgoing == null || outgoing.isEmpty() || !closedSources.contains(source))
+            return outgoing;
+
+        dropped.addAndGet(outgoing.size());
+        return Collections.emptySet();
+    }
+
+    // Get the source dummy a taint abstraction comes from (null for the zero value or things that are not ours)
+    private DummyCallInfo getSource(Abstraction taint) {
+        if (taint == null || taint.getSourceContext() == null)
+            return null;
+        Stmt sourceStmt = taint.getSourceContext().getStmt();
+        if (sourceStmt == null || !sourceStmt.containsInvokeExpr())
+            return null;
+        SootMethod m = sourceStmt.getInvokeExpr().getMethod();
+        return dummies.get(m);
+    }
+
+    private static boolean isSink(DummyCallInfo info) {
+        return info.kind == DummyKind.STATIC_NULL_SET || info.kind == DummyKind.RESOURCE_CLOSE;
+    }
+
+    // Print how much work the early termination saved
+    void printStats() {
+        System.out.println("Reachability mode: " + closedSources.size() + " sources closed early, "
+                + dropped.get() + " abstractions dropped");
+    }
+}
@@ -0,0 +1,31 @@
+package com.guitard0g.dataflow_analysis;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+/**
+ * What happened while analyzing one APK: how long every phase took, whether the dataflow analysis finished, how many
+ * sources and sinks it had and everything it reported.
+ */
+class RunStats implements FindingListener {
+    // termination state of a dataflow analysis that was never run
+    public static final int NOT_RUN = -1;
+
+    // "OK", "INVALID" or "FAILED: <reason>", set by the batch runner
+    public String status = "OK";
+    // wall time of every phase in milliseconds (see Metrics), in the order the phases ran
+    public final LinkedHashMap<String, Long> phaseMillis = new LinkedHashMap<>();
+    // FlowDroid termination state of the dataflow analysis (0 is normal). A partitioned run is 0, its partitions that
+    // did not finish are counted in unfinishedPartitions. NOT_RUN if every source was decided without the analysis.
+    public int terminationState = NOT_RUN;
+    // partitions of a partitioned analysis that timed out or failed
+    public int unfinishedPartitions = 0;
+    public int sources = 0;
+    public int sinks = 0;
+    public final ArrayList<Finding> findings = new ArrayList<>();
+
+    @Override
+    public void onFinding(Finding finding) {
+        findings.add(finding);
+    }
+}
@@ -0,0 +1,135 @@
+package com.guitard0g.dataflow_analysis;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Unit tests of the APK lists of a batch and of how the options of a batch are split up for its APKs.
+ */
+public class BatchRunnerTest extends TestCase {
+    private Path tmp;
+    private Path platforms;
+
+    public BatchRunnerTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(BatchRunnerTest.class);
+    }
+
+    @Override
+    protected void setUp() throws IOException {
+        tmp = Files.createTempDirectory("batch-test");
+        platforms = Files.createDirectories(tmp.resolve("platforms"));
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(tmp)) {
+            for (Path p: files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(p);
+            }
+        }
+    }
+
+    // a directory gives its .apk files in sorted order, other files and subdirectories are ignored
+    public void testListDirectory() throws IOException {
+        for (String name: new String[]{"b.apk", "a.apk", "notes.txt", "c.apk.bak"}) {
+            Files.createFile(tmp.resolve(name));
+        }
+        Files.createDirectories(tmp.resolve("sub")).resolve("d.apk").toFile().createNewFile();
+
+        assertEquals(Arrays.asList(tmp.resolve("a.apk").toString(), tmp.resolve("b.apk").toString()),
+                BatchRunner.listApks(tmp.toString()));
+    }
+
+    // a list file keeps its order, without blank lines, comments and surrounding whitespace
+    public void testListFile() throws IOException {
+        Path list = tmp.resolve("apks.txt");
+        Files.write(list, Arrays.asList("# corpus", "/data/z.apk", "", "  /data/a b.apk  ", "   ", "#/data/skipped.apk",
+                "relative.apk"), StandardCharsets.UTF_8);
+
+        assertEquals(Arrays.asList("/data/z.apk", "/data/a b.apk", "relative.apk"),
+                BatchRunner.listApks(list.toString()));
+    }
+
+    public void testListEmptyDirectory() throws IOException {
+        assertTrue(BatchRunner.listApks(tmp.toString()).isEmpty());
+    }
+
+    public void testResultNamesOfSameFileName() {
+        String first = CliOptions.resultName("/corpus/a/app.apk");
+        String second = CliOptions.resultName("/corpus/b/app.apk");
+        assertTrue(first.startsWith("app.apk-"));
+        assertTrue(second.startsWith("app.apk-"));
+        assertFalse(first.equals(second));
+    }
+
+    public void testResultNameIsStable() {
+        assertEquals(CliOptions.resultName("/corpus/a/app.apk"), CliOptions.resultName("/corpus/a/./app.apk"));
+    }
+
+    public void testForApkCopiesSettings() throws Exception {
+        CliOptions batch = new CliOptions(null, platforms.toString(), AnalysisMode.RESOURCE, 3, 4);
+        batch.partitioned = true;
+        batch.partitionTimeoutSeconds = 30;
+        batch.slice = true;
+        batch.lowMemory = true;
+        batch.setCache(tmp.resolve("cache").toString(), 64);
+        batch.setHarnessBatchSize(10);
+
+        Path apk = Files.createFile(tmp.resolve("app.apk"));
+        CliOptions options = batch.forApk(apk.toString());
+        assertEquals(apk.toString(), options.apkPath);
+        assertEquals(AnalysisMode.RESOURCE, options.mode);
+        assertEquals(180, options.timeout_seconds);
+        assertEquals(4, options.threads);
+        assertTrue(options.partitioned);
+        assertEquals(30, options.partitionTimeoutSeconds);
+        assertTrue(options.slice);
+        assertTrue(options.lowMemory);
+        assertEquals(batch.cacheDir, options.cacheDir);
+        assertEquals(64, options.cacheSizeMb);
+        assertEquals(10, options.harnessBatchSize);
+        assertEquals(batch.callgraph, options.callgraph);
+    }
+
+    // in a batch the output paths are directories with one file per APK
+    public void testForApkOutputPaths() throws Exception {
+        CliOptions batch = new CliOptions(null, platforms.toString(), AnalysisMode.MEMORY, 1, 1);
+        batch.jsonlPath = tmp.resolve("jsonl").toString();
+        batch.sarifPath = tmp.resolve("sarif").toString();
+        batch.metricsPath = tmp.resolve("metrics").toString();
+
+        Path apk = Files.createFile(tmp.resolve("app.apk"));
+        CliOptions options = batch.forApk(apk.toString());
+        String name = CliOptions.resultName(apk.toString());
+        assertEquals(Paths.get(batch.jsonlPath, name + ".jsonl").toString(), options.jsonlPath);
+        assertEquals(Paths.get(batch.sarifPath, name + ".sarif").toString(), options.sarifPath);
+        assertEquals(Paths.get(batch.metricsPath, name + ".metrics.json").toString(), options.metricsPath);
+    }
+
+    // the revisions of an app share the state of its package, which forApk can not know without reading the APK
+    public void testForApkIncrementalState() throws Exception {
+        CliOptions batch = new CliOptions(null, platforms.toString(), AnalysisMode.MEMORY, 1, 1);
+        Path apk = Files.createFile(tmp.resolve("app.apk"));
+        assertFalse(batch.forApk(apk.toString()).incrementalPerApp);
+
+        batch.incrementalDir = tmp.resolve("state").toString();
+        CliOptions options = batch.forApk(apk.toString());
+        assertEquals(batch.incrementalDir, options.incrementalDir);
+        assertTrue(options.incrementalPerApp);
+    }
+}
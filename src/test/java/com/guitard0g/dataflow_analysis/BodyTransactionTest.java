@@ -0,0 +1,222 @@
+package com.guitard0g.dataflow_analysis;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import soot.Body;
+import soot.G;
+import soot.IntType;
+import soot.Local;
+import soot.Modifier;
+import soot.PatchingChain;
+import soot.RefType;
+import soot.Scene;
+import soot.SootClass;
+import soot.SootMethod;
+import soot.Trap;
+import soot.Type;
+import soot.Unit;
+import soot.VoidType;
+import soot.jimple.IntConstant;
+import soot.jimple.Jimple;
+import soot.options.Options;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Compares {@link BodyTransaction#commit()} with the way the instrumentation used to insert statements: one insertion
+ * at a time, each followed by a pass over the traps that moves the boundaries at the anchor.
+ */
+public class BodyTransactionTest extends TestCase {
+    // indices of the original units of the test body
+    private static final int FIRST = 1;
+    private static final int SECOND = 2;
+    private static final int THIRD = 3;
+    private static final int RETURN = 4;
+
+    public BodyTransactionTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(BodyTransactionTest.class);
+    }
+
+    @Override
+    protected void setUp() {
+        G.reset();
+        Options.v().set_allow_phantom_refs(true);
+        Scene.v().loadBasicClasses();
+    }
+
+    @Override
+    protected void tearDown() {
+        G.reset();
+    }
+
+    public void testInsertAfterTrapEnd() {
+        assertSameAsSequential(new Insertion(true, THIRD, 1, 2));
+    }
+
+    public void testInsertBeforeTrapBegin() {
+        assertSameAsSequential(new Insertion(false, FIRST, 1, 2));
+    }
+
+    public void testMixedInsertionsAtTheSameAnchor() {
+        assertSameAsSequential(
+                new Insertion(true, SECOND, 1, 2),
+                new Insertion(false, SECOND, 3),
+                new Insertion(true, SECOND, 4),
+                new Insertion(false, SECOND, 5, 6));
+    }
+
+    public void testMixedInsertionsAtTrapBoundaries() {
+        assertSameAsSequential(
+                new Insertion(false, FIRST, 1, 2),
+                new Insertion(true, FIRST, 3),
+                new Insertion(true, THIRD, 4, 5),
+                new Insertion(false, THIRD, 6),
+                new Insertion(true, THIRD, 7),
+                new Insertion(false, FIRST, 8),
+                new Insertion(false, RETURN, 9));
+    }
+
+    public void testNothingToCommit() {
+        Body body = newBody();
+        List<String> before = describe(body);
+        new BodyTransaction(body).commit();
+        assertEquals(before, describe(body));
+    }
+
+    // Apply the insertions to two copies of the same body, once with a transaction and once one after another
+    private static void assertSameAsSequential(Insertion... insertions) {
+        Body committed = newBody();
+        BodyTransaction transaction = new BodyTransaction(committed);
+        List<Unit> anchors = new ArrayList<>(committed.getUnits());
+        for (Insertion insertion: insertions) {
+            if (insertion.after)
+                transaction.insertAfter(anchors.get(insertion.anchor), insertion.newStmts(committed));
+            else
+                transaction.insertBefore(anchors.get(insertion.anchor), insertion.newStmts(committed));
+        }
+        transaction.commit();
+
+        Body sequential = newBody();
+        anchors = new ArrayList<>(sequential.getUnits());
+        for (Insertion insertion: insertions) {
+            insertion.applySequentially(sequential, anchors.get(insertion.anchor));
+        }
+
+        assertEquals(describe(sequential), describe(committed));
+    }
+
+    // The units of a body followed by the positions of the boundaries of every trap
+    private static List<String> describe(Body body) {
+        ArrayList<String> description = new ArrayList<>();
+        List<Unit> units = new ArrayList<>(body.getUnits());
+        for (Unit u: units) {
+            description.add(u.toString());
+        }
+        for (Trap trap: body.getTraps()) {
+            description.add("trap " + units.indexOf(trap.getBeginUnit()) + " " + units.indexOf(trap.getEndUnit())
+                    + " " + units.indexOf(trap.getHandlerUnit()));
+        }
+        return description;
+    }
+
+    /**
+     * A method whose second to third statement is covered by a trap:
+     *
+     * <pre>
+     * r0 := @this
+     * i0 = 1      (trap begin)
+     * i0 = 2
+     * i0 = 3      (trap end)
+     * return
+     * r1 := @caughtexception  (handler)
+     * return
+     * </pre>
+     */
+    private static Body newBody() {
+        SootClass cls = new SootClass("com.example.Test" + Scene.v().getClasses().size(), Modifier.PUBLIC);
+        Scene.v().addClass(cls);
+        SootMethod m = new SootMethod("run", Collections.<Type>emptyList(), VoidType.v(), Modifier.PUBLIC);
+        cls.addMethod(m);
+        Body body = Jimple.v().newBody(m);
+        m.setActiveBody(body);
+
+        Local self = Jimple.v().newLocal("r0", cls.getType());
+        Local i = Jimple.v().newLocal("i0", IntType.v());
+        Local caught = Jimple.v().newLocal("r1", RefType.v("java.lang.Throwable"));
+        body.getLocals().add(self);
+        body.getLocals().add(i);
+        body.getLocals().add(caught);
+
+        PatchingChain<Unit> units = body.getUnits();
+        units.add(Jimple.v().newIdentityStmt(self, Jimple.v().newThisRef(cls.getType())));
+        Unit first = Jimple.v().newAssignStmt(i, IntConstant.v(1));
+        units.add(first);
+        units.add(Jimple.v().newAssignStmt(i, IntConstant.v(2)));
+        Unit third = Jimple.v().newAssignStmt(i, IntConstant.v(3));
+        units.add(third);
+        units.add(Jimple.v().newReturnVoidStmt());
+        Unit handler = Jimple.v().newIdentityStmt(caught, Jimple.v().newCaughtExceptionRef());
+        units.add(handler);
+        units.add(Jimple.v().newReturnVoidStmt());
+        body.getTraps().add(Jimple.v().newTrap(Scene.v().getSootClass("java.lang.Throwable"), first, third, handler));
+        return body;
+    }
+
+    /**
+     * Statements inserted at one anchor, each one an assignment of a distinct constant
+     */
+    private static class Insertion {
+        final boolean after;
+        final int anchor;
+        final int[] values;
+
+        Insertion(boolean after, int anchor, int... values) {
+            this.after = after;
+            this.anchor = anchor;
+            this.values = values;
+        }
+
+        Unit[] newStmts(Body body) {
+            Local i = null;
+            for (Local local: body.getLocals()) {
+                if (local.getName().equals("i0"))
+                    i = local;
+            }
+            Unit[] stmts = new Unit[values.length];
+            for (int j = 0; j < values.length; j++) {
+                stmts[j] = Jimple.v().newAssignStmt(i, IntConstant.v(100 + values[j]));
+            }
+            return stmts;
+        }
+
+        // The old instrumentation: insert, then move the trap boundaries at the anchor and validate
+        void applySequentially(Body body, Unit u) {
+            Unit[] stmts = newStmts(body);
+            if (after) {
+                for (int j = stmts.length - 1; j >= 0; j--) {
+                    body.getUnits().insertAfter(stmts[j], u);
+                }
+                for (Trap trap: body.getTraps()) {
+                    if (trap.getEndUnit() == u)
+                        trap.setEndUnit(stmts[stmts.length - 1]);
+                }
+            } else {
+                for (Unit stmt: stmts) {
+                    body.getUnits().insertBefore(stmt, u);
+                }
+                for (Trap trap: body.getTraps()) {
+                    if (trap.getBeginUnit() == u)
+                        trap.setBeginUnit(stmts[0]);
+                }
+            }
+            body.validate();
+        }
+    }
+}
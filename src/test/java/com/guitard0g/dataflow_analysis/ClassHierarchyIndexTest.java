@@ -0,0 +1,112 @@
+package com.guitard0g.dataflow_analysis;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import soot.G;
+import soot.Modifier;
+import soot.Scene;
+import soot.SootClass;
+
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks the supertype closures and cached queries against the plain hierarchy walk.
+ *
+ * The hierarchy is Activity extends Context implements Callback, and MainActivity extends Activity implements
+ * Runnable.
+ */
+public class ClassHierarchyIndexTest extends TestCase {
+    private SootClass object;
+    private SootClass callback;
+    private SootClass runnable;
+    private SootClass context;
+    private SootClass activity;
+    private SootClass mainActivity;
+    private SootClass unrelated;
+
+    public ClassHierarchyIndexTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(ClassHierarchyIndexTest.class);
+    }
+
+    @Override
+    protected void setUp() {
+        G.reset();
+        object = newClass("java.lang.Object", null);
+        callback = newClass("android.view.Callback", null);
+        callback.setModifiers(Modifier.PUBLIC | Modifier.INTERFACE);
+        runnable = newClass("java.lang.Runnable", null);
+        runnable.setModifiers(Modifier.PUBLIC | Modifier.INTERFACE);
+        context = newClass("android.content.Context", object);
+        context.addInterface(callback);
+        activity = newClass("android.app.Activity", context);
+        mainActivity = newClass("com.example.MainActivity", activity);
+        mainActivity.addInterface(runnable);
+        unrelated = newClass("com.example.Util", object);
+    }
+
+    @Override
+    protected void tearDown() {
+        G.reset();
+    }
+
+    public void testClosure() {
+        BitSet closure = new ClassHierarchyIndex().getClosure(mainActivity);
+        for (SootClass cls: new SootClass[]{mainActivity, runnable, activity, context, callback, object}) {
+            assertTrue(cls.getName(), closure.get(cls.getNumber()));
+        }
+        assertFalse(closure.get(unrelated.getNumber()));
+    }
+
+    public void testQueryMatchesWalk() {
+        ClassHierarchyIndex index = new ClassHierarchyIndex();
+        ClassHierarchyIndex.Query isContext = index.newQuery(c -> c.getName().equals("android.content.Context"));
+        ClassHierarchyIndex.Query isCallback = index.newQuery(c -> c.getName().equals("android.view.Callback"));
+        for (SootClass cls: Scene.v().getClasses()) {
+            assertEquals(cls.getName(), ClassHierarchyIndex.walk(cls, c -> c.getName().equals("android.content.Context")),
+                    isContext.test(cls));
+            assertEquals(cls.getName(), ClassHierarchyIndex.walk(cls, c -> c.getName().equals("android.view.Callback")),
+                    isCallback.test(cls));
+        }
+        assertTrue(isContext.test(mainActivity));
+        assertTrue(isCallback.test(mainActivity));
+        assertFalse(isContext.test(unrelated));
+    }
+
+    public void testQueryIsMemoized() {
+        AtomicInteger calls = new AtomicInteger();
+        ClassHierarchyIndex.Query query = new ClassHierarchyIndex().newQuery(c -> {
+            calls.incrementAndGet();
+            return c == activity;
+        });
+        assertTrue(query.test(mainActivity));
+        int first = calls.get();
+        assertTrue(query.test(mainActivity));
+        assertTrue(query.test(activity));
+        assertEquals(first, calls.get());
+    }
+
+    // After freezing, classes that were not asked for yet are still answered correctly
+    public void testFrozenQuery() {
+        ClassHierarchyIndex index = new ClassHierarchyIndex();
+        ClassHierarchyIndex.Query query = index.newQuery(c -> c == runnable);
+        assertFalse(query.test(activity));
+        index.freeze();
+        assertTrue(query.test(mainActivity));
+        assertFalse(query.test(activity));
+        assertTrue(index.getClosure(mainActivity).get(runnable.getNumber()));
+    }
+
+    private static SootClass newClass(String name, SootClass superclass) {
+        SootClass cls = new SootClass(name, Modifier.PUBLIC);
+        if (superclass != null)
+            cls.setSuperclass(superclass);
+        Scene.v().addClass(cls);
+        return cls;
+    }
+}
@@ -0,0 +1,89 @@
+package com.guitard0g.dataflow_analysis;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import soot.ArrayType;
+import soot.BooleanType;
+import soot.G;
+import soot.IntType;
+import soot.LongType;
+import soot.Modifier;
+import soot.RefType;
+import soot.Scene;
+import soot.SootClass;
+import soot.SootMethod;
+import soot.Type;
+import soot.VoidType;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Checks that the signatures built from dex descriptors are the ones Soot gives the same methods, since a mismatch
+ * means a method is never skipped.
+ */
+public class DexPrefilterTest extends TestCase {
+    public DexPrefilterTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(DexPrefilterTest.class);
+    }
+
+    @Override
+    protected void setUp() {
+        G.reset();
+    }
+
+    @Override
+    protected void tearDown() {
+        G.reset();
+    }
+
+    public void testTypeNames() {
+        assertEquals("void", DexPrefilter.typeName("V"));
+        assertEquals("boolean", DexPrefilter.typeName("Z"));
+        assertEquals("int", DexPrefilter.typeName("I"));
+        assertEquals("long", DexPrefilter.typeName("J"));
+        assertEquals("java.lang.String", DexPrefilter.typeName("Ljava/lang/String;"));
+        assertEquals("java.lang.String[]", DexPrefilter.typeName("[Ljava/lang/String;"));
+        assertEquals("long[][]", DexPrefilter.typeName("[[J"));
+        assertEquals("com.example.Outer$Inner", DexPrefilter.typeName("Lcom/example/Outer$Inner;"));
+    }
+
+    public void testSignatureWithoutParameters() {
+        assertSameSignature("Lcom/example/Main;", "onCreate", "V", Collections.<String>emptyList(),
+                VoidType.v(), Collections.<Type>emptyList());
+    }
+
+    public void testSignatureWithParameters() {
+        assertSameSignature("Lcom/example/Main;", "query", "[Ljava/lang/String;",
+                Arrays.asList("I", "Ljava/lang/Object;", "[[J", "Z"),
+                ArrayType.v(RefType.v("java.lang.String"), 1),
+                Arrays.<Type>asList(IntType.v(), RefType.v("java.lang.Object"), ArrayType.v(LongType.v(), 2),
+                        BooleanType.v()));
+    }
+
+    public void testConstructorSignature() {
+        assertSameSignature("Lcom/example/Main;", "<init>", "V", Collections.singletonList("I"),
+                VoidType.v(), Collections.<Type>singletonList(IntType.v()));
+    }
+
+    // names that are Jimple keywords are quoted in both
+    public void testQuotedNameSignature() {
+        assertSameSignature("Lcom/example/Main;", "goto", "V", Collections.<String>emptyList(),
+                VoidType.v(), Collections.<Type>emptyList());
+    }
+
+    private static void assertSameSignature(String classDescriptor, String name, String returnType, List<String> params,
+                                            Type sootReturnType, List<Type> sootParams) {
+        SootClass cls = new SootClass(DexPrefilter.typeName(classDescriptor), Modifier.PUBLIC);
+        Scene.v().addClass(cls);
+        SootMethod m = new SootMethod(name, sootParams, sootReturnType, Modifier.PUBLIC);
+        cls.addMethod(m);
+        assertEquals(m.getSignature(), DexPrefilter.signature(classDescriptor, name, returnType, params));
+    }
+}
@@ -0,0 +1,119 @@
+package com.guitard0g.dataflow_analysis;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Reads a small DroidLeaks sheet written the way spreadsheet programs write xlsx files: shared strings (one of them
+ * rich text), an inline string, a number and a header row.
+ */
+public class GroundTruthTest extends TestCase {
+    private static final String SHARED_STRINGS = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+            + "<sst xmlns=\"http://schemas.openxmlformats.org/spreadsheetml/2006/main\">"
+            + "<si><t>App</t></si>"
+            + "<si><t>My App</t></si>"
+            + "<si><t>android.database.Cursor</t></si>"
+            + "<si><r><t>eta() </t></r><r><t>@line 2585</t></r></si>"
+            + "<si><t>Sched.java</t></si>"
+            + "<si><t>Other</t></si>"
+            + "</sst>";
+
+    private static final String SHEET = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+            + "<worksheet xmlns=\"http://schemas.openxmlformats.org/spreadsheetml/2006/main\"><sheetData>"
+            // header
+            + "<row r=\"1\"><c r=\"A1\" t=\"s\"><v>0</v></c></row>"
+            // app, resource, fixed revision, buggy revision, method, file
+            + "<row r=\"2\"><c r=\"A2\" t=\"s\"><v>1</v></c><c r=\"B2\" t=\"s\"><v>2</v></c><c r=\"C2\"><v>200</v></c>"
+            + "<c r=\"D2\"><v>199</v></c><c r=\"E2\" t=\"s\"><v>3</v></c><c r=\"F2\" t=\"s\"><v>4</v></c></row>"
+            + "<row r=\"3\"><c r=\"A3\" t=\"s\"><v>1</v></c><c r=\"B3\" t=\"inlineStr\"><is><t> java.io.FileInputStream </t></is></c>"
+            + "<c r=\"D3\"><v>199</v></c><c r=\"E3\" t=\"inlineStr\"><is><t>Sched</t></is></c>"
+            + "<c r=\"F3\" t=\"s\"><v>4</v></c></row>"
+            // no buggy revision, so there is no APK for this leak
+            + "<row r=\"4\"><c r=\"A4\" t=\"s\"><v>5</v></c><c r=\"B4\" t=\"s\"><v>2</v></c></row>"
+            + "</sheetData></worksheet>";
+
+    private Path tmp;
+
+    public GroundTruthTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(GroundTruthTest.class);
+    }
+
+    @Override
+    protected void setUp() throws IOException {
+        tmp = Files.createTempDirectory("ground-truth");
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(tmp)) {
+            for (Path p: files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(p);
+            }
+        }
+    }
+
+    public void testParse() throws IOException {
+        GroundTruth truth = new GroundTruth(writeXlsx(true).toString());
+        assertEquals(Collections.singletonList("My-App-rev-199.apk"), truth.getApkNames());
+
+        List<GroundTruth.Leak> leaks = truth.getLeaks("My-App-rev-199.apk");
+        assertEquals(2, leaks.size());
+        GroundTruth.Leak cursor = leaks.get(0);
+        assertEquals("My App", cursor.app);
+        assertEquals("android.database.Cursor", cursor.resource);
+        assertEquals("199", cursor.revision);
+        assertEquals("eta() @line 2585", cursor.method);
+        assertEquals("Sched.java", cursor.file);
+        assertEquals("My-App-rev-199.apk|android.database.Cursor|Sched.java|eta() @line 2585", cursor.key());
+
+        // inline strings are trimmed like all other cells
+        assertEquals("java.io.FileInputStream", leaks.get(1).resource);
+        assertEquals("Sched", leaks.get(1).method);
+    }
+
+    public void testUnknownApk() throws IOException {
+        assertTrue(new GroundTruth(writeXlsx(true).toString()).getLeaks("Other-rev-1.apk").isEmpty());
+    }
+
+    public void testNotASheet() throws IOException {
+        try {
+            new GroundTruth(writeXlsx(false).toString());
+            fail("a zip without a worksheet is not a DroidLeaks sheet");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage().contains("sheet1.xml"));
+        }
+    }
+
+    private Path writeXlsx(boolean withSheet) throws IOException {
+        Path xlsx = tmp.resolve("droidleaks.xlsx");
+        try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(xlsx))) {
+            write(zip, "xl/sharedStrings.xml", SHARED_STRINGS);
+            if (withSheet)
+                write(zip, "xl/worksheets/sheet1.xml", SHEET);
+        }
+        return xlsx;
+    }
+
+    private static void write(ZipOutputStream zip, String name, String content) throws IOException {
+        zip.putNextEntry(new ZipEntry(name));
+        zip.write(content.getBytes(StandardCharsets.UTF_8));
+        zip.closeEntry();
+    }
+}
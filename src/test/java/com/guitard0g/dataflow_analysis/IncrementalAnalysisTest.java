@@ -0,0 +1,294 @@
+package com.guitard0g.dataflow_analysis;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import soot.Body;
+import soot.G;
+import soot.Local;
+import soot.Modifier;
+import soot.Scene;
+import soot.SootClass;
+import soot.SootField;
+import soot.SootMethod;
+import soot.Type;
+import soot.Unit;
+import soot.VoidType;
+import soot.jimple.InvokeStmt;
+import soot.jimple.Jimple;
+import soot.jimple.toolkits.callgraph.CallGraph;
+import soot.jimple.toolkits.callgraph.Edge;
+import soot.options.Options;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Runs the analysis of two revisions of an app in full and in incremental mode and compares the verdicts.
+ *
+ * The app is an activity that opens a resource in onCreate, stores it in a field and closes it in onDestroy. The
+ * dummy main calls both callbacks, so there is no call edge between them. The dataflow analysis itself needs an APK
+ * and the Android platforms, so the verdict a full run gives is known up front here: the resource is closed as long as
+ * onDestroy closes it. Incremental mode has to give the same verdict, either by reusing the old one or by handing the
+ * source to the dataflow analysis again.
+ */
+public class IncrementalAnalysisTest extends TestCase {
+    private static final String ACTIVITY = "com.example.MainActivity";
+    private static final String RESOURCE = "com.example.Resource";
+
+    private Path stateDir;
+
+    public IncrementalAnalysisTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(IncrementalAnalysisTest.class);
+    }
+
+    @Override
+    protected void setUp() throws IOException {
+        stateDir = Files.createTempDirectory("incremental");
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        for (Path p: Files.list(stateDir).toArray(Path[]::new)) {
+            Files.delete(p);
+        }
+        Files.delete(stateDir);
+        G.reset();
+    }
+
+    // The close in onDestroy is removed, which is only connected to the source through the field
+    public void testChangedCallbackThroughField() throws IOException {
+        assertSameVerdicts(new Revision(true, false), new Revision(false, false));
+    }
+
+    // The close in onDestroy is added again
+    public void testAddedCloseInCallback() throws IOException {
+        assertSameVerdicts(new Revision(false, false), new Revision(true, false));
+    }
+
+    // The resource is handed to another component through a static field, whose reader passes it on to the method
+    // that closes it, so the change is two calls away from the only method that shares a field with the source
+    public void testChangedCalleeOfFieldReader() throws IOException {
+        assertSameVerdicts(new Revision(true, false, true), new Revision(false, false, true));
+    }
+
+    public void testUnchangedRevisionIsReused() throws IOException {
+        runIncremental(new Revision(true, false));
+        Run second = runIncremental(new Revision(true, false));
+        assertTrue(second.reused);
+        assertEquals(IncrementalAnalysis.Verdict.CLOSED, second.verdict);
+    }
+
+    // A change in another component must not cost the source its old verdict
+    public void testUnrelatedChangeIsReused() throws IOException {
+        runIncremental(new Revision(true, false));
+        Run second = runIncremental(new Revision(true, true));
+        assertTrue(second.reused);
+        assertEquals(IncrementalAnalysis.Verdict.CLOSED, second.verdict);
+    }
+
+    private void assertSameVerdicts(Revision first, Revision second) throws IOException {
+        assertEquals(first.fullVerdict(), runIncremental(first).verdict);
+        assertEquals(second.fullVerdict(), runIncremental(second).verdict);
+    }
+
+    // Load a revision and analyze it with the state of the previous one
+    private Run runIncremental(Revision revision) throws IOException {
+        DummyCallInfo source = revision.load();
+        DummyRegistry dummies = new DummyRegistry();
+        dummies.register(source);
+        List<DummyCallInfo> sources = Collections.singletonList(source);
+
+        IncrementalAnalysis incremental = new IncrementalAnalysis(stateDir.toString(), AnalysisMode.RESOURCE);
+        incremental.prepare(dummies, sources);
+        Run run = new Run();
+        run.reused = incremental.getReused().contains(source);
+        // a source that is not reused goes through the dataflow analysis, which gives the full verdict
+        run.verdict = run.reused ? incremental.getVerdict(source) : revision.fullVerdict();
+
+        Set<DummyCallInfo> closed = Collections.newSetFromMap(new IdentityHashMap<>());
+        if (run.verdict == IncrementalAnalysis.Verdict.CLOSED)
+            closed.add(source);
+        incremental.save(sources, closed, new HashSet<>(), Collections.emptyMap());
+        return run;
+    }
+
+    private static class Run {
+        boolean reused;
+        IncrementalAnalysis.Verdict verdict;
+    }
+
+    /**
+     * One revision of the app
+     */
+    private static class Revision {
+        // whether onDestroy closes the resource
+        final boolean closes;
+        // whether the app has a second activity that differs from the other revisions
+        final boolean otherActivity;
+        // whether onCreate also hands the resource to another component, which closes it instead of onDestroy
+        final boolean handover;
+
+        Revision(boolean closes, boolean otherActivity) {
+            this(closes, otherActivity, false);
+        }
+
+        Revision(boolean closes, boolean otherActivity, boolean handover) {
+            this.closes = closes;
+            this.otherActivity = otherActivity;
+            this.handover = handover;
+        }
+
+        IncrementalAnalysis.Verdict fullVerdict() {
+            return closes ? IncrementalAnalysis.Verdict.CLOSED : IncrementalAnalysis.Verdict.LEAKED;
+        }
+
+        // Build the classes of this revision in a fresh Scene and return the source in onCreate
+        DummyCallInfo load() {
+            G.reset();
+            Options.v().set_allow_phantom_refs(true);
+
+            SootClass resource = newClass(RESOURCE);
+            resource.setLibraryClass();
+            SootMethod init = newMethod(resource, "<init>");
+            SootMethod close = newMethod(resource, "close");
+
+            SootClass activity = newClass(ACTIVITY);
+            SootField field = new SootField("res", resource.getType());
+            activity.addField(field);
+
+            // onCreate: this.res = new Resource()
+            SootMethod onCreate = newMethod(activity, "onCreate");
+            Body body = onCreate.retrieveActiveBody();
+            Local self = body.getThisLocal();
+            Local res = Jimple.v().newLocal("r1", resource.getType());
+            body.getLocals().add(res);
+            Unit ret = body.getUnits().getLast();
+            body.getUnits().insertBefore(Jimple.v().newAssignStmt(res, Jimple.v().newNewExpr(resource.getType())), ret);
+            body.getUnits().insertBefore(Jimple.v().newInvokeStmt(
+                    Jimple.v().newSpecialInvokeExpr(res, init.makeRef())), ret);
+            body.getUnits().insertBefore(Jimple.v().newAssignStmt(
+                    Jimple.v().newInstanceFieldRef(self, field.makeRef()), res), ret);
+            SootField shared = null;
+            if (handover) {
+                // Holder.shared = r1
+                SootClass holder = newClass("com.example.Holder");
+                shared = new SootField("shared", resource.getType(), Modifier.PUBLIC | Modifier.STATIC);
+                holder.addField(shared);
+                body.getUnits().insertBefore(Jimple.v().newAssignStmt(
+                        Jimple.v().newStaticFieldRef(shared.makeRef()), res), ret);
+            }
+
+            // onDestroy: this.res.close()
+            SootMethod onDestroy = newMethod(activity, "onDestroy");
+            body = onDestroy.retrieveActiveBody();
+            self = body.getThisLocal();
+            res = Jimple.v().newLocal("r1", resource.getType());
+            body.getLocals().add(res);
+            ret = body.getUnits().getLast();
+            body.getUnits().insertBefore(Jimple.v().newAssignStmt(
+                    res, Jimple.v().newInstanceFieldRef(self, field.makeRef())), ret);
+            if (closes && !handover)
+                body.getUnits().insertBefore(Jimple.v().newInvokeStmt(
+                        Jimple.v().newVirtualInvokeExpr(res, close.makeRef())), ret);
+
+            // the dummy main calls every callback, but the callbacks do not call each other
+            SootClass dummyMain = newClass("dummyMainClass");
+            SootMethod main = newMethod(dummyMain, "dummyMainMethod");
+            CallGraph cg = new CallGraph();
+            call(cg, main, onCreate);
+            call(cg, main, onDestroy);
+            if (handover) {
+                // Handover.onStop: Closer.release(Holder.shared), which calls Closer.close(r) and that one r.close()
+                SootClass closer = newClass("com.example.Closer");
+                SootMethod closeResource = newStaticMethod(closer, "close", resource.getType());
+                if (closes) {
+                    body = closeResource.getActiveBody();
+                    body.getUnits().insertBefore(Jimple.v().newInvokeStmt(Jimple.v().newVirtualInvokeExpr(
+                            body.getParameterLocal(0), close.makeRef())), body.getUnits().getLast());
+                }
+                SootMethod release = newStaticMethod(closer, "release", resource.getType());
+                passOn(cg, release, release.getActiveBody().getParameterLocal(0), closeResource);
+
+                SootMethod onStop = newMethod(newClass("com.example.Handover"), "onStop");
+                body = onStop.getActiveBody();
+                res = Jimple.v().newLocal("r1", resource.getType());
+                body.getLocals().add(res);
+                body.getUnits().insertBefore(Jimple.v().newAssignStmt(
+                        res, Jimple.v().newStaticFieldRef(shared.makeRef())), body.getUnits().getLast());
+                passOn(cg, onStop, res, release);
+                call(cg, main, onStop);
+            }
+            if (otherActivity) {
+                SootClass other = newClass("com.example.OtherActivity");
+                call(cg, main, newMethod(other, "onCreate"));
+            }
+            Scene.v().setCallGraph(cg);
+
+            return new DummyCallInfo(0, DummyKind.RESOURCE_OPEN,
+                    "<" + ACTIVITY + ": void " + Instrument.OPEN_RESOURCE + "0()>", init, onCreate);
+        }
+
+        private static SootClass newClass(String name) {
+            SootClass cls = new SootClass(name, Modifier.PUBLIC);
+            Scene.v().addClass(cls);
+            cls.setApplicationClass();
+            return cls;
+        }
+
+        // Add a method without parameters whose body only returns
+        private static SootMethod newMethod(SootClass cls, String name) {
+            SootMethod m = new SootMethod(name, Collections.<Type>emptyList(), VoidType.v(), Modifier.PUBLIC);
+            cls.addMethod(m);
+            Body body = Jimple.v().newBody(m);
+            Local self = Jimple.v().newLocal("r0", cls.getType());
+            body.getLocals().add(self);
+            body.getUnits().add(Jimple.v().newIdentityStmt(self, Jimple.v().newThisRef(cls.getType())));
+            body.getUnits().add(Jimple.v().newReturnVoidStmt());
+            m.setActiveBody(body);
+            return m;
+        }
+
+        // Add a static method with one parameter whose body only returns
+        private static SootMethod newStaticMethod(SootClass cls, String name, Type param) {
+            SootMethod m = new SootMethod(name, Collections.singletonList(param), VoidType.v(),
+                    Modifier.PUBLIC | Modifier.STATIC);
+            cls.addMethod(m);
+            Body body = Jimple.v().newBody(m);
+            Local p = Jimple.v().newLocal("r0", param);
+            body.getLocals().add(p);
+            body.getUnits().add(Jimple.v().newIdentityStmt(p, Jimple.v().newParameterRef(param, 0)));
+            body.getUnits().add(Jimple.v().newReturnVoidStmt());
+            m.setActiveBody(body);
+            return m;
+        }
+
+        // Add a static call that passes value from the end of caller to callee and its call graph edge
+        private static void passOn(CallGraph cg, SootMethod caller, Local value, SootMethod callee) {
+            Body body = caller.getActiveBody();
+            InvokeStmt stmt = Jimple.v().newInvokeStmt(Jimple.v().newStaticInvokeExpr(callee.makeRef(), value));
+            body.getUnits().insertBefore(stmt, body.getUnits().getLast());
+            cg.addEdge(new Edge(caller, stmt, callee));
+        }
+
+        // Add a call from the end of caller to callee and its call graph edge
+        private static void call(CallGraph cg, SootMethod caller, SootMethod callee) {
+            Body body = caller.getActiveBody();
+            Local target = Jimple.v().newLocal("r" + body.getLocalCount(), callee.getDeclaringClass().getType());
+            body.getLocals().add(target);
+            InvokeStmt stmt = Jimple.v().newInvokeStmt(Jimple.v().newVirtualInvokeExpr(target, callee.makeRef()));
+            body.getUnits().insertBefore(stmt, body.getUnits().getLast());
+            cg.addEdge(new Edge(caller, stmt, callee));
+        }
+    }
+}
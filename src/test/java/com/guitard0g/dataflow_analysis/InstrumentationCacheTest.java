@@ -0,0 +1,116 @@
+package com.guitard0g.dataflow_analysis;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.apache.commons.cli.ParseException;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Checks what goes into the key of a cached instrumentation and that entries are evicted least recently used first.
+ */
+public class InstrumentationCacheTest extends TestCase {
+    // a bit more than a third of the smallest cache, so that two APKs fit and three do not
+    private static final int APK_SIZE = 400 * 1024;
+
+    private Path tmp;
+    private Path platforms;
+    private Path cacheDir;
+
+    public InstrumentationCacheTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(InstrumentationCacheTest.class);
+    }
+
+    @Override
+    protected void setUp() throws IOException {
+        tmp = Files.createTempDirectory("cache-test");
+        platforms = Files.createDirectories(tmp.resolve("platforms").resolve("android-26"));
+        Files.write(platforms.resolve("android.jar"), new byte[]{1, 2, 3});
+        platforms = platforms.getParent();
+        cacheDir = tmp.resolve("cache");
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(tmp)) {
+            for (Path p: files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(p);
+            }
+        }
+    }
+
+    public void testKeyIsStable() throws Exception {
+        InstrumentationCache cache = new InstrumentationCache(cacheDir.toString(), 1);
+        CliOptions options = options(apk("a.apk", 1), AnalysisMode.RESOURCE);
+        assertEquals(cache.key(options), cache.key(options));
+        // the path of the APK does not matter, only its content
+        assertEquals(cache.key(options), cache.key(options(apk("b.apk", 1), AnalysisMode.RESOURCE)));
+    }
+
+    public void testKeyDependsOnContentModeAndPlatforms() throws Exception {
+        InstrumentationCache cache = new InstrumentationCache(cacheDir.toString(), 1);
+        String apk = apk("a.apk", 1);
+        String key = cache.key(options(apk, AnalysisMode.RESOURCE));
+
+        assertFalse(key.equals(cache.key(options(apk("b.apk", 2), AnalysisMode.RESOURCE))));
+        assertFalse(key.equals(cache.key(options(apk, AnalysisMode.MEMORY))));
+
+        Path newPlatform = Files.createDirectories(platforms.resolve("android-29"));
+        Files.write(newPlatform.resolve("android.jar"), new byte[]{4});
+        assertFalse(key.equals(cache.key(options(apk, AnalysisMode.RESOURCE))));
+    }
+
+    public void testLookupAfterStore() throws Exception {
+        InstrumentationCache cache = new InstrumentationCache(cacheDir.toString(), 1);
+        assertNull(cache.lookup("a"));
+        store(cache, "a", 1);
+        InstrumentationCache.Entry entry = cache.lookup("a");
+        assertNotNull(entry);
+        assertEquals("log of a", entry.log());
+    }
+
+    public void testLeastRecentlyUsedIsEvicted() throws Exception {
+        InstrumentationCache cache = new InstrumentationCache(cacheDir.toString(), 1);
+        store(cache, "a", 1);
+        store(cache, "b", 2);
+        long now = System.currentTimeMillis();
+        assertTrue(cacheDir.resolve("a").toFile().setLastModified(now - 20000));
+        assertTrue(cacheDir.resolve("b").toFile().setLastModified(now - 10000));
+
+        // a lookup makes a the most recently used entry, so b is the one to go
+        assertNotNull(cache.lookup("a"));
+        store(cache, "c", 3);
+
+        assertNotNull(cache.lookup("a"));
+        assertNull(cache.lookup("b"));
+        assertNotNull(cache.lookup("c"));
+    }
+
+    private void store(InstrumentationCache cache, String key, int content) throws IOException {
+        cache.store(key, apk(key + ".apk", content), new DummyRegistry(), new ArrayList<>(), "log of " + key);
+    }
+
+    // Write an APK of APK_SIZE bytes, APKs with the same content byte are equal
+    private String apk(String name, int content) throws IOException {
+        byte[] bytes = new byte[APK_SIZE];
+        bytes[0] = (byte) content;
+        Path apk = tmp.resolve(name);
+        Files.write(apk, bytes);
+        return apk.toString();
+    }
+
+    private CliOptions options(String apk, AnalysisMode mode) throws ParseException {
+        return new CliOptions(apk, platforms.toString(), mode, 1, 1);
+    }
+}
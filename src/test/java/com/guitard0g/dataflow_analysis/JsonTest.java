@@ -0,0 +1,41 @@
+package com.guitard0g.dataflow_analysis;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+public class JsonTest extends TestCase {
+    public JsonTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(JsonTest.class);
+    }
+
+    public void testQuotePlain() {
+        assertEquals("\"<com.example.Main: void onCreate()>\"", Json.quote("<com.example.Main: void onCreate()>"));
+        assertEquals("\"\"", Json.quote(""));
+    }
+
+    public void testQuoteNull() {
+        assertEquals("null", Json.quote(null));
+    }
+
+    public void testQuoteEscapes() {
+        assertEquals("\"a\\\"b\\\\c\"", Json.quote("a\"b\\c"));
+        assertEquals("\"\\n\\r\\t\"", Json.quote("\n\r\t"));
+        assertEquals("\"\\u0000\\u001f\"", Json.quote("\u0000\u001f"));
+        // everything else is written as it is
+        assertEquals("\"\u00e9/\u20ac\"", Json.quote("\u00e9/\u20ac"));
+    }
+
+    public void testArray() {
+        assertEquals("null", Json.array(null));
+        assertEquals("[]", Json.array(Collections.<String>emptyList()));
+        assertEquals("[\"a\", \"b\\\"\", null]", Json.array(Arrays.asList("a", "b\"", null)));
+    }
+}
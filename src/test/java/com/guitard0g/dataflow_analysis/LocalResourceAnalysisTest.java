@@ -0,0 +1,267 @@
+package com.guitard0g.dataflow_analysis;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import soot.Body;
+import soot.BooleanType;
+import soot.G;
+import soot.IntType;
+import soot.Local;
+import soot.Modifier;
+import soot.RefType;
+import soot.Scene;
+import soot.SootClass;
+import soot.SootField;
+import soot.SootMethod;
+import soot.Type;
+import soot.Unit;
+import soot.Value;
+import soot.VoidType;
+import soot.jimple.IntConstant;
+import soot.jimple.Jimple;
+import soot.jimple.NullConstant;
+import soot.jimple.Stmt;
+import soot.jimple.toolkits.callgraph.CallGraph;
+import soot.jimple.toolkits.callgraph.Edge;
+import soot.options.Options;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Decides resources opened in small Jimple methods, each one the way the instrumentation leaves it: the open is the
+ * assignment of an open dummy call to a local, and every close passes the local to a close dummy.
+ */
+public class LocalResourceAnalysisTest extends TestCase {
+    private RefType cursor;
+    private SootMethod getCount;
+    private SootClass cls;
+    private SootMethod query;
+    private SootMethod closeDummy;
+    private DummyRegistry dummies;
+    private CallGraph cg;
+    private int nextId = 0;
+
+    public LocalResourceAnalysisTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(LocalResourceAnalysisTest.class);
+    }
+
+    @Override
+    protected void setUp() {
+        G.reset();
+        Options.v().set_allow_phantom_refs(true);
+        Scene.v().loadBasicClasses();
+
+        SootClass cursorClass = new SootClass("android.database.Cursor", Modifier.PUBLIC | Modifier.INTERFACE);
+        Scene.v().addClass(cursorClass);
+        cursor = cursorClass.getType();
+        getCount = new SootMethod("getCount", Collections.<Type>emptyList(), IntType.v(),
+                Modifier.PUBLIC | Modifier.ABSTRACT);
+        cursorClass.addMethod(getCount);
+
+        cls = new SootClass("com.example.Db", Modifier.PUBLIC);
+        cls.setSuperclass(Scene.v().getSootClass("java.lang.Object"));
+        Scene.v().addClass(cls);
+        cls.setApplicationClass();
+        query = new SootMethod("query", Collections.<Type>emptyList(), cursor, Modifier.PUBLIC);
+        cls.addMethod(query);
+
+        dummies = new DummyRegistry();
+        closeDummy = new SootMethod(Instrument.CLOSE_RESOURCE + nextId, Collections.<Type>singletonList(cursor),
+                VoidType.v(), Modifier.PUBLIC | Modifier.STATIC);
+        cls.addMethod(closeDummy);
+        dummies.register(new DummyCallInfo(nextId++, DummyKind.RESOURCE_CLOSE, closeDummy.getSignature(), query, query));
+
+        cg = new CallGraph();
+        Scene.v().setCallGraph(cg);
+    }
+
+    @Override
+    protected void tearDown() {
+        G.reset();
+    }
+
+    // try { c.getCount(); } finally { close(c); }
+    public void testTryFinallyClose() {
+        Method m = new Method("tryFinally");
+        Unit use = m.add(Jimple.v().newInvokeStmt(Jimple.v().newInterfaceInvokeExpr(m.resource, getCount.makeRef())));
+        Unit close = m.close();
+        m.add(Jimple.v().newReturnVoidStmt());
+        Local caught = m.local("r2", RefType.v("java.lang.Throwable"));
+        Unit handler = m.add(Jimple.v().newIdentityStmt(caught, Jimple.v().newCaughtExceptionRef()));
+        m.close();
+        m.add(Jimple.v().newThrowStmt(caught));
+        m.body.getTraps().add(Jimple.v().newTrap(Scene.v().getSootClass("java.lang.Throwable"), use, close, handler));
+
+        assertEquals(LocalResourceAnalysis.Verdict.CLOSED, analyze(m));
+    }
+
+    // if (c != null) close(c);
+    public void testNullGuardedClose() {
+        Method m = new Method("nullGuarded");
+        Unit ret = Jimple.v().newReturnVoidStmt();
+        m.add(Jimple.v().newIfStmt(Jimple.v().newEqExpr(m.resource, NullConstant.v()), ret));
+        m.close();
+        m.add(ret);
+
+        assertEquals(LocalResourceAnalysis.Verdict.CLOSED, analyze(m));
+    }
+
+    // close(c) on one branch only
+    public void testCloseOnOneBranch() {
+        Method m = new Method("oneBranch");
+        Local flag = m.local("z0", BooleanType.v());
+        m.add(Jimple.v().newAssignStmt(flag, IntConstant.v(0)));
+        Unit ret = Jimple.v().newReturnVoidStmt();
+        m.add(Jimple.v().newIfStmt(Jimple.v().newEqExpr(flag, IntConstant.v(0)), ret));
+        m.close();
+        m.add(ret);
+
+        assertEquals(LocalResourceAnalysis.Verdict.UNDECIDED, analyze(m));
+    }
+
+    public void testNeverClosed() {
+        Method m = new Method("neverClosed");
+        m.add(Jimple.v().newReturnVoidStmt());
+
+        assertEquals(LocalResourceAnalysis.Verdict.LEAKED, analyze(m));
+    }
+
+    // this.cursor = c; close(c);
+    public void testEscapeThroughField() {
+        Method m = new Method("field");
+        SootField field = new SootField("cursor", cursor);
+        cls.addField(field);
+        m.add(Jimple.v().newAssignStmt(Jimple.v().newInstanceFieldRef(m.self, field.makeRef()), m.resource));
+        m.close();
+        m.add(Jimple.v().newReturnVoidStmt());
+
+        assertEquals(LocalResourceAnalysis.Verdict.UNDECIDED, analyze(m));
+    }
+
+    // keep(c); close(c);
+    public void testEscapeThroughArgument() {
+        SootMethod keep = new SootMethod("keep", Collections.<Type>singletonList(cursor), VoidType.v(),
+                Modifier.PUBLIC | Modifier.STATIC);
+        cls.addMethod(keep);
+        Method m = new Method("argument");
+        m.add(Jimple.v().newInvokeStmt(Jimple.v().newStaticInvokeExpr(keep.makeRef(), m.resource)));
+        m.close();
+        m.add(Jimple.v().newReturnVoidStmt());
+
+        assertEquals(LocalResourceAnalysis.Verdict.UNDECIDED, analyze(m));
+    }
+
+    // c.getCount(); close(c); where getCount can dispatch to an app class that wraps the cursor
+    public void testEscapeThroughAppReceiver() {
+        SootClass wrapper = new SootClass("com.example.WrappedCursor", Modifier.PUBLIC);
+        wrapper.setSuperclass(Scene.v().getSootClass("java.lang.Object"));
+        wrapper.addInterface(cursor.getSootClass());
+        Scene.v().addClass(wrapper);
+        wrapper.setApplicationClass();
+        SootMethod wrappedGetCount = new SootMethod("getCount", Collections.<Type>emptyList(), IntType.v(),
+                Modifier.PUBLIC);
+        wrapper.addMethod(wrappedGetCount);
+
+        Method m = new Method("appReceiver");
+        Stmt use = (Stmt) m.add(Jimple.v().newInvokeStmt(
+                Jimple.v().newInterfaceInvokeExpr(m.resource, getCount.makeRef())));
+        cg.addEdge(new Edge(m.body.getMethod(), use, wrappedGetCount));
+        m.close();
+        m.add(Jimple.v().newReturnVoidStmt());
+
+        assertEquals(LocalResourceAnalysis.Verdict.UNDECIDED, analyze(m));
+    }
+
+    // Object o = (Object) c; close(c); return o;
+    public void testEscapeThroughCopyReturned() {
+        Method m = new Method("returned");
+        Local copy = m.local("r2", RefType.v("java.lang.Object"));
+        m.add(Jimple.v().newAssignStmt(copy, Jimple.v().newCastExpr(m.resource, copy.getType())));
+        m.close();
+        m.add(Jimple.v().newReturnStmt(copy));
+
+        assertEquals(LocalResourceAnalysis.Verdict.UNDECIDED, analyze(m));
+    }
+
+    // close(c); c = null; the local holds two values, so we do not know which one is closed
+    public void testReassignedLocal() {
+        Method m = new Method("reassigned");
+        m.close();
+        m.add(Jimple.v().newAssignStmt(m.resource, NullConstant.v()));
+        m.add(Jimple.v().newReturnVoidStmt());
+
+        assertEquals(LocalResourceAnalysis.Verdict.UNDECIDED, analyze(m));
+    }
+
+    // Run the analysis on all open dummies and get the verdict for the one of this method
+    private LocalResourceAnalysis.Verdict analyze(Method m) {
+        LocalResourceAnalysis analysis = new LocalResourceAnalysis(dummies);
+        analysis.run();
+        if (analysis.getClosed().contains(m.open))
+            return LocalResourceAnalysis.Verdict.CLOSED;
+        if (analysis.getDecided().contains(m.open))
+            return LocalResourceAnalysis.Verdict.LEAKED;
+        return LocalResourceAnalysis.Verdict.UNDECIDED;
+    }
+
+    /**
+     * A method of the test class that starts with
+     *
+     * <pre>
+     * r0 := @this
+     * r1 = staticinvoke &lt;com.example.Db: android.database.Cursor __OPEN__RES__N()&gt;()
+     * </pre>
+     */
+    private class Method {
+        final Body body;
+        final Local self;
+        // the local the resource is opened into
+        final Local resource;
+        final DummyCallInfo open;
+
+        Method(String name) {
+            SootMethod m = new SootMethod(name, Collections.<Type>emptyList(), VoidType.v(), Modifier.PUBLIC);
+            cls.addMethod(m);
+            body = Jimple.v().newBody(m);
+            m.setActiveBody(body);
+            self = local("r0", cls.getType());
+            resource = local("r1", cursor);
+            add(Jimple.v().newIdentityStmt(self, Jimple.v().newThisRef(cls.getType())));
+
+            int id = nextId++;
+            SootMethod openDummy = new SootMethod(Instrument.OPEN_RESOURCE + id, Collections.<Type>emptyList(), cursor,
+                    Modifier.PUBLIC | Modifier.STATIC);
+            cls.addMethod(openDummy);
+            Stmt openStmt = (Stmt) add(Jimple.v().newAssignStmt(resource,
+                    Jimple.v().newStaticInvokeExpr(openDummy.makeRef())));
+            cg.addEdge(new Edge(m, openStmt, openDummy));
+            open = new DummyCallInfo(id, DummyKind.RESOURCE_OPEN, openDummy.getSignature(), query, m);
+            dummies.register(open);
+        }
+
+        Local local(String name, Type type) {
+            Local local = Jimple.v().newLocal(name, type);
+            body.getLocals().add(local);
+            return local;
+        }
+
+        Unit add(Unit u) {
+            body.getUnits().add(u);
+            return u;
+        }
+
+        // pass the resource to the close dummy
+        Unit close() {
+            Stmt stmt = (Stmt) add(Jimple.v().newInvokeStmt(
+                    Jimple.v().newStaticInvokeExpr(closeDummy.makeRef(), Arrays.<Value>asList(resource))));
+            cg.addEdge(new Edge(body.getMethod(), stmt, closeDummy));
+            return stmt;
+        }
+    }
+}